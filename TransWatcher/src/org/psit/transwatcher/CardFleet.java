@@ -0,0 +1,490 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.MessageLevel;
+
+/**
+ * Watches all cards in reach, e.g. the cards of several cameras in a studio.
+ * 
+ * One discovery socket collects the answers of every card to the broadcast
+ * and tells the cards apart by their address. The reply port can only be
+ * bound once per machine, so the watchers of the cards never open a
+ * discovery socket of their own. Each card found gets its own TransWatcher
+ * keeping the notification connection, journal and queue of that card. The
+ * images of a card are stored in a sub folder named after its IP.
+ * 
+ * The downloads of all cards are done by a shared pool of workers. They take
+ * turns between the cards, so a camera shooting a burst can't starve the
+ * others (see FleetScheduler). Per card and overall throughput is available
+ * with getThroughput() and getAggregateThroughput() and reported to the
+ * listeners after each discovery round with new downloads.
+ */
+public class CardFleet extends Thread {
+	public static final int DEFAULT_DOWNLOAD_WORKERS = 4;
+	// pause between two discovery rounds, unless a watcher misses its card
+	static final long DISCOVERY_INTERVAL_MS = 5000;
+
+	/**
+	 * Bytes received from one card or all cards together, and the time
+	 * downloads were running.
+	 */
+	public static class Throughput {
+		public final String cardIP;
+		public final long bytes;
+		public final int files;
+		public final long busyMillis;
+
+		Throughput(String cardIP, long bytes, int files, long busyMillis) {
+			this.cardIP = cardIP;
+			this.bytes = bytes;
+			this.files = files;
+			this.busyMillis = busyMillis;
+		}
+
+		/**
+		 * @return the bytes per second while downloading
+		 */
+		public double getBytesPerSecond() {
+			return busyMillis > 0 ? bytes * 1000.0 / busyMillis : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s: %d files, %.2f MB/s",
+					cardIP != null ? cardIP : "all", files,
+					getBytesPerSecond() / 1000000);
+		}
+	}
+
+	private final String fileDestinationPrefix;
+	private final FleetScheduler scheduler = new FleetScheduler();
+	private final Map<String, TransWatcher> cards = new LinkedHashMap<String, TransWatcher>();
+	// cards that answered the discovery and weren't lost since
+	private final Set<String> present = new HashSet<String>();
+	private boolean discoverNow;
+	private final Set<Listener> listeners = new CopyOnWriteArraySet<Listener>();
+	private final EventBus events = new EventBus("CardFleet");
+	private volatile MessageLevel messageLevel = MessageLevel.INFO;
+	private final List<String> cardAddresses = new ArrayList<String>();
+	private ExecutorService downloadWorkers;
+	private int downloadWorkerCount = DEFAULT_DOWNLOAD_WORKERS;
+	private int downloadConcurrency = TransWatcher.DEFAULT_DOWNLOAD_CONCURRENCY;
+	private int minConcurrency;
+	private List<DownloadRule> downloadRules = DownloadRule.defaults();
+	private ProcessingPipeline processingPipeline;
+	private RelayUploader relayUploader;
+	private int maxConcurrency;
+	private boolean catchUpSync;
+	private CardPorts cardPorts = CardPorts.TRANSCEND;
+	private String broadcastAddress;
+	private long reportedBytes;
+
+	public CardFleet(String fileDestinationPrefix) {
+		super("CardFleet");
+		this.fileDestinationPrefix = fileDestinationPrefix;
+	}
+
+	/**
+	 * Sets the number of workers downloading for all cards together.
+	 */
+	public void setDownloadWorkers(int downloadWorkers) {
+		this.downloadWorkerCount = Math.max(1, downloadWorkers);
+	}
+
+	/**
+	 * Sets the number of files downloaded from a single card in parallel.
+	 */
+	public void setDownloadConcurrency(int downloadConcurrency) {
+		this.downloadConcurrency = downloadConcurrency;
+	}
+
+	/**
+	 * @see TransWatcher#setDownloadRules(List)
+	 */
+	public void setDownloadRules(List<DownloadRule> downloadRules) {
+		this.downloadRules = new ArrayList<DownloadRule>(downloadRules);
+	}
+
+	/**
+	 * @see TransWatcher#setConcurrencyBounds(int, int)
+	 */
+	public void setConcurrencyBounds(int min, int max) {
+		this.minConcurrency = min;
+		this.maxConcurrency = max;
+	}
+
+	/**
+	 * Sets the pipeline shared by the watchers of all cards. The fleet shuts
+	 * it down when it ends.
+	 * 
+	 * @see TransWatcher#setProcessingPipeline(ProcessingPipeline)
+	 */
+	public void setProcessingPipeline(ProcessingPipeline processingPipeline) {
+		this.processingPipeline = processingPipeline;
+	}
+
+	/**
+	 * Sets the uploader shared by the watchers of all cards. The fleet shuts
+	 * it down when it ends.
+	 * 
+	 * @see TransWatcher#setRelayUploader(RelayUploader)
+	 */
+	public void setRelayUploader(RelayUploader relayUploader) {
+		this.relayUploader = relayUploader;
+	}
+
+	/**
+	 * @see TransWatcher#setCatchUpSync(boolean)
+	 */
+	public void setCatchUpSync(boolean catchUpSync) {
+		this.catchUpSync = catchUpSync;
+	}
+
+	/**
+	 * @see TransWatcher#setCardPorts(CardPorts)
+	 */
+	public void setCardPorts(CardPorts cardPorts) {
+		this.cardPorts = cardPorts;
+	}
+
+	/**
+	 * @see TransWatcher#setBroadcastAddress(String)
+	 */
+	public void setBroadcastAddress(String broadcastAddress) {
+		this.broadcastAddress = broadcastAddress;
+	}
+
+	/**
+	 * Sends the discovery packet also directly to the given address, e.g. a
+	 * card with a known IP or a simulated card.
+	 */
+	public synchronized void addCardAddress(String address) {
+		cardAddresses.add(address);
+	}
+
+	/**
+	 * @see TransWatcher#setMessageLevel(MessageLevel)
+	 */
+	public void setMessageLevel(MessageLevel messageLevel) {
+		this.messageLevel = messageLevel;
+		events.setMessageLevel(messageLevel);
+		for (TransWatcher card : getCards())
+			card.setMessageLevel(messageLevel);
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+		events.addListener(l);
+		for (TransWatcher card : getCards())
+			card.addListener(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+		events.removeListener(l);
+		for (TransWatcher card : getCards())
+			card.removeListener(l);
+	}
+
+	/**
+	 * @return the watchers of all cards found so far
+	 */
+	public List<TransWatcher> getCards() {
+		synchronized (cards) {
+			return new ArrayList<TransWatcher>(cards.values());
+		}
+	}
+
+	/**
+	 * @return the throughput of each card
+	 */
+	public List<Throughput> getThroughput() {
+		return scheduler.getThroughput();
+	}
+
+	/**
+	 * @return the throughput of all cards together, counting the time any
+	 *         download was running
+	 */
+	public Throughput getAggregateThroughput() {
+		return scheduler.getAggregateThroughput();
+	}
+
+	@Override
+	public void run() {
+		startDownloadWorkers();
+		DatagramSocket socket = null;
+		try {
+			socket = TransWatcher.openDiscoverySocket(cardPorts.replyPort);
+			while (!isInterrupted()) {
+				discover(socket);
+				reportThroughput();
+				awaitNextRound();
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (IOException e) {
+			notifyMessage("Can't listen for cards on port "
+					+ cardPorts.replyPort + ".");
+			notifyException(e);
+		} finally {
+			if (socket != null)
+				socket.close();
+			for (TransWatcher card : getCards())
+				card.interrupt();
+			downloadWorkers.shutdownNow();
+			if (relayUploader != null)
+				relayUploader.shutdown();
+			if (processingPipeline != null)
+				processingPipeline.shutdown();
+			notifyMessage("Fleet stopped.");
+		}
+	}
+
+	@Override
+	public void interrupt() {
+		for (TransWatcher card : getCards())
+			card.interrupt();
+		super.interrupt();
+	}
+
+	private void startDownloadWorkers() {
+		downloadWorkers = Executors.newFixedThreadPool(downloadWorkerCount,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "FleetDownloader-"
+								+ count.incrementAndGet());
+					}
+				});
+		for (int i = 0; i < downloadWorkerCount; i++) {
+			downloadWorkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[TransWatcher.DOWNLOAD_BUFFER_SIZE];
+					try {
+						while (true) {
+							FleetScheduler.Task task = scheduler.take();
+							long received = 0;
+							try {
+								received = task.watcher.download(task.client,
+										task.cardIP, task.file, buffer);
+							} catch (RuntimeException e) {
+								// e.g. the card's connection manager was shut
+								// down meanwhile. The journal keeps the file.
+								task.watcher.notifyException(e);
+							} finally {
+								scheduler.finished(task, received);
+							}
+						}
+					} catch (InterruptedException e) {
+						// fleet stopped
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends the discovery packet and collects the answers of all cards until
+	 * the discovery timeout.
+	 */
+	private void discover(DatagramSocket socket) throws InterruptedException {
+		List<InetAddress> targets = getDiscoveryTargets();
+		byte[] sendData = new byte[0];
+		for (InetAddress target : targets) {
+			try {
+				socket.send(new DatagramPacket(sendData, sendData.length,
+						target, cardPorts.discoveryPort));
+			} catch (IOException e) {
+				notifyMessage("Sending discovery to " + target + " failed.");
+			}
+		}
+
+		byte[] receiveData = new byte[256];
+		DatagramPacket receivePacket = new DatagramPacket(receiveData,
+				receiveData.length);
+		long deadline = System.currentTimeMillis()
+				+ TransWatcher.DISCOVERY_TIMEOUT_MS;
+		long remaining;
+		while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+			if (isInterrupted())
+				throw new InterruptedException();
+			try {
+				socket.setSoTimeout((int) remaining);
+				receivePacket.setLength(receiveData.length);
+				socket.receive(receivePacket);
+			} catch (SocketTimeoutException e) {
+				break;
+			} catch (IOException e) {
+				notifyMessage("Card handshake unsuccessful. ");
+				notifyException(e);
+				break;
+			}
+			String reply = new String(receivePacket.getData(), 0,
+					receivePacket.getLength());
+			if (reply.indexOf("Transcend WiFiSD") >= 0)
+				cardSeen(receivePacket.getAddress().getHostAddress());
+		}
+	}
+
+	private List<InetAddress> getDiscoveryTargets() {
+		Set<String> addresses = new HashSet<String>();
+		synchronized (this) {
+			addresses.addAll(cardAddresses);
+		}
+		// ask the known cards directly too, broadcasts get lost more often
+		synchronized (cards) {
+			addresses.addAll(cards.keySet());
+		}
+		List<InetAddress> targets = new ArrayList<InetAddress>();
+		try {
+			if (broadcastAddress != null)
+				targets.add(InetAddress.getByName(broadcastAddress));
+			else
+				targets.addAll(TransWatcher.getWirelessBroadcastAddresses());
+			for (String address : addresses)
+				targets.add(InetAddress.getByName(address));
+		} catch (IOException e) {
+			notifyMessage("Error determining network interfaces:\n");
+		}
+		return targets;
+	}
+
+	private void cardSeen(String cardIP) {
+		synchronized (present) {
+			if (present.add(cardIP))
+				present.notifyAll();
+		}
+
+		TransWatcher card;
+		synchronized (cards) {
+			if (cards.containsKey(cardIP))
+				return;
+			File folder = new File(fileDestinationPrefix, cardIP);
+			folder.mkdirs();
+			card = new TransWatcher(folder.getPath() + File.separator, this,
+					cardIP);
+			card.setName("TransWatcher-" + cardIP);
+			card.setCardPorts(cardPorts);
+			card.setDownloadConcurrency(downloadConcurrency);
+			card.setConcurrencyBounds(minConcurrency, maxConcurrency);
+			card.setDownloadRules(downloadRules);
+			card.setProcessingPipeline(processingPipeline);
+			card.setRelayUploader(relayUploader);
+			card.setCatchUpSync(catchUpSync);
+			card.setMessageLevel(messageLevel);
+			for (Listener l : listeners)
+				card.addListener(l);
+			cards.put(cardIP, card);
+		}
+		notifyMessage("Found SD card, IP: " + cardIP);
+		card.start();
+	}
+
+	private void awaitNextRound() throws InterruptedException {
+		synchronized (present) {
+			if (!discoverNow)
+				present.wait(DISCOVERY_INTERVAL_MS);
+			discoverNow = false;
+		}
+	}
+
+	/**
+	 * Waits until the card answered the discovery. Asks for a discovery round
+	 * right away if it didn't yet.
+	 * 
+	 * @return the IP of the card or null if it didn't answer in time
+	 */
+	String awaitCard(String cardIP) throws InterruptedException {
+		synchronized (present) {
+			long deadline = System.currentTimeMillis() + DISCOVERY_INTERVAL_MS
+					+ TransWatcher.DISCOVERY_TIMEOUT_MS;
+			long remaining;
+			while (!present.contains(cardIP)) {
+				remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return null;
+				discoverNow = true;
+				present.notifyAll();
+				present.wait(remaining);
+			}
+			return cardIP;
+		}
+	}
+
+	/**
+	 * Called when the connection to a card ended. Its watcher waits until it
+	 * answers the discovery again.
+	 */
+	void cardLost(String cardIP) {
+		synchronized (present) {
+			present.remove(cardIP);
+		}
+	}
+
+	FleetScheduler getScheduler() {
+		return scheduler;
+	}
+
+	private void reportThroughput() {
+		Throughput all = getAggregateThroughput();
+		if (all.bytes == reportedBytes)
+			return;
+		reportedBytes = all.bytes;
+		StringBuilder report = new StringBuilder("Throughput ");
+		report.append(all);
+		for (Throughput card : getThroughput())
+			report.append(", ").append(card);
+		notifyMessage(report.toString());
+	}
+
+	private void notifyMessage(String msg) {
+		events.message(MessageLevel.INFO, msg);
+	}
+
+	private void notifyException(Exception ex) {
+		events.exception(ex);
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Parses the answer of the card's file listing CGI
+ * (/cgi-bin/tslist?PATH=...). Every entry of the folder is described by
+ * numbered parameters like
+ * 
+ * <pre>
+ * FileName0=IMG_0001.JPG&amp;FileType0=File&amp;FileSize0=4621824
+ * </pre>
+ * 
+ * separated by '&amp;' or line breaks.
+ */
+class CardListing {
+	static final String LISTING_CGI = "/cgi-bin/tslist?PATH=";
+
+	static class Entry {
+		final String name;
+		final boolean directory;
+		final long size;
+
+		Entry(String name, boolean directory, long size) {
+			this.name = name;
+			this.directory = directory;
+			this.size = size;
+		}
+	}
+
+	static List<Entry> parse(String listing) {
+		Map<Integer, String[]> fields = new TreeMap<Integer, String[]>();
+		for (String param : listing.split("[&\r\n]")) {
+			int eq = param.indexOf('=');
+			if (eq <= 0)
+				continue;
+			String key = param.substring(0, eq).trim();
+			int digits = key.length();
+			while (digits > 0 && Character.isDigit(key.charAt(digits - 1)))
+				digits--;
+			if (digits == key.length())
+				continue;
+
+			int field;
+			String name = key.substring(0, digits);
+			if ("FileName".equalsIgnoreCase(name))
+				field = 0;
+			else if ("FileType".equalsIgnoreCase(name))
+				field = 1;
+			else if ("FileSize".equalsIgnoreCase(name))
+				field = 2;
+			else
+				continue;
+
+			Integer index;
+			try {
+				index = Integer.valueOf(key.substring(digits));
+			} catch (NumberFormatException e) {
+				// index out of range, skip the parameter
+				continue;
+			}
+			String[] entry = fields.get(index);
+			if (entry == null) {
+				entry = new String[3];
+				fields.put(index, entry);
+			}
+			entry[field] = param.substring(eq + 1).trim();
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+		for (String[] entry : fields.values()) {
+			if (entry[0] == null || entry[0].length() == 0
+					|| ".".equals(entry[0]) || "..".equals(entry[0]))
+				continue;
+			long size = -1;
+			try {
+				if (entry[2] != null)
+					size = Long.parseLong(entry[2]);
+			} catch (NumberFormatException e) {
+				// size unknown
+			}
+			entries.add(new Entry(entry[0], "Directory".equalsIgnoreCase(entry[1])
+					|| "Dir".equalsIgnoreCase(entry[1]), size));
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+/**
+ * The ports the Transcend Wifi SD card protocol is spoken on. The defaults
+ * are the ones of the card; a simulated card on a development machine can use
+ * other ones.
+ */
+public class CardPorts {
+	public static final CardPorts TRANSCEND = new CardPorts(55777, 58255, 5566, 80);
+
+	/** UDP port the card listens to discovery broadcasts on */
+	public final int discoveryPort;
+	/**
+	 * local UDP port the card sends its discovery reply to. Only one watcher
+	 * or fleet per machine can listen on it.
+	 */
+	public final int replyPort;
+	/** TCP port the card announces new images on */
+	public final int notificationPort;
+	/** TCP port of the card's web server */
+	public final int httpPort;
+
+	public CardPorts(int discoveryPort, int replyPort, int notificationPort,
+			int httpPort) {
+		this.discoveryPort = discoveryPort;
+		this.replyPort = replyPort;
+		this.notificationPort = notificationPort;
+		this.httpPort = httpPort;
+	}
+
+	@Override
+	public String toString() {
+		return "discovery " + discoveryPort + ", reply " + replyPort
+				+ ", notification " + notificationPort + ", http " + httpPort;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Finds the images that were shot while no notification connection was open
+ * and queues them for download behind the live shots, with their sizes for
+ * the queue's order. The DCIM folder of the
+ * card is listed through the card's listing CGI and compared with the local
+ * index: the download journal, the files in the destination folder and the
+ * content index, which also knows the files processing moved elsewhere.
+ */
+class CatchUpSync {
+	static final String DCIM_FOLDER = "/mnt/sd/DCIM";
+
+	private final HttpClient client;
+	private final String cardUrl;
+	private final DownloadJournal journal;
+	private final DownloadQueue queue;
+	private final ContentIndex index;
+	private final String fileDestinationPrefix;
+
+	/**
+	 * @param cardUrl
+	 *            http://host:port of the card's web server
+	 */
+	CatchUpSync(HttpClient client, String cardUrl, DownloadJournal journal,
+			DownloadQueue queue, ContentIndex index,
+			String fileDestinationPrefix) {
+		this.client = client;
+		this.cardUrl = cardUrl;
+		this.journal = journal;
+		this.queue = queue;
+		this.index = index;
+		this.fileDestinationPrefix = fileDestinationPrefix;
+	}
+
+	/**
+	 * Lists the DCIM folder and its sub folders and queues every image not
+	 * downloaded yet.
+	 * 
+	 * @return the number of images queued
+	 */
+	int queueMissing() throws IOException, InterruptedException {
+		int queued = 0;
+		for (CardListing.Entry folder : list(DCIM_FOLDER)) {
+			if (!folder.directory)
+				continue;
+			String folderPath = DCIM_FOLDER + "/" + folder.name;
+			for (CardListing.Entry image : list(folderPath)) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				if (image.directory)
+					continue;
+				String path = folderPath + "/" + image.name;
+				if (queue.isSkipped(path) || isDownloaded(path, image)
+						|| !journal.announced(path))
+					continue;
+				queue.addCatchUp(path, image.size);
+				queued++;
+			}
+		}
+		return queued;
+	}
+
+	private boolean isDownloaded(String path, CardListing.Entry image) {
+		if (journal.isCompleted(path))
+			return true;
+		File local = new File(fileDestinationPrefix + image.name);
+		if (local.exists() && (image.size < 0 || local.length() == image.size))
+			return true;
+		return index.contains(image.name, image.size);
+	}
+
+	private List<CardListing.Entry> list(String folder) throws IOException {
+		HttpGet httpGet = new HttpGet(cardUrl + CardListing.LISTING_CGI
+				+ URLEncoder.encode(folder, "UTF-8"));
+		try {
+			HttpResponse response = client.execute(httpGet);
+			String body = EntityUtils.toString(response.getEntity(), "UTF-8");
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+				throw new IOException("Card answered "
+						+ response.getStatusLine() + " listing " + folder);
+			return CardListing.parse(body);
+		} catch (IOException e) {
+			httpGet.abort();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+/**
+ * Tunes the number of parallel downloads from the measured throughput,
+ * additive steps, multiplicative decrease. Each sample window covers a few
+ * finished transfers:
+ * <ul>
+ * <li>too many failed transfers halve the limit, as the card or the link is
+ * overloaded</li>
+ * <li>if files were waiting, the limit moves by one, up at first</li>
+ * <li>a step up is kept if it brought more bytes/s, a step down if it didn't
+ * cost any. Otherwise it is taken back, the limit held for a few windows and
+ * the next step goes the other way.</li>
+ * </ul>
+ * Windows in which no file waited don't tell whether more transfers would
+ * help, so they only count for the failures.
+ * 
+ * The blocking workers take their download slots here; the NIO engine and the
+ * fleet just read the limit.
+ */
+class ConcurrencyController {
+	static final long SAMPLE_INTERVAL_MS = 1000;
+	// a window closes after that many transfers, but not before MIN_WINDOW_MS
+	private static final int MIN_TRANSFERS = 4;
+	private static final long MIN_WINDOW_MS = 2000;
+	private static final long MAX_WINDOW_MS = 15000;
+	private static final double MAX_FAILURE_RATE = 0.25;
+	// a raise has to bring at least that much more throughput to be kept
+	private static final double MIN_GAIN = 0.05;
+	private static final int HOLD_WINDOWS = 4;
+
+	private final Metrics metrics;
+	private final DownloadQueue queue;
+	private final int min;
+	private final int max;
+	private int limit;
+	private int active;
+
+	// the current window
+	private long windowStart;
+	private long windowBytes;
+	private long windowDownloads;
+	private long windowFailures;
+	private boolean saturated;
+
+	// the last step, to judge it
+	private int steppedFrom = -1;
+	private double rateBeforeStep;
+	private boolean up = true;
+	private int hold;
+
+	ConcurrencyController(Metrics metrics, DownloadQueue queue, int min,
+			int max, int start) {
+		this.metrics = metrics;
+		this.queue = queue;
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.limit = Math.max(this.min, Math.min(this.max, start));
+	}
+
+	synchronized int getLimit() {
+		return limit;
+	}
+
+	int getMax() {
+		return max;
+	}
+
+	/**
+	 * Waits for a download slot of the blocking workers.
+	 */
+	synchronized void acquire() throws InterruptedException {
+		while (active >= limit)
+			wait();
+		active++;
+	}
+
+	synchronized void release() {
+		active--;
+		notifyAll();
+	}
+
+	/**
+	 * Takes a sample of the metrics and adjusts the limit at the end of a
+	 * window. Called every SAMPLE_INTERVAL_MS.
+	 * 
+	 * @return true if the limit changed
+	 */
+	synchronized boolean sample(long now) {
+		long bytes = metrics.getBytes();
+		long downloads = metrics.getDownloads();
+		long failures = metrics.getFailedDownloads();
+		if (windowStart == 0) {
+			startWindow(now, bytes, downloads, failures);
+			return false;
+		}
+		if (queue.size() > 0)
+			saturated = true;
+
+		long transfers = downloads - windowDownloads + failures
+				- windowFailures;
+		long duration = now - windowStart;
+		if (transfers == 0 && !saturated) {
+			// idle, nothing to learn from
+			startWindow(now, bytes, downloads, failures);
+			return false;
+		}
+		if (duration < MIN_WINDOW_MS
+				|| (transfers < MIN_TRANSFERS && duration < MAX_WINDOW_MS))
+			return false;
+
+		double rate = (bytes - windowBytes) * 1000.0 / duration;
+		double failureRate = transfers > 0 ? (failures - windowFailures)
+				/ (double) transfers : 0;
+		boolean wasSaturated = saturated;
+		startWindow(now, bytes, downloads, failures);
+		return adjust(rate, failureRate, wasSaturated);
+	}
+
+	private boolean adjust(double rate, double failureRate, boolean saturated) {
+		int before = limit;
+		if (failureRate > MAX_FAILURE_RATE) {
+			limit = Math.max(min, limit / 2);
+			steppedFrom = -1;
+			hold = HOLD_WINDOWS;
+		} else if (!saturated) {
+			steppedFrom = -1;
+		} else if (steppedFrom >= 0) {
+			boolean paid = limit > steppedFrom ? rate > rateBeforeStep
+					* (1 + MIN_GAIN) : rate >= rateBeforeStep * (1 - MIN_GAIN);
+			if (!paid) {
+				// go back, stay a while and then try the other way
+				limit = steppedFrom;
+				hold = HOLD_WINDOWS;
+				up = !up;
+			}
+			steppedFrom = -1;
+		} else if (hold > 0) {
+			hold--;
+		} else {
+			if (up ? limit == max : limit == min)
+				up = !up;
+			int next = up ? limit + 1 : limit - 1;
+			if (next >= min && next <= max) {
+				steppedFrom = limit;
+				rateBeforeStep = rate;
+				limit = next;
+			}
+		}
+		if (limit > before)
+			notifyAll();
+		return limit != before;
+	}
+
+	private void startWindow(long now, long bytes, long downloads,
+			long failures) {
+		windowStart = now;
+		windowBytes = bytes;
+		windowDownloads = downloads;
+		windowFailures = failures;
+		saturated = queue.size() > 0;
+	}
+}
@@ -0,0 +1,334 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the downloaded images by their content hash, kept in the
+ * destination folder. It puts each completed download in place:
+ * <ul>
+ * <li>an image with the same content as one downloaded before is a true
+ * duplicate and not stored again</li>
+ * <li>an image whose name is taken by a different image, e.g. after the
+ * camera's file counter was reset, is stored under a numbered name like
+ * IMG_0001-1.JPG instead of overwriting the earlier one</li>
+ * </ul>
+ * 
+ * Each stored image adds a line "&lt;hash&gt; &lt;path&gt;", the path relative
+ * to the destination folder unless it is outside. A processing stage moving
+ * the image, e.g. the SortStage, adds a line with the new path, so the image
+ * is still found by its content and by its name. Once most lines are
+ * outdated, the index is rewritten with one line per image that still
+ * exists. The index is only a shortcut: a lost entry means an existing file
+ * with a colliding name is read once to compare it.
+ */
+class ContentIndex {
+	static final String ALGORITHM = "SHA-1";
+
+	private static final int COMPACT_MIN_RECORDS = 512;
+
+	private final File file;
+	private final File folder;
+	// the path of each stored content, and the contents by file name
+	private final Map<String, String> paths = new HashMap<String, String>();
+	private final Map<String, List<String>> hashes = new HashMap<String, List<String>>();
+	private FileOutputStream out;
+	private int records;
+	private boolean closed;
+
+	private ContentIndex(File file) {
+		this.file = file;
+		this.folder = file.getAbsoluteFile().getParentFile();
+	}
+
+	/**
+	 * Reads the index from the file and opens it for appending.
+	 */
+	static ContentIndex open(File file) {
+		ContentIndex index = new ContentIndex(file);
+		try {
+			index.load();
+			index.compactIfOutdated();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return index;
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Moves a completed download to its destination, unless the same
+	 * content is already there.
+	 * 
+	 * @return the file the content was stored in, or null if it is a
+	 *         duplicate of an earlier download and the part file was deleted
+	 */
+	synchronized File store(File partFile, File destination, String hash)
+			throws IOException {
+		if (find(hash) != null) {
+			partFile.delete();
+			return null;
+		}
+
+		File target = destination;
+		for (int n = 1; target.exists(); n++) {
+			if (hash.equals(toHex(hashOf(target)))) {
+				// downloaded before the index knew it
+				partFile.delete();
+				add(hash, target);
+				return null;
+			}
+			target = numbered(destination, n);
+		}
+		if (!partFile.renameTo(target))
+			throw new IOException("Could not rename " + partFile + " to "
+					+ target);
+		add(hash, target);
+		return target;
+	}
+
+	/**
+	 * @return the stored file with that content or null
+	 */
+	synchronized File find(String hash) {
+		String path = paths.get(hash);
+		if (path == null)
+			return null;
+		File stored = resolve(path);
+		if (stored.exists())
+			return stored;
+		forget(hash);
+		return null;
+	}
+
+	/**
+	 * @param size
+	 *            the size in bytes or -1 if unknown
+	 * @return true if a stored file of that name and size exists, wherever
+	 *         it was moved to
+	 */
+	synchronized boolean contains(String name, long size) {
+		List<String> named = hashes.get(name);
+		if (named == null)
+			return false;
+		for (String hash : named) {
+			File stored = resolve(paths.get(hash));
+			if (stored.exists() && (size < 0 || stored.length() == size))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records that a stored file was moved, e.g. sorted into a folder.
+	 */
+	synchronized void moved(File from, File to) {
+		String path = relative(from);
+		List<String> named = hashes.get(from.getName());
+		if (named == null)
+			return;
+		String moved = null;
+		for (String hash : named) {
+			if (paths.get(hash).equals(path))
+				moved = hash;
+		}
+		if (moved != null)
+			add(moved, to);
+	}
+
+	synchronized void close() {
+		closeQuietly();
+		// a late move by a stage still running is only kept in memory
+		closed = true;
+	}
+
+	/**
+	 * @return e.g. IMG_0001-2.JPG for IMG_0001.JPG and n = 2
+	 */
+	static File numbered(File destination, int n) {
+		String name = destination.getName();
+		int dot = name.lastIndexOf('.');
+		String numbered = dot > 0 ? name.substring(0, dot) + "-" + n
+				+ name.substring(dot) : name + "-" + n;
+		return new File(destination.getParentFile(), numbered);
+	}
+
+	static byte[] hashOf(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = new FileInputStream(file);
+		try {
+			int length;
+			while ((length = in.read(buffer)) > 0)
+				digest.update(buffer, 0, length);
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	private void add(String hash, File stored) {
+		String path = relative(stored);
+		put(hash, path);
+		if (closed)
+			return;
+		try {
+			if (out == null)
+				out = new FileOutputStream(file, true);
+			out.write(line(hash, path));
+			records++;
+			compactIfOutdated();
+		} catch (IOException e) {
+			// keep working from memory
+			e.printStackTrace();
+		}
+	}
+
+	private void compactIfOutdated() throws IOException {
+		if (records > COMPACT_MIN_RECORDS && records > 2 * paths.size())
+			compact();
+	}
+
+	/**
+	 * Rewrites the index with one line per stored image that still exists,
+	 * and replaces the old file atomically.
+	 */
+	private void compact() throws IOException {
+		closeQuietly();
+		for (String hash : new ArrayList<String>(paths.keySet())) {
+			if (!resolve(paths.get(hash)).exists())
+				forget(hash);
+		}
+
+		File compacted = new File(file.getPath() + ".tmp");
+		FileOutputStream tmp = new FileOutputStream(compacted);
+		try {
+			for (Map.Entry<String, String> entry : paths.entrySet())
+				tmp.write(line(entry.getKey(), entry.getValue()));
+			tmp.getFD().sync();
+		} finally {
+			tmp.close();
+		}
+		if (!compacted.renameTo(file))
+			throw new IOException("Could not replace " + file);
+		records = paths.size();
+	}
+
+	private void closeQuietly() {
+		if (out != null) try { out.close(); } catch (IOException logOrIgnore) {}
+		out = null;
+	}
+
+	private static byte[] line(String hash, String path) throws IOException {
+		return (hash + " " + path + "\n").getBytes("UTF-8");
+	}
+
+	private void put(String hash, String path) {
+		forget(hash);
+		paths.put(hash, path);
+		String name = resolve(path).getName();
+		List<String> named = hashes.get(name);
+		if (named == null) {
+			named = new ArrayList<String>(1);
+			hashes.put(name, named);
+		}
+		named.add(hash);
+	}
+
+	private void forget(String hash) {
+		String path = paths.remove(hash);
+		if (path == null)
+			return;
+		String name = resolve(path).getName();
+		List<String> named = hashes.get(name);
+		if (named != null && named.remove(hash) && named.isEmpty())
+			hashes.remove(name);
+	}
+
+	/**
+	 * @return the path of the file relative to the folder of the index, with
+	 *         '/' as separator, or its absolute path if it is outside
+	 */
+	private String relative(File stored) {
+		String path = stored.getAbsolutePath();
+		String prefix = folder.getPath() + File.separator;
+		if (!path.startsWith(prefix))
+			return path;
+		return path.substring(prefix.length()).replace(File.separatorChar,
+				'/');
+	}
+
+	private File resolve(String path) {
+		File stored = new File(path);
+		return stored.isAbsolute() ? stored : new File(folder, path);
+	}
+
+	private void load() throws IOException {
+		if (!file.exists())
+			return;
+		byte[] content = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			int length;
+			while (read < content.length
+					&& (length = in.read(content, read, content.length - read)) > 0)
+				read += length;
+		} finally {
+			in.close();
+		}
+		for (String line : new String(content, "UTF-8").split("\n")) {
+			int space = line.indexOf(' ');
+			// a later line of the same content is where it was moved to
+			if (space > 0 && space < line.length() - 1) {
+				put(line.substring(0, space), line.substring(space + 1));
+				records++;
+			}
+		}
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * A file that is being downloaded. The data is streamed through a
+ * FileChannel into a temporary ".part" file next to the destination, which is
+ * renamed to the destination only after the transfer completed. So nobody
+ * ever sees a truncated image under its final name.
+ * 
+ * A transfer that broke off can be suspended, which keeps the part file, and
+ * later be continued at the end of the data received so far.
+ * 
+ * With a ContentIndex, the content hash is computed from the buffers while
+ * they are written, so the file is never read back. Only a resumed transfer
+ * reads the part it keeps once. The index then decides where the file goes.
+ */
+class DownloadFile {
+	static final String PART_SUFFIX = ".part";
+
+	private final File destination;
+	private final File partFile;
+	private final ContentIndex index;
+	private MessageDigest digest;
+	private long expectedEnd = -1;
+	private File committed;
+	private boolean duplicate;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long written;
+	private Tee tee;
+	private byte[] teeBuffer;
+	private RelayUploader.Upload relay;
+	private boolean relaying;
+
+	/**
+	 * Sees the data of a file in order while it is written, e.g. to look
+	 * into the file before it is complete.
+	 */
+	interface Tee {
+		/**
+		 * @return false if the tee doesn't need more data
+		 */
+		boolean write(byte[] data, int offset, int length);
+	}
+
+	DownloadFile(File destination) {
+		this(destination, null);
+	}
+
+	DownloadFile(File destination, ContentIndex index) {
+		this.destination = destination;
+		this.partFile = new File(destination.getPath() + PART_SUFFIX);
+		this.index = index;
+	}
+
+	/**
+	 * @return the number of bytes of an interrupted transfer that can be
+	 *         continued, at most the given recorded offset. 0 if the part file
+	 *         is missing or shorter than recorded.
+	 */
+	long resumableLength(long recordedOffset) {
+		long length = partFile.length();
+		return length >= recordedOffset ? recordedOffset : 0;
+	}
+
+	/**
+	 * Passes the data to the tee while it is written. Only a transfer from the
+	 * start of the file is passed, a resumed one is not.
+	 */
+	void setTee(Tee tee) {
+		this.tee = tee;
+	}
+
+	/**
+	 * Streams the data to the relay while it is written, and tells it if the
+	 * transfer fails. A resumed transfer isn't streamed.
+	 */
+	void setRelay(RelayUploader.Upload relay) {
+		this.relay = relay;
+	}
+
+	/**
+	 * @return the upload of this transfer or null
+	 */
+	RelayUploader.Upload getRelay() {
+		return relay;
+	}
+
+	/**
+	 * Opens the part file for writing.
+	 * 
+	 * @param offset
+	 *            number of bytes of the part file to keep, 0 to start over
+	 * @param expectedLength
+	 *            the Content-Length announced by the card or -1 if unknown.
+	 *            If known, the file is preallocated to avoid fragmentation
+	 *            and repeated growing of the file.
+	 */
+	void open(long offset, long expectedLength) throws IOException {
+		raf = new RandomAccessFile(partFile, "rw");
+		channel = raf.getChannel();
+		written = offset;
+		if (offset > 0)
+			tee = null;
+		else if (relay != null)
+			relay.open();
+		relaying = relay != null && offset == 0;
+		expectedEnd = expectedLength >= 0 ? offset + expectedLength : -1;
+		raf.setLength(expectedLength > 0 ? offset + expectedLength : offset);
+		if (index != null) {
+			digest = ContentIndex.newDigest();
+			if (offset > 0)
+				digestKept(offset);
+		}
+	}
+
+	/**
+	 * Adds the part of an interrupted transfer that is kept to the hash.
+	 */
+	private void digestKept(long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = 0;
+		while (position < length) {
+			buffer.clear();
+			if (length - position < buffer.capacity())
+				buffer.limit((int) (length - position));
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new EOFException("Part file shorter than " + length);
+			position += read;
+			buffer.flip();
+			digest.update(buffer);
+		}
+	}
+
+	/**
+	 * Copies the stream to the end of the file. The buffer is filled
+	 * completely before it is handed to the channel, so large buffers
+	 * translate into few large writes.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	long copyFrom(InputStream input, byte[] buffer) throws IOException {
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long copied = 0;
+		boolean eof = false;
+		while (!eof) {
+			int filled = 0;
+			try {
+				while (filled < buffer.length) {
+					int length = input.read(buffer, filled, buffer.length
+							- filled);
+					if (length < 0) {
+						eof = true;
+						break;
+					}
+					// right away, not after the buffer is full
+					if (tee != null || relaying)
+						teeWrite(buffer, filled, length);
+					filled += length;
+				}
+			} finally {
+				// keep what arrived before a broken connection, it is resumed from there
+				wrapped.clear().limit(filled);
+				if (digest != null)
+					digest.update(buffer, 0, filled);
+				while (wrapped.hasRemaining())
+					written += channel.write(wrapped, written);
+				copied += filled;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Writes the buffer at the given position of the file, for callers that
+	 * read the data themselves.
+	 */
+	void write(ByteBuffer buffer, long position) throws IOException {
+		if (tee != null || relaying)
+			teeFrom(buffer);
+		if (digest != null) {
+			if (position == written)
+				digest.update(buffer.duplicate());
+			else
+				digest = null; // out of order, hashed from the file on commit
+		}
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+		written = Math.max(written, position);
+	}
+
+	private void teeFrom(ByteBuffer buffer) {
+		if (teeBuffer == null)
+			teeBuffer = new byte[Math.min(buffer.remaining(), 64 * 1024)];
+		ByteBuffer data = buffer.duplicate();
+		while (data.hasRemaining() && (tee != null || relaying)) {
+			int length = Math.min(data.remaining(), teeBuffer.length);
+			data.get(teeBuffer, 0, length);
+			teeWrite(teeBuffer, 0, length);
+		}
+		if (tee == null && !relaying)
+			teeBuffer = null;
+	}
+
+	private void teeWrite(byte[] data, int offset, int length) {
+		if (tee != null && !tee.write(data, offset, length))
+			tee = null;
+		if (relaying && !relay.write(data, offset, length))
+			relaying = false;
+	}
+
+	boolean isOpen() {
+		return channel != null;
+	}
+
+	long getWritten() {
+		return written;
+	}
+
+	File getDestination() {
+		return destination;
+	}
+
+	/**
+	 * @return the file the download was stored in, which differs from the
+	 *         destination if the name was taken or the content was a
+	 *         duplicate. null before commit().
+	 */
+	File getCommitted() {
+		return committed;
+	}
+
+	/**
+	 * @return true if the committed content was downloaded before and the
+	 *         download was not stored again
+	 */
+	boolean isDuplicate() {
+		return duplicate;
+	}
+
+	/**
+	 * Cuts off unused preallocated space and moves the part file atomically
+	 * to its destination, or where the content index puts it.
+	 * 
+	 * @throws EOFException
+	 *             if less data arrived than the card announced. The file
+	 *             stays open, so the transfer can be suspended and resumed.
+	 */
+	void commit() throws IOException {
+		if (expectedEnd >= 0 && written != expectedEnd)
+			throw new EOFException("Received " + written + " of "
+					+ expectedEnd + " bytes");
+		try {
+			channel.truncate(written);
+		} finally {
+			close();
+		}
+		if (index == null) {
+			if (!partFile.renameTo(destination))
+				throw new IOException("Could not rename " + partFile + " to "
+						+ destination);
+			committed = destination;
+			return;
+		}
+
+		String hash = ContentIndex.toHex(digest != null ? digest.digest()
+				: ContentIndex.hashOf(partFile));
+		committed = index.store(partFile, destination, hash);
+		if (committed == null) {
+			duplicate = true;
+			committed = index.find(hash);
+		}
+	}
+
+	/**
+	 * Keeps the data received so far in the part file so the transfer can be
+	 * resumed later.
+	 * 
+	 * @return the number of bytes kept
+	 */
+	long suspend() {
+		endRelay();
+		if (channel != null) {
+			try {
+				channel.truncate(written);
+			} catch (IOException e) {
+				written = 0;
+			}
+		}
+		close();
+		if (written == 0)
+			partFile.delete();
+		return written;
+	}
+
+	/**
+	 * Closes and deletes the part file after a failed transfer.
+	 */
+	void abort() {
+		endRelay();
+		close();
+		partFile.delete();
+	}
+
+	private void endRelay() {
+		relaying = false;
+		if (relay != null)
+			relay.abort();
+	}
+
+	private void close() {
+		if (raf != null) try { raf.close(); } catch (IOException logOrIgnore) {}
+		raf = null;
+		channel = null;
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of the images announced by the card and their download
+ * progress, so images that were announced but not downloaded survive
+ * reconnects, restarts and crashes of the process.
+ * 
+ * Every change is one line "&lt;status&gt; &lt;path on card&gt;", written to the
+ * file immediately, so a crash of the process loses nothing. The expensive
+ * sync to the storage device is batched: the last lines of a burst are
+ * synced a second after they were written at the latest, even if no further
+ * line follows. When most lines are outdated the journal is rewritten with
+ * just the current entries.
+ * 
+ * If the journal file can't be written, the journal keeps working in memory
+ * only.
+ */
+class DownloadJournal {
+	static final char ANNOUNCED = 'A';
+	static final char STARTED = 'S';
+	static final char COMPLETED = 'C';
+	static final char DROPPED = 'D';
+
+	private static final int SYNC_BATCH_RECORDS = 16;
+	private static final long SYNC_INTERVAL_MS = 1000;
+	private static final int COMPACT_MIN_RECORDS = 512;
+	private static final int MAX_COMPLETED_ENTRIES = 1000;
+
+	private final File file;
+	// latest status of every image, in the order they were announced
+	private final Map<String, Character> entries = new LinkedHashMap<String, Character>();
+	private int completedEntries;
+	private FileOutputStream out;
+	private int records;
+	private int unsyncedRecords;
+	private long lastSync;
+	private ScheduledFuture<?> pendingSync;
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private DownloadJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the journal from the file and opens it for appending.
+	 */
+	static DownloadJournal open(File file) {
+		DownloadJournal journal = new DownloadJournal(file);
+		try {
+			journal.replay();
+			journal.compact();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return journal;
+	}
+
+	/**
+	 * Records a newly announced image.
+	 * 
+	 * @return false if the image is already waiting for download or being
+	 *         downloaded
+	 */
+	synchronized boolean announced(String path) {
+		Character status = entries.get(path);
+		if (status != null && (status == ANNOUNCED || status == STARTED))
+			return false;
+		update(path, ANNOUNCED);
+		return true;
+	}
+
+	synchronized void started(String path) {
+		update(path, STARTED);
+	}
+
+	synchronized void completed(String path) {
+		update(path, COMPLETED);
+	}
+
+	/**
+	 * Records an image that can't be downloaded anymore, e.g. because it was
+	 * deleted from the card.
+	 */
+	synchronized void dropped(String path) {
+		if (entries.remove(path) != null)
+			append(DROPPED, path);
+	}
+
+	synchronized boolean isCompleted(String path) {
+		Character status = entries.get(path);
+		return status != null && status == COMPLETED;
+	}
+
+	/**
+	 * @return the images announced but not downloaded yet, oldest first
+	 */
+	synchronized List<String> pending() {
+		List<String> pending = new ArrayList<String>();
+		for (Map.Entry<String, Character> entry : entries.entrySet()) {
+			if (entry.getValue() != COMPLETED)
+				pending.add(entry.getKey());
+		}
+		return pending;
+	}
+
+	synchronized void close() {
+		if (pendingSync != null)
+			pendingSync.cancel(false);
+		if (out == null)
+			return;
+		try {
+			sync();
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+
+	private void update(String path, char status) {
+		Character previous = entries.remove(path);
+		if (previous != null && previous == COMPLETED)
+			completedEntries--;
+		entries.put(path, status);
+		if (status == COMPLETED)
+			completedEntries++;
+		append(status, path);
+
+		if (records > COMPACT_MIN_RECORDS && records > 2 * entries.size()) {
+			try {
+				compact();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void append(char status, String path) {
+		records++;
+		if (out == null)
+			return;
+		try {
+			out.write(line(status, path));
+			if (++unsyncedRecords >= SYNC_BATCH_RECORDS
+					|| System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS)
+				sync();
+			else if (pendingSync == null)
+				scheduleSync();
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Syncs the lines written so far after the sync interval, in case no
+	 * further line comes.
+	 */
+	private void scheduleSync() {
+		pendingSync = SharedExecutors.SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				SharedExecutors.WORKERS.execute(flush);
+			}
+		}, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void flush() {
+		pendingSync = null;
+		if (out == null || unsyncedRecords == 0)
+			return;
+		try {
+			sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * @return the number of lines written but not synced to the storage
+	 *         device yet
+	 */
+	synchronized int getUnsyncedRecords() {
+		return unsyncedRecords;
+	}
+
+	private void sync() throws IOException {
+		out.getFD().sync();
+		unsyncedRecords = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	private void replay() throws IOException {
+		if (!file.exists())
+			return;
+		byte[] content = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			for (int length; read < content.length
+					&& (length = in.read(content, read, content.length - read)) > 0;)
+				read += length;
+		} finally {
+			in.close();
+		}
+
+		// a last line without line feed was torn by a crash and is ignored
+		int start = 0;
+		for (int end = 0; end < content.length; end++) {
+			if (content[end] != '\n')
+				continue;
+			if (end - start >= 3 && content[start + 1] == ' ')
+				replay((char) content[start], new String(content, start + 2,
+						end - start - 2, "UTF-8"));
+			start = end + 1;
+		}
+	}
+
+	private void replay(char status, String path) {
+		Character previous = entries.remove(path);
+		if (previous != null && previous == COMPLETED)
+			completedEntries--;
+		if (status == DROPPED)
+			return;
+		entries.put(path, status);
+		if (status == COMPLETED)
+			completedEntries++;
+	}
+
+	/**
+	 * Rewrites the journal with one line per entry, forgetting the oldest
+	 * completed images, and replaces the old file atomically.
+	 */
+	private void compact() throws IOException {
+		closeQuietly();
+
+		Iterator<Map.Entry<String, Character>> it = entries.entrySet()
+				.iterator();
+		while (completedEntries > MAX_COMPLETED_ENTRIES && it.hasNext()) {
+			if (it.next().getValue() == COMPLETED) {
+				it.remove();
+				completedEntries--;
+			}
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		File compacted = new File(file.getPath() + ".tmp");
+		FileOutputStream tmp = new FileOutputStream(compacted);
+		try {
+			for (Map.Entry<String, Character> entry : entries.entrySet())
+				tmp.write(line(entry.getValue(), entry.getKey()));
+			tmp.getFD().sync();
+		} finally {
+			tmp.close();
+		}
+		if (!compacted.renameTo(file))
+			throw new IOException("Could not replace " + file);
+
+		records = entries.size();
+		out = new FileOutputStream(file, true);
+		unsyncedRecords = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	private void closeQuietly() {
+		if (out != null) try { out.close(); } catch (IOException logOrIgnore) {}
+		out = null;
+	}
+
+	private static byte[] line(char status, String path) throws IOException {
+		return (status + " " + path + "\n").getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.psit.transwatcher.DownloadRule.Action;
+
+/**
+ * The queue the download workers take their files from. The next file is the
+ * first by:
+ * <ol>
+ * <li>live shots before images found by the catch-up sync, so a long
+ * catch-up never delays a fresh shot</li>
+ * <li>the priority of the download rule matching the name, by default JPEG
+ * before other files before RAW</li>
+ * <li>smaller before larger, if the sizes are known from the card's
+ * listing</li>
+ * <li>the order they were queued in</li>
+ * </ol>
+ * A file passed over by MAX_BYPASSED files queued after it goes next, so a
+ * steady stream of preferred files can't starve it. Files of defer rules are
+ * only taken when nothing else waits.
+ * 
+ * A file is handed out as the entry it waits in, which keeps the time the
+ * card announced it until the download ends.
+ */
+class DownloadQueue {
+	static final int MAX_BYPASSED = 16;
+
+	static class Entry {
+		final String path;
+		final boolean catchUp;
+		// System.nanoTime() of the announcement, 0 if unknown, e.g. for
+		// files of the catch-up sync or queued again after a reconnect
+		final long announcedAt;
+		final int priority;
+		final long size;
+		int bypassed;
+
+		Entry(String path, boolean catchUp, long announcedAt,
+				int priority, long size) {
+			this.path = path;
+			this.catchUp = catchUp;
+			this.announcedAt = announcedAt;
+			this.priority = priority;
+			this.size = size;
+		}
+
+		boolean before(Entry other) {
+			if (catchUp != other.catchUp)
+				return !catchUp;
+			if (priority != other.priority)
+				return priority < other.priority;
+			return size >= 0 && other.size >= 0 && size < other.size;
+		}
+	}
+
+	// in the order queued
+	private final LinkedList<Entry> waiting = new LinkedList<Entry>();
+	private final LinkedList<Entry> deferred = new LinkedList<Entry>();
+	private volatile List<DownloadRule> rules = DownloadRule.defaults();
+	private volatile Runnable onAdd;
+	private int maxSize;
+
+	/**
+	 * Sets a callback run whenever files were added, for consumers that don't
+	 * wait in take().
+	 */
+	void setOnAdd(Runnable onAdd) {
+		this.onAdd = onAdd;
+	}
+
+	/**
+	 * Sets the rules deciding the order of files queued from now on.
+	 */
+	void setRules(List<DownloadRule> rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * @return true if a skip rule matches the file, so it is not to be queued
+	 */
+	boolean isSkipped(String path) {
+		DownloadRule rule = DownloadRule.match(rules, path);
+		return rule != null && rule.getAction() == Action.SKIP;
+	}
+
+	/**
+	 * Queues a file the card just announced.
+	 */
+	void add(String path) {
+		long announcedAt = System.nanoTime();
+		synchronized (this) {
+			queue(path, false, announcedAt, -1, false);
+			grown();
+		}
+		added();
+	}
+
+	/**
+	 * Queues files announced earlier, e.g. before a reconnect.
+	 */
+	void addAll(Collection<String> paths) {
+		synchronized (this) {
+			for (String path : paths)
+				queue(path, false, 0, -1, false);
+			grown();
+		}
+		added();
+	}
+
+	/**
+	 * Queues a file that was taken but not downloaded again, at the end.
+	 */
+	void requeue(Entry entry) {
+		synchronized (this) {
+			queue(entry.path, entry.catchUp, entry.announcedAt, entry.size,
+					false);
+			grown();
+		}
+		added();
+	}
+
+	/**
+	 * Puts files that were taken but not downloaded back in front of the
+	 * files queued after them, in their order.
+	 */
+	void addFirst(List<Entry> entries) {
+		synchronized (this) {
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				Entry entry = entries.get(i);
+				queue(entry.path, entry.catchUp, entry.announcedAt,
+						entry.size, true);
+			}
+			grown();
+		}
+		added();
+	}
+
+	/**
+	 * @param size
+	 *            the size of the image in bytes or -1 if unknown
+	 */
+	void addCatchUp(String path, long size) {
+		synchronized (this) {
+			queue(path, true, 0, size, false);
+			grown();
+		}
+		added();
+	}
+
+	/**
+	 * Waits for the next file to download.
+	 */
+	synchronized Entry take() throws InterruptedException {
+		while (waiting.isEmpty() && deferred.isEmpty())
+			wait();
+		return next();
+	}
+
+	/**
+	 * @return the next file to download or null if there is none
+	 */
+	synchronized Entry poll() {
+		return next();
+	}
+
+	synchronized void clear() {
+		waiting.clear();
+		deferred.clear();
+	}
+
+	synchronized int size() {
+		return waiting.size() + deferred.size();
+	}
+
+	/**
+	 * @return the most files that were waiting at the same time
+	 */
+	synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	private void queue(String path, boolean catchUp, long announcedAt,
+			long size, boolean first) {
+		DownloadRule rule = DownloadRule.match(rules, path);
+		Entry entry = new Entry(path, catchUp, announcedAt, rule != null ? rule
+				.getPriority() : DownloadRule.DEFAULT_PRIORITY, size);
+		LinkedList<Entry> list = rule != null
+				&& rule.getAction() == Action.DEFER ? deferred : waiting;
+		if (first)
+			list.addFirst(entry);
+		else
+			list.addLast(entry);
+	}
+
+	private Entry next() {
+		if (waiting.isEmpty())
+			return deferred.isEmpty() ? null : deferred.removeFirst();
+
+		Entry next = null;
+		for (Entry entry : waiting) {
+			if (entry.bypassed >= MAX_BYPASSED) {
+				next = entry;
+				break;
+			}
+			if (next == null || entry.before(next))
+				next = entry;
+		}
+		// the files queued before it were passed over once more
+		Iterator<Entry> entries = waiting.iterator();
+		while (true) {
+			Entry entry = entries.next();
+			if (entry == next) {
+				entries.remove();
+				return next;
+			}
+			entry.bypassed++;
+		}
+	}
+
+	private void grown() {
+		maxSize = Math.max(maxSize, size());
+		notifyAll();
+	}
+
+	private void added() {
+		Runnable callback = onAdd;
+		if (callback != null)
+			callback.run();
+	}
+}
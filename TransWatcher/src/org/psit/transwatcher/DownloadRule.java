@@ -0,0 +1,160 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides by its name where an announced file goes in the download queue.
+ * The pattern is matched against the file name without folder, ignoring
+ * case; * stands for any characters, ? for one. Of a list of rules the first
+ * matching one applies, files no rule matches get DEFAULT_PRIORITY.
+ * 
+ * Rules can be written as text, e.g. for a settings file: "*.JPG=0" queues
+ * with priority 0, "*.MOV=defer" waits until nothing else is queued and
+ * "*.THM=skip" never downloads.
+ */
+public class DownloadRule {
+	public static final int DEFAULT_PRIORITY = 1;
+	public enum Action { QUEUE, DEFER, SKIP };
+
+	private static final List<String> JPEG = Arrays.asList("*.JPG", "*.JPEG");
+	private static final List<String> RAW = Arrays.asList("*.CR2", "*.CR3",
+			"*.NEF", "*.NRW", "*.ARW", "*.SRF", "*.SR2", "*.RAF", "*.ORF",
+			"*.RW2", "*.PEF", "*.DNG", "*.SRW", "*.X3F");
+
+	private final String glob;
+	private final Pattern pattern;
+	private final Action action;
+	private final int priority;
+
+	private DownloadRule(String glob, Action action, int priority) {
+		this.glob = glob;
+		this.pattern = Pattern.compile(toRegex(glob), Pattern.CASE_INSENSITIVE);
+		this.action = action;
+		this.priority = priority;
+	}
+
+	/**
+	 * Queues matching files with the given priority. Lower ones are
+	 * downloaded first.
+	 */
+	public static DownloadRule queue(String glob, int priority) {
+		return new DownloadRule(glob, Action.QUEUE, priority);
+	}
+
+	/**
+	 * Downloads matching files only when no other file waits.
+	 */
+	public static DownloadRule defer(String glob) {
+		return new DownloadRule(glob, Action.DEFER, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Never downloads matching files.
+	 */
+	public static DownloadRule skip(String glob) {
+		return new DownloadRule(glob, Action.SKIP, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * @return the rules used unless others are set: the JPEG of a RAW+JPEG
+	 *         shot first, the RAW after everything else
+	 */
+	public static List<DownloadRule> defaults() {
+		List<DownloadRule> rules = new ArrayList<DownloadRule>();
+		for (String glob : JPEG)
+			rules.add(queue(glob, 0));
+		for (String glob : RAW)
+			rules.add(queue(glob, 2));
+		return Collections.unmodifiableList(rules);
+	}
+
+	/**
+	 * Parses a rule written as "pattern=priority", "pattern=defer" or
+	 * "pattern=skip".
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if it is none of these
+	 */
+	public static DownloadRule parse(String rule) {
+		int eq = rule.lastIndexOf('=');
+		String glob = eq > 0 ? rule.substring(0, eq).trim() : "";
+		if (glob.length() == 0)
+			throw new IllegalArgumentException("Not a download rule: " + rule);
+		String what = rule.substring(eq + 1).trim().toLowerCase(Locale.ENGLISH);
+		if (what.equals("defer"))
+			return defer(glob);
+		if (what.equals("skip"))
+			return skip(glob);
+		try {
+			return queue(glob, Integer.parseInt(what));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a download rule: " + rule);
+		}
+	}
+
+	/**
+	 * @return the first of the rules matching the file or null
+	 */
+	static DownloadRule match(List<DownloadRule> rules, String path) {
+		String name = new File(path).getName();
+		for (DownloadRule rule : rules) {
+			if (rule.pattern.matcher(name).matches())
+				return rule;
+		}
+		return null;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	@Override
+	public String toString() {
+		return glob + "="
+				+ (action == Action.QUEUE ? String.valueOf(priority) : action
+						.name().toLowerCase(Locale.ENGLISH));
+	}
+
+	private static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if (c == '*')
+				regex.append(".*");
+			else if (c == '?')
+				regex.append('.');
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return regex.toString();
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.MessageLevel;
+import org.psit.transwatcher.TransWatcher.State;
+
+/**
+ * Delivers the events of a watcher to its listeners on a dispatcher thread
+ * of its own, so a slow listener never holds up the network or download
+ * threads posting the events.
+ * 
+ * Events wait in a bounded queue. If it is full, messages are dropped and
+ * counted, while downloads and exceptions are kept in an overflow queue.
+ * Messages below the message level are never built: their text is
+ * formatted on the dispatcher thread and only if a listener is registered.
+ * A burst of state changes is delivered as the latest state only.
+ * 
+ * The dispatcher thread ends when no events came for a while and is started
+ * again by the next event.
+ */
+class EventBus {
+	private static final int QUEUE_SIZE = 1024;
+	private static final long DISPATCHER_IDLE_MS = 30000;
+
+	private enum Type { MESSAGE, EXCEPTION, STATE, DOWNLOADED, THUMBNAIL };
+
+	private static class Event {
+		final Type type;
+		final String format;
+		final Object[] args;
+		final Exception exception;
+		final byte[] data;
+
+		Event(Type type, String format, Object[] args, Exception exception) {
+			this(type, format, args, exception, null);
+		}
+
+		Event(Type type, String format, Object[] args, Exception exception,
+				byte[] data) {
+			this.type = type;
+			this.format = format;
+			this.args = args;
+			this.exception = exception;
+			this.data = data;
+		}
+	}
+
+	private static final Event STATE_CHANGED = new Event(Type.STATE, null,
+			null, null);
+
+	private final String name;
+	private final Set<Listener> listeners = new CopyOnWriteArraySet<Listener>();
+	private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(
+			QUEUE_SIZE);
+	private final Queue<Event> overflow = new ConcurrentLinkedQueue<Event>();
+	private final AtomicInteger droppedMessages = new AtomicInteger();
+	private final AtomicReference<State> latestState = new AtomicReference<State>();
+	private final AtomicBoolean statePending = new AtomicBoolean();
+	private volatile MessageLevel messageLevel = MessageLevel.INFO;
+	private Thread dispatcher;
+
+	// only used by the dispatcher thread
+	private State deliveredState;
+
+	EventBus(String name) {
+		this.name = name;
+	}
+
+	void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	void setMessageLevel(MessageLevel messageLevel) {
+		this.messageLevel = messageLevel;
+	}
+
+	/**
+	 * @return true if messages of the level reach a listener. Lets callers
+	 *         skip preparing the arguments of a message.
+	 */
+	boolean isEnabled(MessageLevel level) {
+		return level.compareTo(messageLevel) >= 0 && !listeners.isEmpty();
+	}
+
+	/**
+	 * Posts a message. The text is String.format(format, args), built on the
+	 * dispatcher thread.
+	 */
+	void message(MessageLevel level, String format, Object... args) {
+		if (!isEnabled(level))
+			return;
+		if (!queue.offer(new Event(Type.MESSAGE, format, args, null)))
+			droppedMessages.incrementAndGet();
+		ensureDispatching();
+	}
+
+	void exception(Exception ex) {
+		post(new Event(Type.EXCEPTION, null, null, ex));
+	}
+
+	void downloaded(String filePath) {
+		post(new Event(Type.DOWNLOADED, filePath, null, null));
+	}
+
+	void thumbnail(String filePath, byte[] jpeg) {
+		post(new Event(Type.THUMBNAIL, filePath, null, null, jpeg));
+	}
+
+	boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Posts a state change. Changes arriving before the previous one was
+	 * delivered replace it.
+	 */
+	void state(State state) {
+		latestState.set(state);
+		if (statePending.compareAndSet(false, true))
+			post(STATE_CHANGED);
+	}
+
+	private void post(Event event) {
+		if (listeners.isEmpty()) {
+			if (event == STATE_CHANGED)
+				statePending.set(false);
+			return;
+		}
+		if (!queue.offer(event))
+			overflow.add(event);
+		ensureDispatching();
+	}
+
+	private synchronized void ensureDispatching() {
+		if (dispatcher != null)
+			return;
+		dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, name + "-Events");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * @return true if the dispatcher may end, because no events are waiting
+	 */
+	private synchronized boolean retire() {
+		if (!queue.isEmpty() || !overflow.isEmpty())
+			return false;
+		dispatcher = null;
+		return true;
+	}
+
+	private void dispatch() {
+		while (true) {
+			Event event;
+			try {
+				event = queue.poll(DISPATCHER_IDLE_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				event = null;
+			}
+			// retire only after the queue stayed empty for the whole wait
+			boolean idle = event == null;
+			if (event != null)
+				deliver(event);
+			// the overflow only fills while the queue is full
+			while ((event = overflow.poll()) != null)
+				deliver(event);
+
+			int dropped = droppedMessages.getAndSet(0);
+			if (dropped > 0)
+				deliver(new Event(Type.MESSAGE, "%d messages dropped.",
+						new Object[] { dropped }, null));
+
+			if (idle && retire())
+				return;
+		}
+	}
+
+	private void deliver(Event event) {
+		try {
+			switch (event.type) {
+			case MESSAGE:
+				String msg = (event.args.length == 0 ? event.format : String
+						.format(event.format, event.args)) + "\n";
+				for (Listener listener : listeners)
+					listener.ping(msg);
+				break;
+			case EXCEPTION:
+				for (Listener listener : listeners)
+					listener.exception(event.exception);
+				break;
+			case STATE:
+				statePending.set(false);
+				State state = latestState.get();
+				if (state == deliveredState)
+					break;
+				deliveredState = state;
+				for (Listener listener : listeners)
+					listener.state(state);
+				break;
+			case DOWNLOADED:
+				for (Listener listener : listeners)
+					listener.downloaded(event.format);
+				break;
+			case THUMBNAIL:
+				for (Listener listener : listeners)
+					listener.thumbnail(event.format, event.data);
+				break;
+			}
+		} catch (RuntimeException e) {
+			// a broken listener must not stop the others
+			e.printStackTrace();
+		}
+	}
+}
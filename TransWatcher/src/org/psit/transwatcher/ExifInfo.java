@@ -0,0 +1,153 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.psit.transwatcher.ExifThumbnailScanner.Tiff;
+
+/**
+ * The camera and the time of the shot from the EXIF data of an image: from
+ * the APP1 segment of a JPEG or from IFD0 of a TIFF based RAW file. Only
+ * the start of the file is read.
+ */
+class ExifInfo {
+	static final int MAX_READ = 128 * 1024;
+
+	private static final int TAG_MAKE = 0x010F;
+	private static final int TAG_MODEL = 0x0110;
+	private static final int TAG_DATE_TIME = 0x0132;
+	private static final int TAG_EXIF_IFD = 0x8769;
+	private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+	String make;
+	String model;
+	// when the shot was taken, or else the file last changed in the camera
+	Date taken;
+
+	/**
+	 * @return the EXIF data of the file or null if it has none
+	 */
+	static ExifInfo read(File file) throws IOException {
+		byte[] data = new byte[(int) Math.min(MAX_READ, file.length())];
+		InputStream in = new FileInputStream(file);
+		int length = 0;
+		try {
+			int read;
+			while (length < data.length
+					&& (read = in.read(data, length, data.length - length)) > 0)
+				length += read;
+		} finally {
+			in.close();
+		}
+		return parse(data, length);
+	}
+
+	static ExifInfo parse(byte[] data, int length) {
+		if (length < 8)
+			return null;
+		if ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8)
+			return parseJpeg(data, length);
+		return parseTiff(new Tiff(data, 0, length));
+	}
+
+	private static ExifInfo parseJpeg(byte[] data, int length) {
+		int at = 2;
+		while (at + 4 <= length && (data[at] & 0xFF) == 0xFF) {
+			int marker = data[at + 1] & 0xFF;
+			// the EXIF data is in an APPn segment before the image data
+			if (marker < 0xE0 || marker > 0xFE)
+				return null;
+			int segmentLength = (data[at + 2] & 0xFF) << 8 | data[at + 3] & 0xFF;
+			int start = at + 4;
+			int end = at + 2 + segmentLength;
+			if (marker == 0xE1 && end <= length && segmentLength >= 16
+					&& data[start] == 'E' && data[start + 1] == 'x'
+					&& data[start + 2] == 'i' && data[start + 3] == 'f'
+					&& data[start + 4] == 0 && data[start + 5] == 0)
+				return parseTiff(new Tiff(data, start + 6, end - start - 6));
+			at = end;
+		}
+		return null;
+	}
+
+	private static ExifInfo parseTiff(Tiff tiff) {
+		if (!tiff.readHeader())
+			return null;
+		ExifInfo info = new ExifInfo();
+		String dateTime = null;
+		String dateTimeOriginal = null;
+		long exifIfd = -1;
+
+		long ifd0 = tiff.uint32(4);
+		int entries0 = tiff.uint16(ifd0);
+		for (int i = 0; i < entries0; i++) {
+			long entry = ifd0 + 2 + 12L * i;
+			int tag = tiff.uint16(entry);
+			if (tag == TAG_MAKE)
+				info.make = tiff.ascii(entry);
+			else if (tag == TAG_MODEL)
+				info.model = tiff.ascii(entry);
+			else if (tag == TAG_DATE_TIME)
+				dateTime = tiff.ascii(entry);
+			else if (tag == TAG_EXIF_IFD)
+				exifIfd = tiff.uint32(entry + 8);
+		}
+		int entries = exifIfd > 0 ? tiff.uint16(exifIfd) : -1;
+		for (int i = 0; i < entries; i++) {
+			long entry = exifIfd + 2 + 12L * i;
+			if (tiff.uint16(entry) == TAG_DATE_TIME_ORIGINAL)
+				dateTimeOriginal = tiff.ascii(entry);
+		}
+
+		info.taken = parseDate(dateTimeOriginal);
+		if (info.taken == null)
+			info.taken = parseDate(dateTime);
+		if (info.make == null && info.model == null && info.taken == null)
+			return null;
+		return info;
+	}
+
+	/**
+	 * @return the time of an EXIF date like "2014:05:02 13:45:10" in the
+	 *         local time zone, null if there is no valid one
+	 */
+	static Date parseDate(String exifDate) {
+		if (exifDate == null)
+			return null;
+		SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss",
+				Locale.US);
+		format.setLenient(false);
+		try {
+			return format.parse(exifDate);
+		} catch (ParseException e) {
+			// e.g. "0000:00:00 00:00:00" of a camera without a clock
+			return null;
+		}
+	}
+}
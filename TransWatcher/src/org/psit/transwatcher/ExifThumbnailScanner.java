@@ -0,0 +1,246 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+/**
+ * Finds the thumbnail cameras embed in the EXIF data of a JPEG while the
+ * file is still arriving. The bytes are fed in order as they come; only the
+ * EXIF segment at the start of the file is kept, up to 64 KB. Scanning
+ * stops at the first image data or after MAX_SCAN bytes, so a file without
+ * a thumbnail costs nothing after its first few KB.
+ */
+class ExifThumbnailScanner implements DownloadFile.Tee {
+	static final int MAX_SCAN = 256 * 1024;
+
+	private static final int SOI = 0, MARKER = 1, MARKER_TYPE = 2,
+			LENGTH_HIGH = 3, LENGTH_LOW = 4, SKIP = 5, EXIF = 6, DONE = 7;
+	private static final int APP1 = 0xE1;
+	private static final int SOS = 0xDA;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+	private int phase = SOI;
+	private int scanned;
+	private int marker;
+	private int remaining;
+	private byte[] segment;
+	private int segmentLength;
+	private byte[] thumbnail;
+
+	/**
+	 * Scans the next bytes of the file.
+	 * 
+	 * @return false once the thumbnail was found or the file turned out to
+	 *         have none, so no further data is needed
+	 */
+	@Override
+	public boolean write(byte[] data, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		while (i < end && phase != DONE) {
+			if (phase == SKIP) {
+				int skipped = Math.min(remaining, end - i);
+				remaining -= skipped;
+				i += skipped;
+				scanned += skipped;
+				if (remaining == 0)
+					phase = MARKER;
+			} else if (phase == EXIF) {
+				int copied = Math.min(remaining, end - i);
+				System.arraycopy(data, i, segment, segmentLength, copied);
+				segmentLength += copied;
+				remaining -= copied;
+				i += copied;
+				scanned += copied;
+				if (remaining == 0) {
+					thumbnail = parseExif(segment, segmentLength);
+					segment = null;
+					phase = thumbnail != null ? DONE : MARKER;
+				}
+			} else {
+				next(data[i++] & 0xFF);
+				scanned++;
+			}
+			if (scanned >= MAX_SCAN)
+				phase = DONE;
+		}
+		return phase != DONE;
+	}
+
+	/**
+	 * @return the JPEG of the thumbnail or null if none was found (yet)
+	 */
+	byte[] getThumbnail() {
+		return thumbnail;
+	}
+
+	boolean isDone() {
+		return phase == DONE;
+	}
+
+	private void next(int b) {
+		switch (phase) {
+		case SOI:
+			// FF D8
+			if (scanned == 0 && b == 0xFF)
+				return;
+			phase = scanned == 1 && b == 0xD8 ? MARKER : DONE;
+			return;
+		case MARKER:
+			phase = b == 0xFF ? MARKER_TYPE : DONE;
+			return;
+		case MARKER_TYPE:
+			if (b == 0xFF) // fill byte
+				return;
+			marker = b;
+			// the thumbnail is in an APPn segment before the image data
+			phase = b >= 0xE0 && b <= 0xFE && b != SOS ? LENGTH_HIGH : DONE;
+			return;
+		case LENGTH_HIGH:
+			remaining = b << 8;
+			phase = LENGTH_LOW;
+			return;
+		case LENGTH_LOW:
+			remaining = (remaining | b) - 2;
+			if (remaining < 0) {
+				phase = DONE;
+			} else if (remaining == 0) {
+				phase = MARKER;
+			} else if (marker == APP1) {
+				segment = new byte[remaining];
+				segmentLength = 0;
+				phase = EXIF;
+			} else {
+				phase = SKIP;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Reads the thumbnail location from IFD1 of the EXIF data.
+	 * 
+	 * @return the thumbnail or null if the segment has none
+	 */
+	static byte[] parseExif(byte[] segment, int length) {
+		// "Exif\0\0" followed by the TIFF structure
+		if (length < 14 || segment[0] != 'E' || segment[1] != 'x'
+				|| segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0
+				|| segment[5] != 0)
+			return null;
+		Tiff tiff = new Tiff(segment, 6, length - 6);
+		if (!tiff.readHeader())
+			return null;
+
+		long ifd0 = tiff.uint32(4);
+		int entries0 = tiff.uint16(ifd0);
+		if (entries0 < 0)
+			return null;
+		long ifd1 = tiff.uint32(ifd0 + 2 + 12L * entries0);
+		if (ifd1 <= 0)
+			return null;
+		int entries1 = tiff.uint16(ifd1);
+		long offset = -1;
+		long size = -1;
+		for (int i = 0; i < entries1; i++) {
+			long entry = ifd1 + 2 + 12L * i;
+			int tag = tiff.uint16(entry);
+			if (tag == TAG_THUMBNAIL_OFFSET)
+				offset = tiff.uint32(entry + 8);
+			else if (tag == TAG_THUMBNAIL_LENGTH)
+				size = tiff.uint32(entry + 8);
+		}
+		// at least the SOI and EOI markers
+		if (offset <= 0 || size < 4 || offset + size > tiff.length)
+			return null;
+		int at = tiff.start + (int) offset;
+		if ((segment[at] & 0xFF) != 0xFF || (segment[at + 1] & 0xFF) != 0xD8)
+			return null;
+		byte[] jpeg = new byte[(int) size];
+		System.arraycopy(segment, at, jpeg, 0, (int) size);
+		return jpeg;
+	}
+
+	/**
+	 * Reads numbers of a TIFF structure in its byte order. Out of range
+	 * reads return -1. Also used by ExifInfo.
+	 */
+	static class Tiff {
+		final byte[] data;
+		final int start;
+		final int length;
+		boolean littleEndian;
+
+		Tiff(byte[] data, int start, int length) {
+			this.data = data;
+			this.start = start;
+			this.length = length;
+		}
+
+		boolean readHeader() {
+			if (data[start] == 'I' && data[start + 1] == 'I')
+				littleEndian = true;
+			else if (data[start] != 'M' || data[start + 1] != 'M')
+				return false;
+			return uint16(2) == 42;
+		}
+
+		int uint16(long position) {
+			if (position < 0 || position + 2 > length)
+				return -1;
+			int at = start + (int) position;
+			int b0 = data[at] & 0xFF, b1 = data[at + 1] & 0xFF;
+			return littleEndian ? b0 | b1 << 8 : b0 << 8 | b1;
+		}
+
+		long uint32(long position) {
+			if (position < 0 || position + 4 > length)
+				return -1;
+			int at = start + (int) position;
+			long b0 = data[at] & 0xFF, b1 = data[at + 1] & 0xFF;
+			long b2 = data[at + 2] & 0xFF, b3 = data[at + 3] & 0xFF;
+			return littleEndian ? b0 | b1 << 8 | b2 << 16 | b3 << 24
+					: b0 << 24 | b1 << 16 | b2 << 8 | b3;
+		}
+
+		/**
+		 * @return the text of the ASCII entry at the given position, null if
+		 *         it is of another type or out of range
+		 */
+		String ascii(long entry) {
+			if (uint16(entry + 2) != 2)
+				return null;
+			long count = uint32(entry + 4);
+			long position = count <= 4 ? entry + 8 : uint32(entry + 8);
+			if (count <= 0 || position < 0 || position + count > length)
+				return null;
+			int at = start + (int) position;
+			int end = at;
+			// up to the terminating 0
+			while (end < at + count && data[end] != 0)
+				end++;
+			StringBuilder sb = new StringBuilder(end - at);
+			for (int i = at; i < end; i++)
+				sb.append((char) (data[i] & 0xFF));
+			return sb.toString().trim();
+		}
+	}
+}
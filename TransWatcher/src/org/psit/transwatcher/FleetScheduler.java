@@ -0,0 +1,241 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.HttpClient;
+import org.psit.transwatcher.CardFleet.Throughput;
+
+/**
+ * Hands the queued downloads of all cards of a fleet to the fleet's shared
+ * download workers. The next download is taken from the card that received
+ * the fewest bytes so far, so a card shooting a burst gets no more than its
+ * share while other cards have images waiting. A card that had nothing to
+ * download starts at the level of the busy cards instead of claiming the
+ * bytes it didn't use.
+ * 
+ * A download is charged with the average file size of its card when it
+ * starts and corrected by the real size when it ends. Each card never has
+ * more downloads running than its download concurrency.
+ */
+class FleetScheduler {
+
+	/**
+	 * A download handed to a worker.
+	 */
+	static class Task {
+		final TransWatcher watcher;
+		final HttpClient client;
+		final String cardIP;
+		final DownloadQueue.Entry file;
+		private final Card card;
+		private final long charged;
+
+		private Task(Card card, DownloadQueue.Entry file, long charged) {
+			this.watcher = card.watcher;
+			this.client = card.client;
+			this.cardIP = card.cardIP;
+			this.file = file;
+			this.card = card;
+			this.charged = charged;
+		}
+	}
+
+	private static class Card {
+		final TransWatcher watcher;
+		HttpClient client;
+		String cardIP;
+		boolean attached;
+		boolean idle = true;
+		int active;
+		long served;
+		long bytes;
+		int files;
+		long busySince;
+		long busyMillis;
+
+		Card(TransWatcher watcher) {
+			this.watcher = watcher;
+		}
+
+		long averageFileSize() {
+			return files > 0 ? bytes / files : 0;
+		}
+	}
+
+	private final Map<TransWatcher, Card> cards = new LinkedHashMap<TransWatcher, Card>();
+	private int active;
+	private long busySince;
+	private long busyMillis;
+
+	/**
+	 * Starts serving the queue of a connected card.
+	 */
+	synchronized void attach(TransWatcher watcher, HttpClient client,
+			String cardIP) {
+		Card card = cards.get(watcher);
+		if (card == null) {
+			card = new Card(watcher);
+			cards.put(watcher, card);
+		}
+		card.client = client;
+		card.cardIP = cardIP;
+		card.attached = true;
+		watcher.getQueue().setOnAdd(new Runnable() {
+			@Override
+			public void run() {
+				wakeup();
+			}
+		});
+		notifyAll();
+	}
+
+	/**
+	 * Stops handing out downloads of the card. Running downloads go on.
+	 */
+	synchronized void detach(TransWatcher watcher) {
+		Card card = cards.get(watcher);
+		if (card != null)
+			card.attached = false;
+	}
+
+	/**
+	 * Waits until the running downloads of a card ended.
+	 */
+	synchronized void awaitIdle(TransWatcher watcher, long timeoutMs) {
+		Card card = cards.get(watcher);
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining;
+		while (card != null && card.active > 0
+				&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private synchronized void wakeup() {
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until a download of any card may start.
+	 */
+	synchronized Task take() throws InterruptedException {
+		while (true) {
+			long minServed = Long.MAX_VALUE;
+			for (Card card : cards.values()) {
+				if (card.attached && !card.idle)
+					minServed = Math.min(minServed, card.served);
+			}
+
+			Card next = null;
+			for (Card card : cards.values()) {
+				if (!card.attached)
+					continue;
+				if (card.watcher.getQueue().size() == 0) {
+					if (card.active == 0)
+						card.idle = true;
+					continue;
+				}
+				if (card.idle) {
+					if (minServed != Long.MAX_VALUE)
+						card.served = Math.max(card.served, minServed);
+					card.idle = false;
+				}
+				if (card.active >= card.watcher.getCurrentDownloadConcurrency())
+					continue;
+				if (next == null || card.served < next.served
+						|| (card.served == next.served && card.active < next.active))
+					next = card;
+			}
+
+			if (next != null) {
+				DownloadQueue.Entry file = next.watcher.getQueue().poll();
+				if (file != null)
+					return started(next, file);
+			} else {
+				wait();
+			}
+		}
+	}
+
+	private Task started(Card card, DownloadQueue.Entry file) {
+		long now = System.currentTimeMillis();
+		if (card.active++ == 0)
+			card.busySince = now;
+		if (active++ == 0)
+			busySince = now;
+		long charged = card.averageFileSize();
+		card.served += charged;
+		return new Task(card, file, charged);
+	}
+
+	/**
+	 * Ends a download handed out by take().
+	 * 
+	 * @param received
+	 *            the bytes received, 0 if the download failed
+	 */
+	synchronized void finished(Task task, long received) {
+		Card card = task.card;
+		long now = System.currentTimeMillis();
+		card.served += received - task.charged;
+		if (received > 0) {
+			card.bytes += received;
+			card.files++;
+		}
+		if (--card.active == 0)
+			card.busyMillis += now - card.busySince;
+		if (--active == 0)
+			busyMillis += now - busySince;
+		notifyAll();
+	}
+
+	synchronized List<Throughput> getThroughput() {
+		long now = System.currentTimeMillis();
+		List<Throughput> result = new ArrayList<Throughput>();
+		for (Card card : cards.values()) {
+			result.add(new Throughput(card.watcher.getLastCardIP(),
+					card.bytes, card.files, card.busyMillis
+							+ (card.active > 0 ? now - card.busySince : 0)));
+		}
+		return result;
+	}
+
+	synchronized Throughput getAggregateThroughput() {
+		long bytes = 0;
+		int files = 0;
+		for (Card card : cards.values()) {
+			bytes += card.bytes;
+			files += card.files;
+		}
+		return new Throughput(null, bytes, files, busyMillis
+				+ (active > 0 ? System.currentTimeMillis() - busySince : 0));
+	}
+}
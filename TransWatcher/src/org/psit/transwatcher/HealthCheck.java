@@ -0,0 +1,173 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches that the card behind a notification connection is still reachable.
+ * All connections share the scheduler thread and the worker pool of
+ * SharedExecutors, so the number of threads stays the same no matter how
+ * often the watcher reconnects. The scheduler only decides when to probe;
+ * the probe connects on a thread of the pool, so a card that doesn't answer
+ * holds up neither the checks of other cards nor the other scheduled jobs.
+ * 
+ * The card's web server is only probed if nothing was heard from the card for
+ * a while: data on the notification socket and finished downloads count as
+ * sign of life. While downloads are running the probe interval is stretched,
+ * as the transfers themselves fail if the card goes away. If a probe fails,
+ * the notification socket is closed, which makes the watcher reconnect.
+ */
+class HealthCheck implements Runnable {
+	static final long IDLE_INTERVAL_MS = 5000;
+	static final long BUSY_INTERVAL_MS = 20000;
+	static final int PROBE_TIMEOUT_MS = 1000;
+
+	interface Callback {
+		void alive();
+
+		void lost(IOException e);
+	}
+
+	private final Socket socket;
+	private final InetSocketAddress probeAddress;
+	private final Callback callback;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile boolean busy;
+	private volatile boolean cancelled;
+	private final AtomicBoolean probing = new AtomicBoolean();
+	private ScheduledFuture<?> next;
+	private final Runnable probe = new Runnable() {
+		@Override
+		public void run() {
+			probe();
+		}
+	};
+
+	private HealthCheck(Socket socket, InetSocketAddress probeAddress,
+			Callback callback) {
+		this.socket = socket;
+		this.probeAddress = probeAddress;
+		this.callback = callback;
+	}
+
+	/**
+	 * Starts watching the card behind the notification socket by probing the
+	 * given address.
+	 */
+	static HealthCheck start(Socket socket, InetSocketAddress probeAddress,
+			Callback callback) {
+		HealthCheck check = new HealthCheck(socket, probeAddress, callback);
+		check.schedule(IDLE_INTERVAL_MS);
+		return check;
+	}
+
+	/**
+	 * Records a sign of life of the card.
+	 */
+	void activity() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Tells whether downloads are running, which stretches the probe interval.
+	 */
+	void setBusy(boolean busy) {
+		this.busy = busy;
+	}
+
+	/**
+	 * Probes the card right away, e.g. after the notification socket timed
+	 * out.
+	 */
+	void probeNow() {
+		lastActivity = 0;
+		schedule(0);
+	}
+
+	synchronized void cancel() {
+		cancelled = true;
+		if (next != null)
+			next.cancel(false);
+	}
+
+	@Override
+	public void run() {
+		if (cancelled)
+			return;
+
+		long interval = busy ? BUSY_INTERVAL_MS : IDLE_INTERVAL_MS;
+		long quiet = System.currentTimeMillis() - lastActivity;
+		if (quiet < interval) {
+			schedule(interval - quiet);
+			return;
+		}
+
+		// a running probe schedules the next check when it is done
+		if (probing.compareAndSet(false, true))
+			SharedExecutors.WORKERS.execute(probe);
+	}
+
+	private void probe() {
+		Socket probe = new Socket();
+		IOException failure = null;
+		try {
+			probe.connect(probeAddress, PROBE_TIMEOUT_MS);
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			try {
+				probe.close();
+			} catch (IOException logOrIgnore) {}
+			probing.set(false);
+		}
+		if (cancelled)
+			return;
+
+		if (failure == null) {
+			activity();
+			callback.alive();
+			schedule(busy ? BUSY_INTERVAL_MS : IDLE_INTERVAL_MS);
+			return;
+		}
+		cancel();
+		try {
+			socket.close();
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		callback.lost(failure);
+	}
+
+	private synchronized void schedule(long delay) {
+		if (cancelled)
+			return;
+		if (next != null)
+			next.cancel(false);
+		next = SharedExecutors.SCHEDULER.schedule(this, delay,
+				TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts recorded values in buckets of fixed relative width: values below 16
+ * have a bucket of their own, larger ones share a bucket with the values
+ * less than 12.5% apart. Recording only increments counters, it doesn't
+ * allocate and doesn't lock, so it can be called on every download.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	private static final int LINEAR_BITS = 4;
+	private static final int BUCKETS = LINEAR_LIMIT + (63 - LINEAR_BITS)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values count as 0.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value))
+			;
+	}
+
+	static int bucket(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the smallest value counted in the bucket
+	 */
+	static long lowerBound(int bucket) {
+		if (bucket < LINEAR_LIMIT)
+			return bucket;
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+		long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * @return a copy of the counts so far. The copy may miss values recorded
+	 *         while it is taken.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			copy[i] = counts.get(i);
+		return new Snapshot(copy, count.get(), sum.get(), max.get());
+	}
+
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count > 0 ? (double) sum / count : 0;
+		}
+
+		/**
+		 * @param percentile
+		 *            0 to 100
+		 * @return the value that the given percentage of the values doesn't
+		 *         exceed, accurate to the bucket width
+		 */
+		public long getPercentile(double percentile) {
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			if (total == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(max, i + 1 < BUCKETS ? lowerBound(i + 1) - 1
+							: Long.MAX_VALUE);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+					"n=%d mean=%.0f p50=%d p95=%d p99=%d max=%d", count,
+					getMean(), getPercentile(50), getPercentile(95),
+					getPercentile(99), max);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size buffer of log lines that any number of threads write to and
+ * one thread reads from, without locks. Writers never block: a line that
+ * doesn't fit anymore is dropped and counted. The reader takes the lines in
+ * the order their writers claimed a slot.
+ * 
+ * Each slot carries a sequence number telling whose turn it is: a writer
+ * claims the slot of position p when the number is p, and publishes the line
+ * by setting it to p + 1; the reader frees it by setting it to p + capacity,
+ * the position its next writer will have.
+ */
+public class LogRing {
+	private final int mask;
+	private final AtomicReferenceArray<String> lines;
+	private final AtomicLongArray sequences;
+	// the next position to write to
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// the next position to read from, only used by the reader
+	private long head;
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 */
+	public LogRing(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("capacity out of range: "
+					+ capacity);
+		int rounded = capacity == 1 ? 1
+				: Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = rounded - 1;
+		this.lines = new AtomicReferenceArray<String>(rounded);
+		this.sequences = new AtomicLongArray(rounded);
+		for (int i = 0; i < rounded; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Adds a line. Never blocks.
+	 * 
+	 * @return false if the buffer was full and the line dropped
+	 */
+	public boolean offer(String line) {
+		long position;
+		int slot;
+		while (true) {
+			position = tail.get();
+			slot = (int) position & mask;
+			long sequence = sequences.get(slot);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				// the reader hasn't taken the line a lap ago yet
+				dropped.incrementAndGet();
+				return false;
+			}
+			// else another writer took the slot first, try the next one
+		}
+		lines.set(slot, line);
+		sequences.set(slot, position + 1);
+		return true;
+	}
+
+	/**
+	 * Moves the lines written so far to the collection. Only one thread may
+	 * read.
+	 * 
+	 * @return the number of lines moved
+	 */
+	public int drainTo(Collection<? super String> to) {
+		int drained = 0;
+		while (true) {
+			int slot = (int) head & mask;
+			if (sequences.get(slot) != head + 1)
+				// empty, or its writer is still storing the line
+				return drained;
+			to.add(lines.get(slot));
+			lines.set(slot, null);
+			sequences.set(slot, head + mask + 1);
+			head++;
+			drained++;
+		}
+	}
+
+	/**
+	 * @return the number of lines dropped since the last call
+	 */
+	public long takeDropped() {
+		return dropped.getAndSet(0);
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+}
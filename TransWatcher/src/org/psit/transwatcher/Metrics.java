@@ -0,0 +1,143 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The measurements of a watcher, recorded all the time. Recording doesn't
+ * allocate; the announcement time of a file travels with its entry in the
+ * download queue. Read them with snapshot(), or let the watcher post a
+ * snapshot to its listeners regularly, see
+ * TransWatcher.setMetricsDumpInterval().
+ */
+public class Metrics {
+	// ms from the card announcing a shot to the file being on disk
+	private final Histogram announceToDisk = new Histogram();
+	// bytes per second of each completed download
+	private final Histogram downloadRate = new Histogram();
+	// ms from losing (or starting to look for) the card to listening again
+	private final Histogram connectLatency = new Histogram();
+	private final AtomicLong discoveryAttempts = new AtomicLong();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong watchdogFailures = new AtomicLong();
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong failedDownloads = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final DownloadQueue queue;
+
+	Metrics(DownloadQueue queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * @param file
+	 *            the queue entry of the file, its announcement time counts
+	 *            if known
+	 */
+	void downloaded(DownloadQueue.Entry file, long received, long nanos) {
+		downloads.incrementAndGet();
+		bytes.addAndGet(received);
+		if (nanos > 0)
+			downloadRate.record(received * 1000000000L / nanos);
+		if (file.announcedAt != 0)
+			announceToDisk.record((System.nanoTime() - file.announcedAt)
+					/ 1000000);
+	}
+
+	void downloadFailed() {
+		failedDownloads.incrementAndGet();
+	}
+
+	void discoveryAttempt() {
+		discoveryAttempts.incrementAndGet();
+	}
+
+	void connected(long latencyMs) {
+		connects.incrementAndGet();
+		connectLatency.record(latencyMs);
+	}
+
+	void watchdogFailure() {
+		watchdogFailures.incrementAndGet();
+	}
+
+	long getDownloads() {
+		return downloads.get();
+	}
+
+	long getFailedDownloads() {
+		return failedDownloads.get();
+	}
+
+	long getBytes() {
+		return bytes.get();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public static class Snapshot {
+		public final Histogram.Snapshot announceToDiskMs;
+		public final Histogram.Snapshot downloadBytesPerSecond;
+		public final Histogram.Snapshot connectLatencyMs;
+		public final long discoveryAttempts;
+		public final long connects;
+		public final long reconnects;
+		public final long watchdogFailures;
+		public final long downloads;
+		public final long failedDownloads;
+		public final long bytes;
+		public final int queueDepth;
+		public final int maxQueueDepth;
+
+		private Snapshot(Metrics metrics) {
+			announceToDiskMs = metrics.announceToDisk.snapshot();
+			downloadBytesPerSecond = metrics.downloadRate.snapshot();
+			connectLatencyMs = metrics.connectLatency.snapshot();
+			discoveryAttempts = metrics.discoveryAttempts.get();
+			connects = metrics.connects.get();
+			reconnects = Math.max(0, connects - 1);
+			watchdogFailures = metrics.watchdogFailures.get();
+			downloads = metrics.downloads.get();
+			failedDownloads = metrics.failedDownloads.get();
+			bytes = metrics.bytes.get();
+			queueDepth = metrics.queue.size();
+			maxQueueDepth = metrics.queue.getMaxSize();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+					"downloads %d (%d failed, %d bytes), queue %d (max %d)\n"
+							+ "shot to disk ms: %s\n"
+							+ "download bytes/s: %s\n"
+							+ "connect ms: %s\n"
+							+ "discovery attempts %d, reconnects %d, watchdog failures %d",
+					downloads, failedDownloads, bytes, queueDepth,
+					maxQueueDepth, announceToDiskMs, downloadBytesPerSecond,
+					connectLatencyMs, discoveryAttempts, reconnects,
+					watchdogFailures);
+		}
+	}
+}
@@ -0,0 +1,970 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.psit.transwatcher.TransWatcher.State;
+
+/**
+ * Talks to the card with non blocking channels, all multiplexed by one
+ * Selector on the watcher's own thread: the UDP discovery, the notification
+ * stream and the HTTP connections of the downloads. The received data is
+ * written to disk by a single disk thread, which also keeps the writes of a
+ * file in order. Liveness is checked on the selector thread as well.
+ * 
+ * Downloads are read into a fixed set of direct buffers. If all of them wait
+ * for the disk, reading from the card pauses until one is free again.
+ * 
+ * With a pipeline depth above 1 the names of a burst are collected for the
+ * burst window and their requests sent back to back on few keep-alive
+ * connections. The card answers them in order, so each connection just
+ * reads one response after the other.
+ */
+class NioEngine {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int BUFFER_COUNT = 16;
+	private static final int HEAD_SIZE = 8 * 1024;
+	private static final long SELECT_TIMEOUT_MS = 250;
+	private static final long CONNECT_TIMEOUT_MS = 5000;
+	private static final long READ_TIMEOUT_MS = 10000;
+	private static final String BANNER = "Transcend WiFiSD";
+
+	/**
+	 * Reacts to the readiness of a registered channel.
+	 */
+	private interface Handler {
+		void ready(SelectionKey key) throws IOException;
+	}
+
+	private final TransWatcher watcher;
+	private final DownloadQueue queue;
+	private final DownloadJournal journal;
+	private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(
+			BUFFER_COUNT);
+	private Selector selector;
+	private ExecutorService disk;
+
+	// state of the current session with the card
+	private String cardIP;
+	private SocketChannel notification;
+	private boolean notificationConnected;
+	private boolean sessionEnded;
+	private long sessionStarted;
+	private long disconnectedAt;
+	private final NotificationParser parser = new NotificationParser();
+	private final ByteBuffer notificationBuffer = ByteBuffer.allocate(4096);
+	private final List<HttpConnection> connections = new ArrayList<HttpConnection>();
+	private final List<HttpConnection> waitingForBuffer = new ArrayList<HttpConnection>();
+	private int activeDownloads;
+	private boolean pipelining;
+	private long burstStarted = -1;
+	private long lastActivity;
+	private SocketChannel probe;
+	private long probeStarted;
+
+	NioEngine(TransWatcher watcher) {
+		this.watcher = watcher;
+		this.queue = watcher.getQueue();
+		this.journal = watcher.getJournal();
+		for (int i = 0; i < BUFFER_COUNT; i++)
+			buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+	}
+
+	/**
+	 * Looks for the card and listens to it until interrupted.
+	 */
+	void run() throws InterruptedException {
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			watcher.notifyMessage("Could not open selector.");
+			watcher.notifyException(e);
+			return;
+		}
+		disk = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "NioDiskWriter");
+			}
+		});
+		queue.setOnAdd(new Runnable() {
+			@Override
+			public void run() {
+				selector.wakeup();
+			}
+		});
+
+		disconnectedAt = System.currentTimeMillis();
+		int failedAttempts = 0;
+		try {
+			while (true) {
+				Thread.sleep(TransWatcher.reconnectBackoff(failedAttempts));
+
+				String foundIP = discover();
+				if (foundIP == null) {
+					watcher.notifyMessage("No card found, retrying.");
+					failedAttempts++;
+					watcher.forgetBroadcastAddresses();
+					continue;
+				}
+				watcher.cardFound(foundIP);
+				failedAttempts = 0;
+
+				try {
+					session(foundIP);
+				} catch (IOException e) {
+					watcher.notifyMessage("Error during image notification connection!");
+					watcher.notifyException(e);
+				} finally {
+					closeSession();
+					disconnectedAt = System.currentTimeMillis();
+				}
+				watcher.setState(State.SEARCHING_CARD);
+			}
+		} finally {
+			closeSession();
+			queue.setOnAdd(null);
+			disk.shutdown();
+			disk.awaitTermination(5, TimeUnit.SECONDS);
+			try {
+				selector.close();
+			} catch (IOException logOrIgnore) {}
+		}
+	}
+
+	// ----------------- discovery
+
+	/**
+	 * @return the IP of the card or null if none answered
+	 */
+	private String discover() throws InterruptedException {
+		DatagramChannel channel = null;
+		try {
+			watcher.metrics().discoveryAttempt();
+			List<InetAddress> targets = watcher.getDiscoveryTargets();
+			if (targets.isEmpty())
+				return null;
+
+			CardPorts ports = watcher.getCardPorts();
+			channel = DatagramChannel.open();
+			// exclusively, see TransWatcher.openDiscoverySocket()
+			channel.socket().setBroadcast(true);
+			channel.socket().bind(new InetSocketAddress(ports.replyPort));
+			channel.configureBlocking(false);
+			for (InetAddress target : targets) {
+				try {
+					channel.send(ByteBuffer.allocate(0), new InetSocketAddress(
+							target, ports.discoveryPort));
+				} catch (IOException e) {
+					watcher.notifyMessage("Sending discovery to " + target
+							+ " failed.");
+				}
+			}
+			channel.register(selector, SelectionKey.OP_READ);
+
+			ByteBuffer reply = ByteBuffer.allocate(256);
+			long deadline = System.currentTimeMillis()
+					+ TransWatcher.DISCOVERY_TIMEOUT_MS;
+			long remaining;
+			while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+				selector.select(remaining);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				selector.selectedKeys().clear();
+
+				SocketAddress from;
+				while ((from = channel.receive(reply)) != null) {
+					String text = new String(reply.array(), 0, reply
+							.position());
+					reply.clear();
+					watcher.debug("Packet received: %s", text);
+					if (text.indexOf(BANNER) >= 0)
+						return ((InetSocketAddress) from).getAddress()
+								.getHostAddress();
+				}
+			}
+		} catch (BindException ex) {
+			watcher.notifyMessage(TransWatcher.replyPortTaken(watcher
+					.getCardPorts()));
+			watcher.notifyException(ex);
+		} catch (IOException ex) {
+			watcher.notifyMessage("Card handshake unsuccessful. ");
+			watcher.notifyException(ex);
+		} finally {
+			if (channel != null) try { channel.close(); } catch (IOException logOrIgnore) {}
+		}
+		return null;
+	}
+
+	// ----------------- session
+
+	/**
+	 * Listens to the card and downloads its images until the notification
+	 * stream ends or the card stops answering.
+	 */
+	private void session(String cardIP) throws IOException,
+			InterruptedException {
+		this.cardIP = cardIP;
+		CardPorts ports = watcher.getCardPorts();
+		sessionEnded = false;
+		notificationConnected = false;
+		sessionStarted = lastActivity = System.currentTimeMillis();
+		parser.reset(null);
+		notificationBuffer.clear();
+		pipelining = watcher.getPipelineDepth() > 1;
+		burstStarted = -1;
+
+		notification = SocketChannel.open();
+		notification.configureBlocking(false);
+		notification.socket().setKeepAlive(true);
+		notification.connect(new InetSocketAddress(cardIP,
+				ports.notificationPort));
+		notification.register(selector, SelectionKey.OP_CONNECT,
+				new Handler() {
+					@Override
+					public void ready(SelectionKey key) throws IOException {
+						notificationReady(key);
+					}
+				});
+
+		while (!sessionEnded) {
+			selector.select(selectTimeout());
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid() && key.attachment() instanceof Handler)
+					((Handler) key.attachment()).ready(key);
+			}
+
+			resumeWaitingForBuffer();
+			checkTimeouts(System.currentTimeMillis());
+			if (notificationConnected)
+				startDownloads();
+		}
+	}
+
+	private void notificationReady(SelectionKey key) throws IOException {
+		if (key.isConnectable()) {
+			notification.finishConnect();
+			key.interestOps(SelectionKey.OP_READ);
+			notificationConnected = true;
+			lastActivity = System.currentTimeMillis();
+
+			watcher.requeuePending();
+			if (watcher.isCatchUpSync())
+				watcher.startCatchUpSync(cardIP);
+			watcher.listening(disconnectedAt);
+			return;
+		}
+
+		if (key.isReadable()) {
+			int length = notification.read(notificationBuffer);
+			if (length < 0) {
+				sessionEnded = true;
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			notificationBuffer.flip();
+			String fileName;
+			while ((fileName = parser.next(notificationBuffer)) != null)
+				watcher.announced(fileName);
+			notificationBuffer.clear();
+		}
+	}
+
+	private void checkTimeouts(long now) throws IOException {
+		if (!notificationConnected && now - sessionStarted > CONNECT_TIMEOUT_MS)
+			throw new SocketTimeoutException("Connecting to the card timed out");
+
+		for (HttpConnection connection : new ArrayList<HttpConnection>(
+				connections))
+			connection.checkTimeout(now);
+
+		// nothing heard from the card for a while, see if it's still there
+		long interval = activeDownloads > 0 ? HealthCheck.BUSY_INTERVAL_MS
+				: HealthCheck.IDLE_INTERVAL_MS;
+		if (probe == null && notificationConnected
+				&& now - lastActivity > interval)
+			startProbe();
+		else if (probe != null
+				&& now - probeStarted > HealthCheck.PROBE_TIMEOUT_MS)
+			probeFailed(new SocketTimeoutException("Probe timed out"));
+	}
+
+	private void startProbe() throws IOException {
+		probe = SocketChannel.open();
+		probe.configureBlocking(false);
+		probeStarted = System.currentTimeMillis();
+		probe.connect(new InetSocketAddress(cardIP,
+				watcher.getCardPorts().httpPort));
+		probe.register(selector, SelectionKey.OP_CONNECT, new Handler() {
+			@Override
+			public void ready(SelectionKey key) throws IOException {
+				try {
+					probe.finishConnect();
+				} catch (IOException e) {
+					probeFailed(e);
+				}
+				closeProbe();
+				lastActivity = System.currentTimeMillis();
+				watcher.debug("WatchDog ping.");
+			}
+		});
+	}
+
+	private void probeFailed(IOException e) throws IOException {
+		closeProbe();
+		watcher.metrics().watchdogFailure();
+		watcher.notifyMessage("WatchDog: Connection to card lost.");
+		throw e;
+	}
+
+	private void closeProbe() {
+		if (probe != null) try { probe.close(); } catch (IOException logOrIgnore) {}
+		probe = null;
+	}
+
+	private void closeSession() {
+		watcher.stopCatchUpSync();
+		closeProbe();
+		if (notification != null) try { notification.close(); } catch (IOException logOrIgnore) {}
+		notification = null;
+		notificationConnected = false;
+		for (HttpConnection connection : new ArrayList<HttpConnection>(
+				connections))
+			connection.close(new IOException("Connection to card closed"));
+		connections.clear();
+		waitingForBuffer.clear();
+		awaitDisk();
+	}
+
+	/**
+	 * Waits until the disk thread wrote and suspended everything handed to it,
+	 * so no file is requeued while its last writes are still pending.
+	 */
+	private void awaitDisk() {
+		if (disk == null)
+			return;
+		try {
+			disk.submit(new Runnable() {
+				@Override
+				public void run() {}
+			}).get(10, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			watcher.notifyMessage("Disk writer did not finish in time.");
+		}
+	}
+
+	// ----------------- downloads
+
+	private void startDownloads() throws IOException {
+		int concurrency = watcher.getCurrentDownloadConcurrency();
+		int depth = pipelining ? watcher.getPipelineDepth() : 1;
+		while (true) {
+			int free = concurrency;
+			HttpConnection connection = null;
+			for (HttpConnection candidate : connections) {
+				if (candidate.download != null)
+					free--;
+				else if (connection == null)
+					connection = candidate;
+			}
+			if (free <= 0 || queue.size() == 0)
+				return;
+			if (depth > 1 && !burstCollected(depth))
+				return;
+
+			// spread the waiting names over the free connections
+			int batch = Math.min(depth, (queue.size() + free - 1) / free);
+			List<Download> downloads = new ArrayList<Download>(batch);
+			DownloadQueue.Entry file;
+			while (downloads.size() < batch && (file = queue.poll()) != null)
+				downloads.add(new Download(file));
+			if (downloads.isEmpty())
+				return;
+			if (connection == null) {
+				connection = new HttpConnection();
+				connections.add(connection);
+			}
+			connection.start(downloads);
+		}
+	}
+
+	/**
+	 * Holds the first names of a burst back for the burst window, so they
+	 * are requested together. Names queued while downloads run waited long
+	 * enough already.
+	 * 
+	 * @return true if the waiting names are to be requested now
+	 */
+	private boolean burstCollected(int depth) {
+		if (activeDownloads > 0) {
+			burstStarted = -1;
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (burstStarted < 0)
+			burstStarted = now;
+		if (queue.size() < depth
+				&& now - burstStarted < watcher.getBurstWindow())
+			return false;
+		burstStarted = -1;
+		return true;
+	}
+
+	/**
+	 * @return the time to wait for the selector, shorter while a burst is
+	 *         collected
+	 */
+	private long selectTimeout() {
+		if (burstStarted < 0)
+			return SELECT_TIMEOUT_MS;
+		long left = burstStarted + watcher.getBurstWindow()
+				- System.currentTimeMillis();
+		return Math.max(1, Math.min(SELECT_TIMEOUT_MS, left));
+	}
+
+	/**
+	 * Puts downloads the card never answered back in front of the queue.
+	 */
+	private void requeue(List<Download> downloads) {
+		if (downloads.isEmpty())
+			return;
+		List<DownloadQueue.Entry> files = new ArrayList<DownloadQueue.Entry>(
+				downloads.size());
+		for (Download download : downloads) {
+			download.requeued();
+			files.add(download.file);
+		}
+		queue.addFirst(files);
+	}
+
+	private void downloadStarted() {
+		if (activeDownloads++ == 0)
+			watcher.setState(State.DOWNLOADING);
+	}
+
+	private void downloadEnded() {
+		if (--activeDownloads == 0
+				&& watcher.getWatcherState() == State.DOWNLOADING)
+			watcher.setState(State.LISTENING);
+	}
+
+	private void resumeWaitingForBuffer() {
+		while (!waitingForBuffer.isEmpty() && !buffers.isEmpty()) {
+			HttpConnection connection = waitingForBuffer.remove(0);
+			if (connection.key != null && connection.key.isValid())
+				connection.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * The transfer of one file. Disk work is done on the disk thread, in the
+	 * order it was handed over.
+	 */
+	private class Download {
+		final DownloadQueue.Entry file;
+		final String fileName;
+		final DownloadFile target;
+		long resumeOffset;
+		long position;
+		long startNanos;
+		volatile IOException diskError;
+
+		Download(DownloadQueue.Entry file) {
+			this.file = file;
+			this.fileName = file.path;
+			this.target = watcher.newDownloadFile(fileName);
+			Long recordedOffset = watcher.getPartialDownloads()
+					.remove(fileName);
+			this.resumeOffset = recordedOffset != null ? target
+					.resumableLength(recordedOffset) : 0;
+		}
+
+		/**
+		 * Gives back the resume offset taken when the download was created.
+		 */
+		void requeued() {
+			if (resumeOffset > 0)
+				watcher.getPartialDownloads().put(fileName, resumeOffset);
+		}
+
+		void open(final long expectedLength) {
+			position = resumeOffset;
+			final long offset = resumeOffset;
+			disk.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						target.open(offset, expectedLength);
+					} catch (IOException e) {
+						diskError = e;
+					}
+				}
+			});
+		}
+
+		void write(final ByteBuffer buffer) {
+			buffer.flip();
+			final long at = position;
+			position += buffer.remaining();
+			disk.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (diskError == null)
+							target.write(buffer, at);
+					} catch (IOException e) {
+						diskError = e;
+					} finally {
+						// only the pooled buffers go back
+						if (buffer.isDirect()) {
+							buffer.clear();
+							buffers.offer(buffer);
+							selector.wakeup();
+						}
+					}
+				}
+			});
+		}
+
+		void completed() {
+			disk.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (diskError != null) {
+						failed(diskError);
+						return;
+					}
+					try {
+						target.commit();
+					} catch (IOException e) {
+						failed(e);
+						return;
+					}
+					journal.completed(fileName);
+					watcher.metrics().downloaded(file,
+							target.getWritten() - resumeOffset,
+							System.nanoTime() - startNanos);
+					watcher.downloadStored(target);
+				}
+			});
+		}
+
+		void interrupted(final IOException cause) {
+			disk.execute(new Runnable() {
+				@Override
+				public void run() {
+					failed(cause);
+				}
+			});
+		}
+
+		/**
+		 * Keeps what was received for a later resume, like the blocking
+		 * engine does. Runs on the disk thread.
+		 */
+		private void failed(IOException cause) {
+			if (cause instanceof FileNotFoundException) {
+				target.abort();
+				watcher.notifyMessage(fileName + " is not on the card anymore.");
+				journal.dropped(fileName);
+				return;
+			}
+			watcher.metrics().downloadFailed();
+			long kept = target.isOpen() ? target.suspend() : resumeOffset;
+			if (kept > 0) {
+				watcher.getPartialDownloads().put(fileName, kept);
+				watcher.notifyMessage("Download of " + fileName
+						+ " interrupted at byte " + kept + ".");
+				// the link still delivered data, so try again right away.
+				// Otherwise it is resumed after the next connect.
+				if (kept > resumeOffset)
+					queue.requeue(file);
+			} else {
+				target.abort();
+				watcher.notifyMessage("Download of " + fileName + " failed.");
+				watcher.notifyException(cause);
+			}
+		}
+	}
+
+	/**
+	 * A keep-alive HTTP connection to the card's web server, downloading one
+	 * file after the other. The requests of a batch are sent at once and the
+	 * responses read in their order.
+	 */
+	private class HttpConnection implements Handler {
+		private static final int CONNECTING = 0, SENDING = 1, HEAD = 2,
+				BODY = 3, IDLE = 4;
+
+		SocketChannel channel;
+		SelectionKey key;
+		// the download whose response is read, then the ones sent after it
+		Download download;
+		final LinkedList<Download> pipelined = new LinkedList<Download>();
+		int answered;
+		int phase = IDLE;
+		boolean reused;
+		ByteBuffer request;
+		final ByteBuffer head = ByteBuffer.allocate(HEAD_SIZE);
+		ByteBuffer body;
+		long remaining;
+		boolean keepAlive;
+		long lastRead;
+
+		void start(List<Download> downloads) throws IOException {
+			this.download = downloads.get(0);
+			pipelined.addAll(downloads.subList(1, downloads.size()));
+			answered = 0;
+
+			StringBuilder get = new StringBuilder();
+			for (Download download : downloads) {
+				download.startNanos = System.nanoTime();
+				downloadStarted();
+				journal.started(download.fileName);
+
+				get.append("GET ").append(TransWatcher.downloadRequest(download.fileName))
+						.append(" HTTP/1.1\r\n");
+				get.append("Host: ").append(cardIP).append("\r\n");
+				if (download.resumeOffset > 0)
+					get.append("Range: bytes=").append(download.resumeOffset)
+							.append("-\r\n");
+				get.append("\r\n");
+			}
+			request = ByteBuffer.wrap(get.toString().getBytes("ISO-8859-1"));
+			lastRead = System.currentTimeMillis();
+
+			reused = channel != null;
+			if (reused) {
+				phase = SENDING;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress(cardIP, watcher
+						.getCardPorts().httpPort));
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+				phase = CONNECTING;
+			}
+		}
+
+		@Override
+		public void ready(SelectionKey key) {
+			try {
+				if (phase == CONNECTING && key.isConnectable()) {
+					channel.finishConnect();
+					phase = SENDING;
+					key.interestOps(SelectionKey.OP_WRITE);
+				} else if (phase == SENDING && key.isWritable()) {
+					channel.write(request);
+					if (!request.hasRemaining()) {
+						phase = HEAD;
+						head.clear();
+						key.interestOps(SelectionKey.OP_READ);
+					}
+				} else if (phase == HEAD && key.isReadable()) {
+					readHead();
+				} else if (phase == BODY && key.isReadable()) {
+					readBody();
+				} else if (phase == IDLE && key.isReadable()) {
+					// the card closed the idle connection
+					if (channel.read(head) < 0)
+						close(null);
+					head.clear();
+				}
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void readHead() throws IOException {
+			int length = channel.read(head);
+			if (length > 0)
+				lastRead = System.currentTimeMillis();
+
+			// a read may hold several small pipelined responses
+			while (phase == HEAD) {
+				int end = endOfHead();
+				if (end < 0) {
+					if (length < 0)
+						throw new EOFException("Card closed the connection");
+					if (!head.hasRemaining())
+						throw new IOException("Response head too large");
+					return;
+				}
+				parseHead(new String(head.array(), 0, end, "ISO-8859-1"));
+				int consumed = end + 4;
+
+				// body bytes that came with the head
+				if (phase == BODY) {
+					int leftover = head.position() - consumed;
+					if (remaining >= 0 && leftover > remaining)
+						leftover = (int) remaining;
+					if (leftover > 0) {
+						ByteBuffer first = ByteBuffer.allocate(leftover);
+						first.put(head.array(), consumed, leftover);
+						consumed += leftover;
+						received(first);
+					}
+				}
+				if (channel == null)
+					return;
+				// keep what belongs to the next response
+				head.flip();
+				head.position(consumed);
+				head.compact();
+			}
+			if (phase == BODY)
+				readBody();
+		}
+
+		private int endOfHead() {
+			byte[] bytes = head.array();
+			for (int i = 3; i < head.position(); i++) {
+				if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n'
+						&& bytes[i - 1] == '\r' && bytes[i] == '\n')
+					return i - 3;
+			}
+			return -1;
+		}
+
+		private void parseHead(String text) throws IOException {
+			String[] lines = text.split("\r\n");
+			String[] statusLine = lines[0].split(" ");
+			int status;
+			try {
+				status = Integer.parseInt(statusLine[1]);
+			} catch (RuntimeException e) {
+				throw new IOException("Malformed response " + lines[0]);
+			}
+			Map<String, String> headers = new HashMap<String, String>();
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0)
+					headers.put(lines[i].substring(0, colon).trim()
+							.toLowerCase(Locale.ENGLISH), lines[i].substring(
+							colon + 1).trim());
+			}
+			keepAlive = lines[0].startsWith("HTTP/1.1")
+					&& !"close".equalsIgnoreCase(headers.get("connection"));
+			String contentLength = headers.get("content-length");
+			remaining = contentLength != null ? Long.parseLong(contentLength)
+					: -1;
+			if (remaining < 0)
+				keepAlive = false;
+
+			String contentRange = headers.get("content-range");
+			if (status == 206
+					&& download.resumeOffset > 0
+					&& contentRange != null
+					&& TransWatcher.parseContentRangeStart(contentRange) == download.resumeOffset) {
+				watcher.debug("Resuming %s at byte %d", new File(
+						download.fileName).getName(), download.resumeOffset);
+			} else if (status == 200) {
+				download.resumeOffset = 0;
+			} else if (status == 404) {
+				throw new FileNotFoundException(download.fileName);
+			} else {
+				// a range answer we can't use. Start over next time.
+				download.resumeOffset = 0;
+				throw new IOException("Card answered " + lines[0] + " for "
+						+ download.fileName);
+			}
+
+			download.open(remaining);
+			phase = BODY;
+			if (remaining == 0)
+				completed();
+		}
+
+		private void readBody() throws IOException {
+			while (phase == BODY) {
+				if (body == null) {
+					body = buffers.poll();
+					if (body == null) {
+						// all buffers wait for the disk. Pause reading.
+						key.interestOps(0);
+						waitingForBuffer.add(this);
+						return;
+					}
+				}
+				// never read into the next response on this connection
+				if (remaining >= 0 && body.remaining() > remaining)
+					body.limit(body.position() + (int) remaining);
+
+				int length = channel.read(body);
+				if (length < 0) {
+					if (remaining < 0) {
+						flushBody();
+						completed();
+						return;
+					}
+					throw new EOFException("Card closed the connection");
+				}
+				if (length == 0)
+					return;
+				lastRead = lastActivity = System.currentTimeMillis();
+				if (remaining > 0)
+					remaining -= length;
+				if (!body.hasRemaining() || remaining == 0)
+					flushBody();
+				if (remaining == 0)
+					completed();
+			}
+		}
+
+		private void received(ByteBuffer data) {
+			if (remaining > 0)
+				remaining -= data.position();
+			download.write(data);
+			if (remaining == 0)
+				completed();
+		}
+
+		private void flushBody() {
+			if (body == null)
+				return;
+			if (body.position() > 0) {
+				download.write(body);
+			} else {
+				body.clear();
+				buffers.offer(body);
+			}
+			body = null;
+		}
+
+		private void completed() {
+			Download done = download;
+			download = null;
+			answered++;
+			done.completed();
+			downloadEnded();
+			phase = IDLE;
+			if (!keepAlive || !key.isValid()) {
+				close(null);
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			download = pipelined.poll();
+			if (download != null) {
+				phase = HEAD;
+				lastRead = System.currentTimeMillis();
+			}
+		}
+
+		void checkTimeout(long now) {
+			if (download != null && now - lastRead > READ_TIMEOUT_MS)
+				close(new SocketTimeoutException("No data from card"));
+		}
+
+		/**
+		 * Closes the connection. A running download is kept for a resume,
+		 * the pipelined ones behind it are queued again.
+		 */
+		void close(IOException cause) {
+			boolean responseStarted = phase == BODY
+					|| (phase == HEAD && head.position() > 0);
+			flushBody();
+			if (channel != null) try { channel.close(); } catch (IOException logOrIgnore) {}
+			channel = null;
+			key = null;
+			phase = IDLE;
+			head.clear();
+			waitingForBuffer.remove(this);
+
+			List<Download> outstanding = new ArrayList<Download>();
+			if (download != null)
+				outstanding.add(download);
+			outstanding.addAll(pipelined);
+			download = null;
+			pipelined.clear();
+			if (outstanding.isEmpty()) {
+				connections.remove(this);
+				return;
+			}
+			for (int i = 0; i < outstanding.size(); i++)
+				downloadEnded();
+
+			boolean closedByCard = cause == null
+					|| cause instanceof EOFException;
+			// a kept alive connection the card closed in the meantime.
+			// Nothing was received, so just try again on a new connection.
+			if (reused && answered == 0 && !responseStarted && closedByCard) {
+				reused = false;
+				try {
+					start(outstanding);
+					return;
+				} catch (IOException e) {
+					cause = e;
+				}
+			}
+			connections.remove(this);
+
+			// the card answered part of the batch and closed the connection
+			// between two responses. It doesn't pipeline, so fetch the rest
+			// one request at a time.
+			if (answered > 0 && !responseStarted && closedByCard) {
+				if (pipelining) {
+					pipelining = false;
+					watcher.notifyMessage("Card closes pipelined connections, requesting one file at a time.");
+				}
+				requeue(outstanding);
+				return;
+			}
+			Download broken = outstanding.remove(0);
+			requeue(outstanding);
+			broken.interrupted(cause != null ? cause : new IOException(
+					"Connection closed"));
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the notification stream of the card (TCP port 5566) into file names.
+ * Every file name is framed as <code>&gt;/path/to/file\0</code>.
+ * 
+ * The stream is read in bulk into a reusable buffer, frames may be split
+ * across any number of reads and file names may have any length. One parser
+ * can be reused for consecutive connections by calling reset().
+ */
+public class NotificationParser {
+	private static final byte FRAME_START = 0x3E; // >
+	private static final byte FRAME_END = 0x00;
+	private static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+	private final byte[] readBuffer;
+	private int readPosition;
+	private int readLimit;
+
+	private byte[] frame = new byte[256];
+	private int frameLength;
+	private boolean inFrame;
+	private boolean frameOverflow;
+
+	private InputStream in;
+
+	public NotificationParser() {
+		this(4096);
+	}
+
+	public NotificationParser(int readBufferSize) {
+		this.readBuffer = new byte[readBufferSize];
+	}
+
+	/**
+	 * Prepares the parser for a new connection. Buffered bytes and a partially
+	 * received frame of the previous connection are discarded.
+	 */
+	public void reset(InputStream in) {
+		this.in = in;
+		readPosition = 0;
+		readLimit = 0;
+		frameLength = 0;
+		inFrame = false;
+		frameOverflow = false;
+	}
+
+	/**
+	 * Blocks until the next complete file name was received.
+	 * 
+	 * @return the file name or null if the card closed the stream
+	 */
+	public String next() throws IOException {
+		while (true) {
+			while (readPosition < readLimit) {
+				if (consume(readBuffer[readPosition++]))
+					return frameToString();
+			}
+			int length = in.read(readBuffer, 0, readBuffer.length);
+			if (length < 0)
+				return null;
+			readPosition = 0;
+			readLimit = length;
+		}
+	}
+
+	/**
+	 * Consumes the given buffer up to the next complete file name, for callers
+	 * reading the stream on their own (e.g. from a non blocking channel).
+	 * 
+	 * @return the file name or null if the buffer holds no further complete
+	 *         frame. Remaining bytes of an incomplete frame are kept until the
+	 *         next call.
+	 */
+	public String next(ByteBuffer buffer) {
+		while (buffer.hasRemaining()) {
+			if (consume(buffer.get()))
+				return frameToString();
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the byte completed a frame
+	 */
+	private boolean consume(byte b) {
+		if (b == FRAME_START) {
+			inFrame = true;
+			frameOverflow = false;
+			frameLength = 0;
+		} else if (!inFrame) {
+			// noise between frames
+		} else if (b == FRAME_END) {
+			inFrame = false;
+			return !frameOverflow;
+		} else if (frameLength < frame.length) {
+			frame[frameLength++] = b;
+		} else if (frame.length < MAX_FRAME_LENGTH) {
+			byte[] grown = new byte[Math.min(MAX_FRAME_LENGTH, frame.length * 2)];
+			System.arraycopy(frame, 0, grown, 0, frameLength);
+			frame = grown;
+			frame[frameLength++] = b;
+		} else {
+			// drop insanely long frames instead of growing forever
+			frameOverflow = true;
+		}
+		return false;
+	}
+
+	private String frameToString() {
+		return new String(frame, 0, frameLength);
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decodes the previews of downloaded images on a background thread, where
+ * only the newest request counts: while a burst of images arrives, the
+ * images requested in the meantime are skipped and a decode that was
+ * overtaken by a newer request is not shown. Decoded previews are kept in a
+ * cache limited by their size, most recently used first, so going back to an
+ * earlier image doesn't decode it again. A preview made elsewhere, like the
+ * thumbnail of an image still downloading, counts as the newest request.
+ * 
+ * Doesn't depend on the platform: the Decoder turns a file into a preview,
+ * e.g. a Bitmap, and the Display shows it.
+ */
+public class PreviewScheduler<T> {
+
+	public interface Decoder<T> {
+		/**
+		 * @return the preview of the file or null if it can't be decoded.
+		 *         May return early if the request was cancelled meanwhile.
+		 */
+		T decode(String filePath, Request request) throws Exception;
+
+		/**
+		 * @return the memory the preview takes, in the unit of the cache size
+		 */
+		long sizeOf(T preview);
+	}
+
+	public interface Display<T> {
+		/**
+		 * Called on the decoder thread, or on the requesting thread for a
+		 * cached or given preview. The calls don't overlap, and the preview
+		 * of a request never follows the one of a newer request.
+		 */
+		void show(String filePath, T preview);
+	}
+
+	/**
+	 * A request for a preview. It is cancelled as soon as a newer one comes
+	 * in.
+	 */
+	public static class Request {
+		private final AtomicLong generations;
+		private final long generation;
+		private final String filePath;
+
+		private Request(AtomicLong generations, String filePath) {
+			this.generations = generations;
+			this.generation = generations.incrementAndGet();
+			this.filePath = filePath;
+		}
+
+		public boolean isCancelled() {
+			return generation != generations.get();
+		}
+
+		public String getFilePath() {
+			return filePath;
+		}
+	}
+
+	private final Decoder<T> decoder;
+	private final Display<T> display;
+	private final long maxCacheSize;
+	private final LinkedHashMap<String, T> cache = new LinkedHashMap<String, T>(
+			16, 0.75f, true);
+	private long cacheSize;
+	private final AtomicLong generations = new AtomicLong();
+	private final AtomicReference<Request> latest = new AtomicReference<Request>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	// held while checking a request is still the latest and showing it
+	private final Object showing = new Object();
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PreviewDecoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private final Runnable decodeLatest = new Runnable() {
+		@Override
+		public void run() {
+			scheduled.set(false);
+			Request request = latest.getAndSet(null);
+			if (request != null && !request.isCancelled())
+				decode(request);
+		}
+	};
+
+	/**
+	 * @param maxCacheSize
+	 *            the total size of the cached previews as measured by
+	 *            Decoder.sizeOf()
+	 */
+	public PreviewScheduler(Decoder<T> decoder, Display<T> display,
+			long maxCacheSize) {
+		this.decoder = decoder;
+		this.display = display;
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * Shows the preview of the file as soon as possible, from the cache or
+	 * decoded in the background. Cancels all earlier requests.
+	 */
+	public void request(String filePath) {
+		Request request = new Request(generations, filePath);
+		T cached = getCached(filePath);
+		// a request the decoder didn't take yet is replaced
+		latest.set(cached != null ? null : request);
+
+		if (cached != null) {
+			show(request, cached);
+			return;
+		}
+		// at most one decode is waiting; it picks the latest request
+		if (scheduled.compareAndSet(false, true))
+			executor.execute(decodeLatest);
+	}
+
+	/**
+	 * Shows a preview made elsewhere, e.g. the thumbnail of an image still
+	 * downloading, without caching it. Cancels all earlier requests, so a
+	 * decode still running for one of them isn't shown over it.
+	 */
+	public void show(String filePath, T preview) {
+		Request request = new Request(generations, filePath);
+		latest.set(null);
+		show(request, preview);
+	}
+
+	/**
+	 * @return the cached preview of the file or null
+	 */
+	public T getCached(String filePath) {
+		synchronized (cache) {
+			return cache.get(filePath);
+		}
+	}
+
+	/**
+	 * @return the largest power of two to divide the width and the height
+	 *         of an image by that keeps both larger than the requested ones,
+	 *         e.g. BitmapFactory.Options.inSampleSize
+	 */
+	public static int inSampleSize(int width, int height, int reqWidth,
+			int reqHeight) {
+		int inSampleSize = 1;
+		if (height > reqHeight || width > reqWidth) {
+			final int halfHeight = height / 2;
+			final int halfWidth = width / 2;
+			while ((halfHeight / inSampleSize) > reqHeight
+					&& (halfWidth / inSampleSize) > reqWidth) {
+				inSampleSize *= 2;
+			}
+		}
+		return inSampleSize;
+	}
+
+	public void shutdown() {
+		generations.incrementAndGet();
+		executor.shutdownNow();
+		synchronized (cache) {
+			cache.clear();
+			cacheSize = 0;
+		}
+	}
+
+	private void decode(Request request) {
+		T preview;
+		try {
+			preview = decoder.decode(request.filePath, request);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		if (preview == null)
+			return;
+		put(request.filePath, preview);
+		show(request, preview);
+	}
+
+	private void show(Request request, T preview) {
+		synchronized (showing) {
+			if (!request.isCancelled())
+				display.show(request.filePath, preview);
+		}
+	}
+
+	private void put(String filePath, T preview) {
+		long size = decoder.sizeOf(preview);
+		if (size > maxCacheSize)
+			return;
+		synchronized (cache) {
+			T previous = cache.put(filePath, preview);
+			if (previous != null)
+				cacheSize -= decoder.sizeOf(previous);
+			cacheSize += size;
+			// drop the least recently used ones
+			Iterator<Map.Entry<String, T>> eldest = cache.entrySet()
+					.iterator();
+			while (cacheSize > maxCacheSize && eldest.hasNext()) {
+				Map.Entry<String, T> entry = eldest.next();
+				cacheSize -= decoder.sizeOf(entry.getValue());
+				eldest.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes the downloaded files after they are on disk, e.g. renames them,
+ * sorts them into folders or writes sidecars, in stages added with
+ * addStage(). Each stage has its own fixed number of worker threads, so a
+ * slow stage never holds up the downloads or the other stages.
+ * 
+ * Downloaded files wait for the first stage in a backlog that never blocks
+ * the download workers; it only holds file names. Between two stages waits
+ * a bounded queue: if a stage falls behind, the stage before it blocks
+ * until there is room again, so files pile up in the backlog instead of in
+ * half processed states.
+ * 
+ * The workers start with the first file and keep running until shutdown().
+ * One pipeline may be shared by the watchers of a fleet.
+ */
+public class ProcessingPipeline {
+	public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+	/**
+	 * One step of the processing. Called by the workers of the stage, so it
+	 * must be thread-safe if it has more than one.
+	 */
+	public interface Stage {
+		/**
+		 * @return the file to pass to the next stage, the same or e.g. the
+		 *         moved one, or null to end the processing of this file
+		 */
+		File process(File file) throws IOException;
+	}
+
+	/**
+	 * Told about the end of the processing of each file, on the thread of
+	 * its last stage.
+	 */
+	interface Callback {
+		/**
+		 * @param result
+		 *            the file as returned by the last stage, null if a stage
+		 *            ended its processing
+		 */
+		void processed(File downloaded, File result);
+
+		/**
+		 * @param file
+		 *            the file as passed to the failed stage
+		 */
+		void failed(File file, String stage, Exception e);
+
+		/**
+		 * Called on the thread of a stage that returned another file than it
+		 * got, e.g. because it moved it.
+		 */
+		void moved(File from, File to);
+	}
+
+	private static class Item {
+		final File downloaded;
+		final Callback callback;
+		File file;
+
+		Item(File downloaded, Callback callback) {
+			this.downloaded = downloaded;
+			this.callback = callback;
+			this.file = downloaded;
+		}
+	}
+
+	private final List<StageRunner> stages = new ArrayList<StageRunner>();
+	private final int queueCapacity;
+	private boolean started;
+	private boolean shutdown;
+
+	public ProcessingPipeline() {
+		this(DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            the number of files that may wait between two stages
+	 */
+	public ProcessingPipeline(int queueCapacity) {
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("queueCapacity must be >= 1");
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Appends a stage. Must be called before the first file is submitted.
+	 * 
+	 * @param name
+	 *            names its threads and its line in toString()
+	 * @param threads
+	 *            the number of files the stage processes at the same time
+	 */
+	public synchronized ProcessingPipeline addStage(String name, Stage stage,
+			int threads) {
+		if (started)
+			throw new IllegalStateException("pipeline already started");
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be >= 1");
+		// the backlog in front of the first stage is unbounded
+		BlockingQueue<Item> input = stages.isEmpty()
+				? new LinkedBlockingQueue<Item>()
+				: new ArrayBlockingQueue<Item>(queueCapacity);
+		StageRunner runner = new StageRunner(name, stage, threads, input);
+		if (!stages.isEmpty())
+			stages.get(stages.size() - 1).next = runner;
+		stages.add(runner);
+		return this;
+	}
+
+	/**
+	 * Queues a downloaded file for the first stage. Never blocks.
+	 * 
+	 * @return false if the pipeline has no stages or was shut down, so the
+	 *         file isn't processed
+	 */
+	boolean submit(File file, Callback callback) {
+		StageRunner first;
+		synchronized (this) {
+			if (stages.isEmpty() || shutdown)
+				return false;
+			if (!started) {
+				started = true;
+				for (StageRunner s : stages)
+					s.start();
+			}
+			first = stages.get(0);
+		}
+		first.input.add(new Item(file, callback));
+		return true;
+	}
+
+	/**
+	 * Stops the workers. Files still waiting aren't processed.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		for (StageRunner s : stages)
+			s.stop();
+	}
+
+	/**
+	 * @return the number of files waiting for or in any stage
+	 */
+	public int getPending() {
+		int pending = 0;
+		for (StageRunner s : stagesCopy())
+			pending += s.input.size() + s.busy.get();
+		return pending;
+	}
+
+	/**
+	 * @return one line per stage: files done, failed and waiting, and the
+	 *         ms each took
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (StageRunner s : stagesCopy()) {
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private synchronized List<StageRunner> stagesCopy() {
+		return new ArrayList<StageRunner>(stages);
+	}
+
+	private static class StageRunner implements Runnable {
+		final String name;
+		final Stage stage;
+		final int threads;
+		final BlockingQueue<Item> input;
+		final AtomicInteger busy = new AtomicInteger();
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		// ms each file took in this stage, without the wait for the next
+		final Histogram millis = new Histogram();
+		// ms the stage waited for room in the queue of the next one
+		final Histogram blocked = new Histogram();
+		StageRunner next;
+		private ExecutorService workers;
+
+		StageRunner(String name, Stage stage, int threads,
+				BlockingQueue<Item> input) {
+			this.name = name;
+			this.stage = stage;
+			this.threads = threads;
+			this.input = input;
+		}
+
+		void start() {
+			workers = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Processing-" + name + "-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			for (int i = 0; i < threads; i++)
+				workers.execute(this);
+		}
+
+		void stop() {
+			if (workers != null)
+				workers.shutdownNow();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Item item = input.take();
+					busy.incrementAndGet();
+					try {
+						process(item);
+					} finally {
+						busy.decrementAndGet();
+					}
+				}
+			} catch (InterruptedException e) {
+				// shut down
+			}
+		}
+
+		private void process(Item item) throws InterruptedException {
+			long started = System.nanoTime();
+			File result;
+			try {
+				result = stage.process(item.file);
+			} catch (IOException e) {
+				stageFailed(item, e);
+				return;
+			} catch (RuntimeException e) {
+				stageFailed(item, e);
+				return;
+			}
+			millis.record((System.nanoTime() - started) / 1000000);
+			processed.incrementAndGet();
+			if (result != null && !result.equals(item.file)) {
+				if (item.callback != null)
+					item.callback.moved(item.file, result);
+				item.file = result;
+			}
+
+			if (result != null && next != null) {
+				long waiting = System.nanoTime();
+				// blocks while the next stage is behind
+				next.input.put(item);
+				blocked.record((System.nanoTime() - waiting) / 1000000);
+			} else if (item.callback != null) {
+				item.callback.processed(item.downloaded, result);
+			}
+		}
+
+		private void stageFailed(Item item, Exception e) {
+			failed.incrementAndGet();
+			if (item.callback != null)
+				item.callback.failed(item.file, name, e);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s: %d done, %d failed, %d waiting, ms %s, blocked ms %s",
+					name, processed.get(), failed.get(), input.size(),
+					millis.snapshot(), blocked.snapshot());
+		}
+	}
+}
@@ -0,0 +1,478 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+
+/**
+ * Uploads the downloaded files to a second destination, e.g. an ingest
+ * server, as multipart POST with the file in the part "file". The upload
+ * runs while the file is downloaded: the data is teed from the download
+ * into a bounded buffer the upload reads from, so the file arrives at the
+ * server moments after it arrived here. The download never waits for the
+ * upload. If the server reads slower than the card sends and the buffer
+ * runs full, the upload is given up and done from the local copy after the
+ * download.
+ * 
+ * Uploads that failed are retried from the local copy with growing pauses,
+ * up to MAX_ATTEMPTS times. Resumed downloads are uploaded from the local
+ * copy as well. A streamed upload is sent chunked; if it breaks off, e.g.
+ * because the download failed, the final chunk is missing, so the server
+ * sees an incomplete request rather than a short file.
+ * 
+ * The local copy may be processed meanwhile. If processing moves it, the
+ * watcher reports it with moved(), and later attempts read it from there.
+ * 
+ * The workers start with the first upload and keep running until
+ * shutdown(). One uploader may be shared by the watchers of a fleet.
+ */
+public class RelayUploader {
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_STREAMS = 2;
+	static final int MAX_ATTEMPTS = 5;
+	// the download of a streamed file went quiet for that long
+	static final long STALL_TIMEOUT_MS = 60000;
+	static final int ANSWER_TIMEOUT_MS = 120000;
+	private static final long[] RETRY_BACKOFF_MS = { 1000, 2000, 4000, 8000 };
+
+	/**
+	 * Told about the end of the upload of each stored file, on an upload
+	 * thread.
+	 */
+	interface Callback {
+		/**
+		 * @param failure
+		 *            null if the file was uploaded, else the reason of the
+		 *            last failed attempt
+		 */
+		void done(File file, boolean streamed, IOException failure);
+
+		void retrying(File file, int attempt, IOException failure);
+	}
+
+	private final String url;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private int streams = DEFAULT_STREAMS;
+	private HttpClient client;
+	private ExecutorService streamWorkers;
+	private ExecutorService fileWorker;
+	private Semaphore streamSlots;
+	private boolean shutdown;
+	private final AtomicLong streamed = new AtomicLong();
+	private final AtomicLong fromFile = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong fellBehind = new AtomicLong();
+	// the uploads of stored files not done yet, by their current location
+	private final Map<File, Upload> uploading = new HashMap<File, Upload>();
+
+	/**
+	 * @param url
+	 *            the endpoint taking the POSTs, e.g.
+	 *            http://ingest.example.com/upload
+	 */
+	public RelayUploader(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Sets the bytes buffered per streamed upload, DEFAULT_BUFFER_SIZE by
+	 * default. Must be set before the first upload.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < 64 * 1024)
+			throw new IllegalArgumentException("bufferSize must be >= 64 KB");
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the number of uploads streamed at the same time,
+	 * DEFAULT_STREAMS by default. Further downloads are uploaded from the
+	 * local copy. Must be set before the first upload.
+	 */
+	public void setStreams(int streams) {
+		if (streams < 1)
+			throw new IllegalArgumentException("streams must be >= 1");
+		this.streams = streams;
+	}
+
+	/**
+	 * Stops the workers. Uploads still running or waiting are given up.
+	 */
+	// the HttpClient 4.0 API of Android, see TransWatcher.createHttpClient()
+	@SuppressWarnings("deprecation")
+	public synchronized void shutdown() {
+		shutdown = true;
+		if (streamWorkers != null) {
+			streamWorkers.shutdownNow();
+			fileWorker.shutdownNow();
+			client.getConnectionManager().shutdown();
+		}
+		synchronized (uploading) {
+			uploading.clear();
+		}
+	}
+
+	/**
+	 * Tells the upload of a stored file that processing moved it.
+	 */
+	void moved(File from, File to) {
+		synchronized (uploading) {
+			Upload upload = uploading.remove(from);
+			if (upload == null)
+				return;
+			upload.file = to;
+			uploading.put(to, upload);
+		}
+	}
+
+	/**
+	 * @return uploads streamed and done from the local copy, failed ones,
+	 *         and streams given up because the server fell behind
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ENGLISH,
+				"%d streamed, %d from file, %d failed, %d fell behind",
+				streamed.get(), fromFile.get(), failed.get(), fellBehind.get());
+	}
+
+	/**
+	 * @return the upload of one download attempt of the file, null after
+	 *         shutdown()
+	 */
+	// the HttpClient 4.0 API of Android, see TransWatcher.createHttpClient()
+	@SuppressWarnings("deprecation")
+	synchronized Upload begin(String name, Callback callback) {
+		if (shutdown)
+			return null;
+		if (streamWorkers == null) {
+			client = TransWatcher.createHttpClient(streams + 1);
+			// a slow server answers only after reading all of a large file
+			org.apache.http.params.HttpConnectionParams.setSoTimeout(
+					client.getParams(), ANSWER_TIMEOUT_MS);
+			streamWorkers = Executors.newFixedThreadPool(streams,
+					threadFactory("RelayStream"));
+			fileWorker = Executors.newSingleThreadExecutor(threadFactory(
+					"RelayFile"));
+			streamSlots = new Semaphore(streams);
+		}
+		return new Upload(name, callback);
+	}
+
+	/**
+	 * The upload of one download attempt. It sees the data like a tee and is
+	 * told how the download ended.
+	 */
+	class Upload implements DownloadFile.Tee {
+		private final String name;
+		private final Callback callback;
+		private volatile Pipe pipe;
+		private boolean streamFailed;
+		private boolean stored;
+		// where the stored file is now, see moved()
+		private volatile File file;
+
+		Upload(String name, Callback callback) {
+			this.name = name;
+			this.callback = callback;
+		}
+
+		/**
+		 * Starts streaming if a stream is free. Called when the transfer
+		 * starts at the beginning of the file.
+		 */
+		// the HttpClient 4.0 API of Android, see TransWatcher.createHttpClient()
+		@SuppressWarnings("deprecation")
+		synchronized void open() {
+			if (pipe != null || !streamSlots.tryAcquire())
+				return;
+			final Pipe p = new Pipe(bufferSize);
+			pipe = p;
+			try {
+				streamWorkers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							post(new InputStreamBody(p, mimeType(name), name));
+							streamEnded(null);
+						} catch (IOException e) {
+							if (p.overflowed)
+								fellBehind.incrementAndGet();
+							p.abort(e);
+							streamEnded(e);
+						} finally {
+							streamSlots.release();
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				// shut down
+				streamSlots.release();
+				pipe = null;
+			}
+		}
+
+		/**
+		 * Copies the data into the buffer of the stream. Never blocks.
+		 */
+		@Override
+		public boolean write(byte[] data, int offset, int length) {
+			Pipe p = pipe;
+			return p != null && p.write(data, offset, length);
+		}
+
+		/**
+		 * Gives up the stream of a download that failed or turned out to be
+		 * a duplicate.
+		 */
+		void abort() {
+			Pipe p = pipe;
+			if (p != null)
+				p.abort(new IOException("Download of " + name + " ended early"));
+		}
+
+		/**
+		 * Ends the stream of the file stored locally, or uploads the local
+		 * copy if it wasn't streamed.
+		 */
+		synchronized void stored(File file) {
+			stored = true;
+			this.file = file;
+			synchronized (uploading) {
+				uploading.put(file, this);
+			}
+			if (pipe == null || streamFailed)
+				uploadFile(this, 1);
+			else
+				pipe.finish();
+		}
+
+		private synchronized void streamEnded(IOException failure) {
+			if (failure == null) {
+				streamed.incrementAndGet();
+				done(true, null);
+			} else if (stored) {
+				uploadFile(this, 1);
+			} else {
+				streamFailed = true;
+			}
+		}
+
+		private void done(boolean streamed, IOException failure) {
+			File done;
+			synchronized (uploading) {
+				done = file;
+				uploading.remove(done);
+			}
+			callback.done(done, streamed, failure);
+		}
+	}
+
+	// the HttpClient 4.0 API of Android, see TransWatcher.createHttpClient()
+	@SuppressWarnings("deprecation")
+	private void uploadFile(final Upload upload, final int attempt) {
+		Runnable post = new Runnable() {
+			@Override
+			public void run() {
+				File file = upload.file;
+				try {
+					post(new FileBody(file, mimeType(file.getName())));
+					fromFile.incrementAndGet();
+					upload.done(false, null);
+				} catch (IOException e) {
+					// a file moved meanwhile is retried at its new place
+					if (attempt >= MAX_ATTEMPTS || !upload.file.exists()) {
+						failed.incrementAndGet();
+						upload.done(false, e);
+						return;
+					}
+					upload.callback.retrying(file, attempt, e);
+					retryLater(upload, attempt + 1);
+				}
+			}
+		};
+		try {
+			fileWorker.execute(post);
+		} catch (RuntimeException e) {
+			// shut down
+		}
+	}
+
+	private void retryLater(final Upload upload, final int attempt) {
+		long delay = RETRY_BACKOFF_MS[Math.min(attempt - 2,
+				RETRY_BACKOFF_MS.length - 1)];
+		SharedExecutors.SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				uploadFile(upload, attempt);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	// the HttpClient 4.0 API of Android, see TransWatcher.createHttpClient()
+	@SuppressWarnings("deprecation")
+	private void post(ContentBody body) throws IOException {
+		HttpPost post = new HttpPost(url);
+		org.apache.http.entity.mime.MultipartEntity entity = new org.apache.http.entity.mime.MultipartEntity();
+		entity.addPart("file", body);
+		post.setEntity(entity);
+		try {
+			HttpResponse response = client.execute(post);
+			HttpEntity answer = response.getEntity();
+			if (answer != null)
+				answer.consumeContent();
+			int status = response.getStatusLine().getStatusCode();
+			if (status < 200 || status >= 300)
+				throw new IOException("Relay answered "
+						+ response.getStatusLine());
+		} catch (IOException e) {
+			post.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			post.abort();
+			throw new IOException("Relay upload failed: " + e);
+		}
+	}
+
+	static String mimeType(String name) {
+		String lower = name.toLowerCase(Locale.ENGLISH);
+		if (lower.endsWith(".jpg") || lower.endsWith(".jpeg"))
+			return "image/jpeg";
+		return "application/octet-stream";
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * A bounded ring buffer between the download writing and the upload
+	 * reading. Writing never blocks: data that doesn't fit anymore fails
+	 * the stream instead.
+	 */
+	static class Pipe extends InputStream {
+		private final byte[] ring;
+		private int head;
+		private int count;
+		private boolean finished;
+		private IOException failure;
+		volatile boolean overflowed;
+
+		Pipe(int capacity) {
+			ring = new byte[capacity];
+		}
+
+		/**
+		 * @return false if the stream failed, so no more data is needed
+		 */
+		synchronized boolean write(byte[] data, int offset, int length) {
+			if (failure != null || finished)
+				return false;
+			if (length > ring.length - count) {
+				overflowed = true;
+				failure = new IOException("Relay fell behind, buffer full");
+				notifyAll();
+				return false;
+			}
+			int tail = (head + count) % ring.length;
+			int first = Math.min(length, ring.length - tail);
+			System.arraycopy(data, offset, ring, tail, first);
+			System.arraycopy(data, offset + first, ring, 0, length - first);
+			count += length;
+			notifyAll();
+			return true;
+		}
+
+		synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized void abort(IOException e) {
+			if (failure == null)
+				failure = e;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+				throws IOException {
+			if (len == 0)
+				return 0;
+			long deadline = System.currentTimeMillis() + STALL_TIMEOUT_MS;
+			while (count == 0 && !finished && failure == null) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					failure = new IOException("Download stalled");
+				else try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure != null)
+				throw failure;
+			if (count == 0)
+				return -1;
+			int length = Math.min(len, Math.min(count, ring.length - head));
+			System.arraycopy(ring, head, b, off, length);
+			head = (head + length) % ring.length;
+			count -= length;
+			return length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.IOException;
+
+/**
+ * Signals a download that broke off after data was written. The data is kept
+ * and the download can be continued at the given offset.
+ */
+public class ResumableDownloadException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final long startOffset;
+	private final long offset;
+
+	public ResumableDownloadException(String fileName, long startOffset,
+			long offset, IOException cause) {
+		super("Download of " + fileName + " interrupted at byte " + offset);
+		initCause(cause);
+		this.startOffset = startOffset;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return the number of bytes downloaded so far
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return true if the interrupted transfer added data to the file
+	 */
+	public boolean madeProgress() {
+		return offset > startOffset;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A processing stage moving each file into a folder per day it was shot,
+ * e.g. 2014/2014-05-02/IMG_0001.JPG below the given root, optionally below
+ * a folder per camera like "Canon EOS 70D". The day and the camera come
+ * from the EXIF data, the day otherwise from the time the file was last
+ * modified. A file of the same name already there is never replaced; the
+ * moved file is numbered then, e.g. IMG_0001-1.JPG.
+ * 
+ * The watcher records the new place in its content index, so the duplicate
+ * detection and the catch-up sync still find the sorted file. Only a file
+ * numbered here is downloaded again by a later catch-up sync, which then
+ * drops it as a duplicate.
+ */
+public class SortStage implements ProcessingPipeline.Stage {
+	private final File root;
+	private final boolean byCamera;
+
+	/**
+	 * @param byCamera
+	 *            true to sort into a folder per camera first
+	 */
+	public SortStage(File root, boolean byCamera) {
+		this.root = root;
+		this.byCamera = byCamera;
+	}
+
+	@Override
+	public File process(File file) throws IOException {
+		ExifInfo exif = ExifInfo.read(file);
+		Date taken = exif != null && exif.taken != null ? exif.taken
+				: new Date(file.lastModified());
+
+		File folder = root;
+		if (byCamera)
+			folder = new File(folder, cameraFolder(exif));
+		folder = new File(folder, new SimpleDateFormat("yyyy", Locale.US)
+				.format(taken));
+		folder = new File(folder, new SimpleDateFormat("yyyy-MM-dd",
+				Locale.US).format(taken));
+		if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory())
+			throw new IOException("Could not create " + folder);
+
+		File destination = new File(folder, file.getName());
+		File target = destination;
+		// renameTo() replaces existing files on some systems
+		synchronized (SortStage.class) {
+			for (int n = 1; target.exists(); n++)
+				target = ContentIndex.numbered(destination, n);
+			if (!file.renameTo(target))
+				throw new IOException("Could not move " + file + " to "
+						+ target);
+		}
+		return target;
+	}
+
+	/**
+	 * @return e.g. "Canon EOS 70D", without characters not allowed in file
+	 *         names
+	 */
+	static String cameraFolder(ExifInfo exif) {
+		String name = null;
+		if (exif != null && exif.model != null) {
+			name = exif.model;
+			// most models start with the make, some don't
+			if (exif.make != null
+					&& !name.toLowerCase(Locale.US).startsWith(
+							exif.make.toLowerCase(Locale.US).split(" ")[0]))
+				name = exif.make + " " + name;
+		}
+		if (name != null)
+			name = name.replaceAll("[\\\\/:*?\"<|>\\x00-\\x1F]", "_").trim();
+		return name == null || name.length() == 0 || name.startsWith(".")
+				? "Unknown camera" : name;
+	}
+}
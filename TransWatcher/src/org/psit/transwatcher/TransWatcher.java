@@ -21,29 +21,39 @@
 package org.psit.transwatcher;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.DatagramPacket;
+import java.net.BindException;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.Socket;
-import java.util.Arrays;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.StringTokenizer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 /**
  * This runnable is working in an infinite loop to get connection to the Transcend Wifi SD card
@@ -52,289 +62,1177 @@ import org.apache.http.impl.client.DefaultHttpClient;
  * The Listener class is used to notify about any events to the using classes.
  */
 public class TransWatcher extends Thread {
-	private Set<Listener> listeners;
-	private Thread watchDogThread;
-	private Thread downLoadQueue;
-	private BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+	public static final int DEFAULT_DOWNLOAD_CONCURRENCY = 2;
+	public static final int MAX_DOWNLOAD_CONCURRENCY = 8;
+	public static final int MAX_PIPELINE_DEPTH = 16;
+	static final long DEFAULT_BURST_WINDOW_MS = 150;
+	static final int DOWNLOAD_BUFFER_SIZE = 128 * 1024;
+	static final int DISCOVERY_TIMEOUT_MS = 1500;
+	// a quiet notification socket for that long triggers a health check
+	static final int NOTIFICATION_READ_TIMEOUT_MS = 10000;
+	// pause before the n-th consecutive discovery attempt
+	private static final long[] RECONNECT_BACKOFF_MS = { 0, 250, 500, 1000, 2000, 4000 };
+
+	private final EventBus events;
+	private volatile HealthCheck healthCheck;
+	private Thread catchUpThread;
+	private ExecutorService downloadWorkers;
+	private HttpClient httpClient;
+	private final DownloadQueue queue = new DownloadQueue();
+	private final Metrics metrics = new Metrics(queue);
+	private long metricsDumpInterval;
+	private ScheduledFuture<?> metricsDump;
+	private DownloadJournal journal;
+	private ContentIndex contentIndex;
+	private ProcessingPipeline processingPipeline;
+	private RelayUploader relayUploader;
+	private final AtomicInteger activeDownloads = new AtomicInteger();
+	private final Map<String, Long> partialDownloads = new ConcurrentHashMap<String, Long>();
+	private int downloadConcurrency = DEFAULT_DOWNLOAD_CONCURRENCY;
+	private int minConcurrency;
+	private int maxConcurrency;
+	private volatile ConcurrencyController concurrencyController;
+	private ScheduledFuture<?> concurrencySampler;
+	private int pipelineDepth = 1;
+	private long burstWindow = DEFAULT_BURST_WINDOW_MS;
+	private boolean catchUpSync;
+	private final NotificationParser notificationParser = new NotificationParser();
+	private CardPorts cardPorts = CardPorts.TRANSCEND;
+	private String broadcastAddress;
+	private volatile String lastCardIP;
+	private List<InetAddress> broadcastAddresses;
+	private volatile long lastReconnectLatency = -1;
 	private String fileDestinationPrefix;
 	public enum State { NO_WIFI, SEARCHING_CARD, LISTENING, DOWNLOADING };
-	private State state = State.NO_WIFI;
+	/**
+	 * DEBUG messages tell about every step, e.g. each discovery packet and
+	 * health check. INFO only about found cards, downloads and problems.
+	 */
+	public enum MessageLevel { DEBUG, INFO, OFF };
+	private volatile State state = State.NO_WIFI;
+	/**
+	 * BLOCKING uses a thread per socket, NIO multiplexes discovery,
+	 * notification and downloads on the watcher thread with one selector.
+	 */
+	public enum Engine { BLOCKING, NIO };
+	private Engine engine = Engine.BLOCKING;
+	private ThreadFactory threadFactory;
+	// the thread running the watcher: itself, or the one it was handed to
+	// as Runnable, e.g. a virtual thread
+	private volatile Thread runner;
+	// the blocking engine's notification connection, closed to stop the
+	// watcher while it waits for the next name
+	private volatile Socket notificationSocket;
+	// set if this watcher serves one card of a CardFleet
+	private final CardFleet fleet;
+	private final String fleetCardIP;
 	
 	public TransWatcher(String fileDestinationPrefix) {
+		this(fileDestinationPrefix, null, null);
+	}
+
+	/**
+	 * Creates the watcher of one card of a fleet. The fleet discovers the
+	 * card and its download workers do the downloads.
+	 */
+	TransWatcher(String fileDestinationPrefix, CardFleet fleet, String cardIP) {
 		this.fileDestinationPrefix = fileDestinationPrefix;
-		this.listeners = new HashSet<TransWatcher.Listener>();
+		this.events = new EventBus(cardIP != null ? "TransWatcher-" + cardIP
+				: "TransWatcher");
+		this.fleet = fleet;
+		this.fleetCardIP = cardIP;
+		this.lastCardIP = cardIP;
+	}
+
+	/**
+	 * @return the file the download journal is kept in
+	 */
+	public File getJournalFile() {
+		return new File(fileDestinationPrefix + ".transwatcher-journal");
+	}
+
+	/**
+	 * Sets the number of files that are downloaded from the card in parallel.
+	 * Takes effect with the next connection to the card.
+	 */
+	public void setDownloadConcurrency(int downloadConcurrency) {
+		this.downloadConcurrency = Math.max(1,
+				Math.min(MAX_DOWNLOAD_CONCURRENCY, downloadConcurrency));
+	}
+
+	public int getDownloadConcurrency() {
+		return downloadConcurrency;
+	}
+
+	/**
+	 * Sets the rules deciding by name in which order announced files are
+	 * downloaded, or whether at all. The first matching rule applies.
+	 * Defaults to DownloadRule.defaults(), JPEG before RAW.
+	 */
+	public void setDownloadRules(List<DownloadRule> rules) {
+		queue.setRules(new ArrayList<DownloadRule>(rules));
+	}
+
+	/**
+	 * Lets the watcher tune the number of parallel downloads between min and
+	 * max from the measured throughput and failures, starting at the download
+	 * concurrency. Equal bounds, the default, keep the download concurrency
+	 * fixed. Must be set before the watcher is started.
+	 */
+	public void setConcurrencyBounds(int min, int max) {
+		this.minConcurrency = Math.max(1,
+				Math.min(MAX_DOWNLOAD_CONCURRENCY, min));
+		this.maxConcurrency = Math.max(minConcurrency,
+				Math.min(MAX_DOWNLOAD_CONCURRENCY, max));
+	}
+
+	/**
+	 * @return the number of files downloaded in parallel right now, which
+	 *         differs from the download concurrency if it is tuned
+	 */
+	public int getCurrentDownloadConcurrency() {
+		ConcurrencyController controller = concurrencyController;
+		return controller != null ? controller.getLimit()
+				: downloadConcurrency;
+	}
+
+	/**
+	 * Sets the number of requests the NIO engine sends back to back on one
+	 * keep-alive connection, so a burst of shots doesn't wait for a round
+	 * trip to the card per file. 1, the default, sends the next request only
+	 * after the previous response. Cards that close pipelined connections are
+	 * detected and fetched from one request at a time. The blocking engine
+	 * always sends one request at a time. Takes effect with the next
+	 * connection to the card.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = Math.max(1,
+				Math.min(MAX_PIPELINE_DEPTH, pipelineDepth));
+	}
+
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Sets the time in ms a pipelining engine waits for further names after
+	 * the first one of a burst, so they go out in one batch. Defaults to
+	 * 150 ms.
+	 */
+	public void setBurstWindow(long burstWindowMs) {
+		this.burstWindow = Math.max(0, burstWindowMs);
+	}
+
+	long getBurstWindow() {
+		return burstWindow;
+	}
+
+	/**
+	 * Enables downloading the images that were shot while the card was not
+	 * connected. After each connect the card's DCIM folder is compared with
+	 * the images already downloaded and the missing ones are downloaded
+	 * whenever no live shot is waiting.
+	 */
+	public void setCatchUpSync(boolean catchUpSync) {
+		this.catchUpSync = catchUpSync;
+	}
+
+	/**
+	 * Sets the lowest level of the messages passed to the listeners' ping().
+	 * Defaults to INFO.
+	 */
+	public void setMessageLevel(MessageLevel messageLevel) {
+		events.setMessageLevel(messageLevel);
+	}
+
+	/**
+	 * @return the measurements of this watcher, e.g. the time from shot to
+	 *         file on disk
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Posts a snapshot of the metrics to the listeners' ping() every
+	 * intervalMs while the watcher runs. 0 turns it off, the default. Must
+	 * be set before the watcher is started.
+	 */
+	public void setMetricsDumpInterval(long intervalMs) {
+		this.metricsDumpInterval = intervalMs;
+	}
+
+	/**
+	 * Passes each downloaded file through the given pipeline. The listeners'
+	 * downloaded() is then called once the file went through all stages,
+	 * with the file as returned by the last stage, or with the file as it
+	 * was if a stage failed. Must be set before the watcher is started. The
+	 * watcher shuts the pipeline down when it ends.
+	 */
+	public void setProcessingPipeline(ProcessingPipeline processingPipeline) {
+		this.processingPipeline = processingPipeline;
+	}
+
+	/**
+	 * Uploads each downloaded file with the given uploader, streamed while
+	 * it is downloaded. The listeners and the processing pipeline don't wait
+	 * for the upload. Must be set before the watcher is started. The watcher
+	 * shuts the uploader down when it ends.
+	 */
+	public void setRelayUploader(RelayUploader relayUploader) {
+		this.relayUploader = relayUploader;
+	}
+
+	/**
+	 * Selects the engine talking to the card. Must be set before the watcher
+	 * is started.
+	 */
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Sets the factory for the threads of the download workers and the
+	 * catch-up sync, e.g. one making virtual threads. Defaults to named
+	 * platform threads. Must be set before the watcher is started.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Sets the ports to talk to the card on. Defaults to the ones of the
+	 * Transcend card.
+	 */
+	public void setCardPorts(CardPorts cardPorts) {
+		this.cardPorts = cardPorts;
+	}
+
+	/**
+	 * Sets a fixed address to send the discovery packet to instead of the
+	 * broadcast address of the wireless interface. Used to talk to a simulated
+	 * card, e.g. on 127.0.0.1.
+	 */
+	public void setBroadcastAddress(String broadcastAddress) {
+		this.broadcastAddress = broadcastAddress;
+	}
+
+	/**
+	 * @return the IP of the card found last or null
+	 */
+	public String getLastCardIP() {
+		return lastCardIP;
+	}
+
+	/**
+	 * Sets the IP the card had the last time, e.g. stored from a previous
+	 * run. It is probed directly in addition to the broadcast.
+	 */
+	public void setLastCardIP(String lastCardIP) {
+		this.lastCardIP = lastCardIP;
+	}
+
+	/**
+	 * @return the time in ms it took the last time from losing (or starting
+	 *         to look for) the card to listening to it again, -1 if it never
+	 *         connected
+	 */
+	public long getLastReconnectLatency() {
+		return lastReconnectLatency;
 	}
 
 	@Override
 	public void run() {
+		runner = Thread.currentThread();
+		journal = DownloadJournal.open(getJournalFile());
+		contentIndex = ContentIndex.open(new File(fileDestinationPrefix
+				+ ".transwatcher-index"));
+		startMetricsDump();
+		startConcurrencyControl();
 
 		try {
-			while (true) {
+			if (engine == Engine.NIO && fleet == null)
+				new NioEngine(this).run();
+			else
+				runBlocking();
+		} catch (InterruptedException e) {
+			stopImageDownLoaderQueue();
+			// the fleet shuts down what its cards share
+			if (fleet == null) {
+				if (relayUploader != null)
+					relayUploader.shutdown();
+				if (processingPipeline != null)
+					processingPipeline.shutdown();
+			}
+			journal.close();
+			contentIndex.close();
+			notifyMessage("Connection abandoned.");
+		} finally {
+			if (metricsDump != null)
+				metricsDump.cancel(false);
+			if (concurrencySampler != null)
+				concurrencySampler.cancel(false);
+			runner = null;
+		}
 
-				String cardIP = connectAndGetCardIP();
-				if (cardIP != null) {
-					notifyMessage("Found SD card, IP: " + cardIP);
+	}
 
-					// handshake successful, open permanent TCP connection
-					// to listen to new images
-					Socket newImageListenerSocket = null;
-					try {
-						newImageListenerSocket = new Socket(cardIP, 5566);
-						newImageListenerSocket.setKeepAlive(true);
-						InputStream is = newImageListenerSocket
-								.getInputStream();
-						byte[] c = new byte[1];
-						byte[] singleMessage = new byte[255];
-						int msgPointer = 0;
-
-						startConnectionKeepAliveWatchDog(newImageListenerSocket);
-
-						startImageDownloaderQueue(cardIP);
-
-						setState(State.LISTENING);
-						
-						// loop to wait for new images
-						while (newImageListenerSocket.isConnected()) {
-							if (is.read(c) == 1) {
-								if (0x3E == c[0]) { // >
-									// start of filename
-									msgPointer = 0;
-								} else if (0x00 == c[0]) {
-									// end of filename
-									String msg = new String(Arrays.copyOfRange(
-											singleMessage, 0, msgPointer));
-									notifyMessage("Image shot: " + msg);
-									
-									// add to download queue
-									queue.add(msg);
-								} else {
-									// single byte. add to buffer
-									singleMessage[msgPointer++] = c[0];
-								}
-							}
-						}
-						setState(State.SEARCHING_CARD);
-					} catch (IOException e) {
-						notifyMessage("Error during image notification connection!");
-					} finally {
+	private void runBlocking() throws InterruptedException {
+		long disconnectedAt = System.currentTimeMillis();
+		int failedAttempts = 0;
+
+		while (true) {
+			Thread.sleep(reconnectBackoff(failedAttempts));
+
+			String cardIP = locateCard();
+			if (cardIP != null) {
+				cardFound(cardIP);
+				failedAttempts = 0;
+
+				// handshake successful, open permanent TCP connection
+				// to listen to new images
+				Socket newImageListenerSocket = null;
+				try {
+					newImageListenerSocket = new Socket(cardIP,
+							cardPorts.notificationPort);
+					notificationSocket = newImageListenerSocket;
+					if (isStopping())
+						throw new InterruptedException();
+					newImageListenerSocket.setKeepAlive(true);
+					newImageListenerSocket
+							.setSoTimeout(NOTIFICATION_READ_TIMEOUT_MS);
+					notificationParser.reset(newImageListenerSocket
+							.getInputStream());
+
+					startHealthCheck(newImageListenerSocket);
+
+					startImageDownloaderQueue(cardIP);
+
+					if (catchUpSync)
+						startCatchUpSync(cardIP);
+
+					listening(disconnectedAt);
+					
+					// loop to wait for new images until the card closes the stream
+					while (true) {
+						String msg;
 						try {
-							newImageListenerSocket.close();
-						} catch (Exception e) {
-							e.printStackTrace();
+							msg = notificationParser.next();
+						} catch (SocketTimeoutException e) {
+							if (isStopping())
+								throw new InterruptedException();
+							// quiet for a while. Make sure the card is still there.
+							healthCheck.probeNow();
+							continue;
 						}
+						if (msg == null)
+							break;
+						healthCheck.activity();
+						announced(msg);
+					}
+					setState(State.SEARCHING_CARD);
+				} catch (IOException e) {
+					if (isStopping())
+						throw new InterruptedException();
+					notifyMessage("Error during image notification connection!");
+				} finally {
+					notificationSocket = null;
+					stopHealthCheck();
+					disconnectedAt = System.currentTimeMillis();
+					if (fleet != null)
+						fleet.cardLost(cardIP);
+					try {
+						newImageListenerSocket.close();
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
-				} else {
-					notifyMessage("No card found, retrying.");
 				}
-				Thread.sleep(2000);
+			} else {
+				notifyMessage("No card found, retrying.");
+				failedAttempts++;
+				// the network may have changed, look at the interfaces again
+				forgetBroadcastAddresses();
 			}
-		} catch (InterruptedException e) {
-			stopImageDownLoaderQueue();
-			notifyMessage("Connection abandoned.");
 		}
+	}
+
+	/**
+	 * @return the IP of the card or null if it wasn't found
+	 */
+	private String locateCard() throws InterruptedException {
+		if (fleet == null)
+			return connectAndGetCardIP();
+		setState(State.SEARCHING_CARD);
+		return fleet.awaitCard(fleetCardIP);
+	}
+
+	private void startMetricsDump() {
+		if (metricsDumpInterval <= 0)
+			return;
+		metricsDump = SharedExecutors.SCHEDULER.scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						notifyMessage("Metrics: " + metrics.snapshot());
+						if (processingPipeline != null)
+							notifyMessage("Processing: " + processingPipeline);
+						if (relayUploader != null)
+							notifyMessage("Relay: " + relayUploader);
+					}
+				}, metricsDumpInterval, metricsDumpInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void startConcurrencyControl() {
+		if (minConcurrency >= maxConcurrency)
+			return;
+		final ConcurrencyController controller = new ConcurrencyController(
+				metrics, queue, minConcurrency, maxConcurrency,
+				downloadConcurrency);
+		concurrencyController = controller;
+		concurrencySampler = SharedExecutors.SCHEDULER.scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						if (controller.sample(System.currentTimeMillis()))
+							debug("Download concurrency now %d",
+									controller.getLimit());
+					}
+				}, ConcurrencyController.SAMPLE_INTERVAL_MS,
+				ConcurrencyController.SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	// ----------------- steps shared by the engines
+
+	static long reconnectBackoff(int failedAttempts) {
+		return RECONNECT_BACKOFF_MS[Math.min(failedAttempts,
+				RECONNECT_BACKOFF_MS.length - 1)];
+	}
+
+	void cardFound(String cardIP) {
+		notifyMessage("Found SD card, IP: " + cardIP);
+		lastCardIP = cardIP;
+	}
+
+	void listening(long disconnectedAt) {
+		setState(State.LISTENING);
+		lastReconnectLatency = System.currentTimeMillis() - disconnectedAt;
+		metrics.connected(lastReconnectLatency);
+		debug("Listening to card after %d ms", lastReconnectLatency);
+	}
+
+	/**
+	 * Handles a file name announced by the card.
+	 */
+	void announced(String fileName) {
+		debug("Image shot: %s", fileName);
+		if (queue.isSkipped(fileName)) {
+			debug("Skipping %s by download rule", fileName);
+			return;
+		}
+
+		// add to download queue, unless it's already waiting there
+		if (journal.announced(fileName))
+			queue.add(fileName);
+	}
+
+	/**
+	 * Queues everything announced but not downloaded yet, including
+	 * interrupted downloads.
+	 */
+	void requeuePending() {
+		queue.clear();
+		List<String> pending = journal.pending();
+		if (!pending.isEmpty()) {
+			notifyMessage("Queueing " + pending.size()
+					+ " pending downloads.");
+			queue.addAll(pending);
+		}
+	}
+
+	/**
+	 * @return the request for the file on the card's web server
+	 */
+	static String downloadRequest(String fileName) {
+		File file = new File(fileName);
+		return "/cgi-bin/wifi_download?fn=" + file.getName() + "&fd="
+				+ file.getParent() + "/";
+	}
+
+	File localFile(String fileName) {
+		return new File(fileDestinationPrefix + new File(fileName).getName());
+	}
+
+	/**
+	 * @return the local file to download the file on the card to
+	 */
+	DownloadFile newDownloadFile(String fileName) {
+		DownloadFile target = new DownloadFile(localFile(fileName),
+				contentIndex);
+		target.setTee(thumbnailTee(target.getDestination()));
+		if (relayUploader != null)
+			target.setRelay(relayUploader.begin(target.getDestination()
+					.getName(), relayCallback));
+		return target;
+	}
+
+	/**
+	 * Tells the listeners about a committed download.
+	 */
+	void downloadStored(DownloadFile target) {
+		File stored = target.getCommitted();
+		RelayUploader.Upload upload = target.getRelay();
+		if (target.isDuplicate()) {
+			if (upload != null)
+				upload.abort();
+			notifyMessage(target.getDestination().getName()
+					+ " is a duplicate of " + stored.getName() + ", skipped.");
+			return;
+		}
+		// the upload goes on by itself, from wherever processing moves it
+		if (upload != null)
+			upload.stored(stored);
+		process(stored);
+		if (!stored.equals(target.getDestination()))
+			notifyMessage(target.getDestination().getName()
+					+ " exists with other content, stored as "
+					+ stored.getName());
+		notifyMessage(stored.getName() + " downloaded");
+	}
+
+	/**
+	 * Passes a stored (and relayed) file to the processing pipeline, or
+	 * straight to the listeners.
+	 */
+	private void process(File stored) {
+		if (processingPipeline == null
+				|| !processingPipeline.submit(stored, processingCallback))
+			notifyDownload(stored.getPath());
+	}
+
+	private final RelayUploader.Callback relayCallback = new RelayUploader.Callback() {
+		@Override
+		public void done(File file, boolean streamed, IOException failure) {
+			if (failure == null) {
+				debug("%s relayed%s", file.getName(),
+						streamed ? " while downloading" : "");
+			} else {
+				notifyMessage("Relaying " + file.getName() + " failed: "
+						+ failure.getMessage());
+				notifyException(failure);
+			}
+		}
+
+		@Override
+		public void retrying(File file, int attempt, IOException failure) {
+			debug("Relaying %s failed (attempt %d), retrying: %s",
+					file.getName(), attempt, failure.getMessage());
+		}
+	};
+
+	private final ProcessingPipeline.Callback processingCallback = new ProcessingPipeline.Callback() {
+		@Override
+		public void processed(File downloaded, File result) {
+			if (result == null) {
+				debug("Processing of %s ended early", downloaded.getName());
+				return;
+			}
+			debug("%s processed to %s", downloaded.getName(), result.getPath());
+			notifyDownload(result.getPath());
+		}
+
+		@Override
+		public void failed(File file, String stage, Exception e) {
+			notifyMessage("Processing " + file.getName() + " failed in "
+					+ stage + ": " + e.getMessage());
+			notifyException(e);
+			notifyDownload(file.getPath());
+		}
+
+		/**
+		 * Keeps the content index and a running upload in step with a stage
+		 * moving the file.
+		 */
+		@Override
+		public void moved(File from, File to) {
+			contentIndex.moved(from, to);
+			if (relayUploader != null)
+				relayUploader.moved(from, to);
+		}
+	};
+
+	CardPorts getCardPorts() {
+		return cardPorts;
+	}
+
+	DownloadQueue getQueue() {
+		return queue;
+	}
+
+	DownloadJournal getJournal() {
+		return journal;
+	}
+
+	Map<String, Long> getPartialDownloads() {
+		return partialDownloads;
+	}
+
+	boolean isCatchUpSync() {
+		return catchUpSync;
+	}
 
+	Metrics metrics() {
+		return metrics;
 	}
 
+	/**
+	 * @return the current state, e.g. for a listener added while the
+	 *         watcher runs, which only hears of the next change
+	 */
+	public State getWatcherState() {
+		return state;
+	}
+
+	// getConnectionManager() is the HttpClient 4.0 API built into Android
+	@SuppressWarnings("deprecation")
 	private void stopImageDownLoaderQueue() {
-		if(downLoadQueue != null && downLoadQueue.isAlive())
-			downLoadQueue.interrupt();
+		stopCatchUpSync();
+		if (fleet != null)
+			fleet.getScheduler().detach(this);
+		if (downloadWorkers != null)
+			downloadWorkers.shutdownNow();
+		// closes the connections, so running transfers end right away
+		if (httpClient != null)
+			httpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Stops the workers of the previous connection and waits for them, so no
+	 * file is downloaded twice at the same time after it is queued again.
+	 */
+	private void awaitImageDownLoaderQueueStopped() {
+		stopImageDownLoaderQueue();
+		if (downloadWorkers != null) {
+			try {
+				downloadWorkers.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (fleet != null)
+			fleet.getScheduler().awaitIdle(this, 10000);
+		downloadWorkers = null;
+		httpClient = null;
 	}
 
+	/**
+	 * Starts a bounded pool of download workers for the given card. All
+	 * workers take their file names from the same queue and share one pooled
+	 * keep-alive HTTP client, so a burst of shots is fetched in parallel over
+	 * reused connections.
+	 */
 	private void startImageDownloaderQueue(final String cardIP) {
-		if(downLoadQueue != null)
-			downLoadQueue.interrupt();
-		
-		downLoadQueue = new Thread(new Runnable() {
+		awaitImageDownLoaderQueueStopped();
 
-			@Override
-			public void run() {
-				queue = new LinkedBlockingQueue<String>();
-				InputStream input = null;
-				FileOutputStream output= null;
-				try {
-					while (true) {
-						String fileName = queue.take();
-						setState(State.DOWNLOADING);
-						File file = new File(fileName);
-						String req = "/cgi-bin/wifi_download?fn="
-								+ file.getName() + "&fd=" + file.getParent()
-								+ "/";
-						HttpClient httpclient = new DefaultHttpClient();
-						HttpGet httpGet = new HttpGet("http://" + cardIP + req);
-						HttpResponse response = httpclient.execute(httpGet);
-
-						input = response.getEntity().getContent();
-						output = new FileOutputStream(
-								fileDestinationPrefix+file.getName() );
-						byte[] buffer = new byte[1024];
-
-						for (int length; (length = input.read(buffer)) > 0;) {
-							output.write(buffer, 0, length);
+		final ConcurrencyController controller = concurrencyController;
+		final int workers = controller != null ? controller.getMax()
+				: downloadConcurrency;
+		requeuePending();
+		activeDownloads.set(0);
+		httpClient = createHttpClient(workers);
+		if (fleet != null) {
+			// the fleet's workers download for all cards in turn
+			fleet.getScheduler().attach(this, httpClient, cardIP);
+			return;
+		}
+		downloadWorkers = Executors.newFixedThreadPool(workers,
+				threadFactory != null ? threadFactory : new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "ImageDownloaderQueue-"
+								+ count.incrementAndGet());
+					}
+				});
+
+		final HttpClient workerClient = httpClient;
+		for (int i = 0; i < workers; i++) {
+			downloadWorkers.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+					try {
+						while (true) {
+							if (controller == null) {
+								download(workerClient, cardIP, queue.take(),
+										buffer);
+								continue;
+							}
+							// only as many workers as the controller allows
+							controller.acquire();
+							try {
+								download(workerClient, cardIP, queue.take(),
+										buffer);
+							} finally {
+								controller.release();
+							}
 						}
-						notifyDownload(fileDestinationPrefix+file.getName());
-						notifyMessage(file.getName()+" downloaded");
-						setState(State.LISTENING);
+					} catch (InterruptedException ex) {
+						debug("Downloadqueue stopped.");
 					}
-				} catch (InterruptedException ex) {
-					notifyMessage("Downloadqueue stopped.");
-				} catch (ClientProtocolException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} finally {
-					if (output != null) try { output.close(); } catch (IOException logOrIgnore) {}
-		            if (input != null) try { input.close(); } catch (IOException logOrIgnore) {}
 				}
+
+			});
+		}
+	}
+
+	/**
+	 * Downloads a queued file and records the outcome in the journal.
+	 * 
+	 * @return the number of bytes received for a completed download, 0
+	 *         otherwise
+	 */
+	long download(HttpClient client, String cardIP, DownloadQueue.Entry file,
+			byte[] buffer) {
+		String fileName = file.path;
+		if (activeDownloads.getAndIncrement() == 0) {
+			setDownloadsBusy(true);
+			setState(State.DOWNLOADING);
+		}
+		try {
+			journal.started(fileName);
+			long started = System.nanoTime();
+			long received = downloadFile(client, cardIP, fileName, buffer);
+			journal.completed(fileName);
+			metrics.downloaded(file, received, System.nanoTime() - started);
+			HealthCheck check = healthCheck;
+			if (check != null)
+				check.activity();
+			return received;
+		} catch (FileNotFoundException e) {
+			notifyMessage(fileName + " is not on the card anymore.");
+			journal.dropped(fileName);
+		} catch (ResumableDownloadException e) {
+			metrics.downloadFailed();
+			notifyMessage("Download of " + fileName
+					+ " interrupted at byte " + e.getOffset() + ".");
+			// the link still delivered data, so try again right
+			// away. Otherwise it is resumed after the next connect.
+			if (e.madeProgress())
+				queue.requeue(file);
+		} catch (IOException e) {
+			notifyMessage("Download of " + fileName + " failed.");
+			notifyException(e);
+			metrics.downloadFailed();
+		} finally {
+			if (activeDownloads.decrementAndGet() == 0) {
+				setDownloadsBusy(false);
+				if (state == State.DOWNLOADING)
+					setState(State.LISTENING);
 			}
+		}
+		return 0;
+	}
 
-		}, "ImageDownloaderQueue");
-		
-		downLoadQueue.start();
+	private void setDownloadsBusy(boolean busy) {
+		HealthCheck check = healthCheck;
+		if (check != null)
+			check.setBusy(busy);
 	}
 
-	private void startConnectionKeepAliveWatchDog(
-			final Socket newImageListenerSocket) {
-		watchDogThread = new Thread(new Runnable() {
+	/**
+	 * Starts listing the card for missed images in the background. Uses the
+	 * HTTP client of the download workers or, if there is none, an own one.
+	 */
+	// getConnectionManager() is the HttpClient 4.0 API built into Android
+	@SuppressWarnings("deprecation")
+	void startCatchUpSync(String cardIP) {
+		stopCatchUpSync();
+		final HttpClient ownClient = httpClient == null ? createHttpClient(1)
+				: null;
+		final CatchUpSync sync = new CatchUpSync(ownClient != null ? ownClient
+				: httpClient, "http://" + cardIP + ":" + cardPorts.httpPort,
+				journal, queue, contentIndex, fileDestinationPrefix);
+		Runnable catchUp = new Runnable() {
+			@Override
 			public void run() {
 				try {
-					while (true) {
-						Thread.sleep(5000);
-						InetSocketAddress addr = new InetSocketAddress(
-								newImageListenerSocket.getInetAddress(), 80);
-						Socket s = new Socket();
-						s.connect(addr, 1000);
-						s.close();
-						notifyMessage("WatchDog ping.");
-					}
+					int queued = sync.queueMissing();
+					notifyMessage("Catch-up: " + queued
+							+ " missed images queued.");
 				} catch (InterruptedException e) {
-					notifyMessage("WatchDog interrupted");
+					notifyMessage("Catch-up interrupted.");
 				} catch (IOException e) {
-					notifyMessage("WatchDog: Connection to card lost.");
-					try {
-						newImageListenerSocket.close();
-					} catch (IOException e1) {
-						e1.printStackTrace();
-					}
-					e.printStackTrace();
+					notifyMessage("Catch-up failed.");
+					notifyException(e);
+				} finally {
+					if (ownClient != null)
+						ownClient.getConnectionManager().shutdown();
 				}
+			}
+		};
+		catchUpThread = threadFactory != null ? threadFactory
+				.newThread(catchUp) : new Thread(catchUp, "CatchUpSync");
+		catchUpThread.start();
+	}
 
-			};
-		}, "ConnectionWatchDog");
-		watchDogThread.start();
+	void stopCatchUpSync() {
+		if (catchUpThread != null && catchUpThread.isAlive())
+			catchUpThread.interrupt();
 	}
 
+	/**
+	 * Downloads a single file. If an earlier transfer of the file broke off,
+	 * only the missing bytes are requested with a Range header. Cards that
+	 * ignore the range answer with the full file, which is then written from
+	 * the start.
+	 * 
+	 * @return the number of bytes received
+	 * @throws ResumableDownloadException
+	 *             if the transfer broke off after some data was written. The
+	 *             offset is recorded for resumption.
+	 */
+	private long downloadFile(HttpClient client, String cardIP,
+			String fileName, byte[] buffer) throws IOException {
+		File file = new File(fileName);
+		HttpGet httpGet = new HttpGet("http://" + cardIP + ":"
+				+ cardPorts.httpPort + downloadRequest(fileName));
+		DownloadFile target = newDownloadFile(fileName);
+
+		Long recordedOffset = partialDownloads.remove(fileName);
+		long resumeOffset = recordedOffset != null ? target
+				.resumableLength(recordedOffset) : 0;
+		if (resumeOffset > 0)
+			httpGet.setHeader("Range", "bytes=" + resumeOffset + "-");
+
+		InputStream input = null;
+		try {
+			HttpResponse response = client.execute(httpGet);
+			HttpEntity entity = response.getEntity();
+			input = entity.getContent();
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_PARTIAL_CONTENT && resumeOffset > 0
+					&& resumeOffset == getContentRangeStart(response
+							.getFirstHeader("Content-Range"))) {
+				debug("Resuming %s at byte %d", file.getName(), resumeOffset);
+			} else if (status == HttpStatus.SC_OK) {
+				resumeOffset = 0;
+			} else if (status == HttpStatus.SC_NOT_FOUND) {
+				throw new FileNotFoundException(fileName);
+			} else {
+				// a range answer we can't use. Start over next time.
+				resumeOffset = 0;
+				throw new IOException("Card answered "
+						+ response.getStatusLine() + " for " + fileName);
+			}
+
+			target.open(resumeOffset, entity.getContentLength());
+			target.copyFrom(input, buffer);
+			target.commit();
+		} catch (FileNotFoundException e) {
+			target.abort();
+			throw e;
+		} catch (IOException e) {
+			// don't hand a half read connection back to the pool
+			httpGet.abort();
+			long kept = target.isOpen() ? target.suspend() : resumeOffset;
+			if (kept > 0) {
+				partialDownloads.put(fileName, kept);
+				throw new ResumableDownloadException(fileName, resumeOffset,
+						kept, e);
+			}
+			target.abort();
+			throw e;
+		} finally {
+			// closing the fully consumed content releases the connection for reuse
+			if (input != null) try { input.close(); } catch (IOException logOrIgnore) {}
+		}
+		downloadStored(target);
+		return target.getWritten() - resumeOffset;
+	}
+
+	/**
+	 * @return the first byte position of a "Content-Range: bytes x-y/z"
+	 *         header or -1 if there is none
+	 */
+	private static long getContentRangeStart(Header contentRange) {
+		return contentRange == null ? -1
+				: parseContentRangeStart(contentRange.getValue());
+	}
+
+	static long parseContentRangeStart(String contentRange) {
+		String value = contentRange.trim();
+		int start = value.indexOf(' ') + 1;
+		int end = value.indexOf('-', start);
+		if (end < 0)
+			return -1;
+		try {
+			return Long.parseLong(value.substring(start, end).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Creates the HTTP client shared by all download workers of one card. The
+	 * connection manager keeps up to maxConnections keep-alive connections to
+	 * the card's web server.
+	 * 
+	 * Uses the HttpClient 4.0 API built into Android, deprecated in the
+	 * versions the core builds with. Its types aren't imported, as javac at
+	 * source level 8 warns about deprecated imports whatever is suppressed.
+	 */
+	@SuppressWarnings("deprecation")
+	static HttpClient createHttpClient(int maxConnections) {
+		org.apache.http.params.HttpParams params = new org.apache.http.params.BasicHttpParams();
+		org.apache.http.params.HttpProtocolParams.setVersion(params,
+				HttpVersion.HTTP_1_1);
+		org.apache.http.conn.params.ConnManagerParams.setMaxTotalConnections(
+				params, maxConnections);
+		org.apache.http.conn.params.ConnManagerParams.setMaxConnectionsPerRoute(
+				params, new org.apache.http.conn.params.ConnPerRouteBean(
+						maxConnections));
+		org.apache.http.params.HttpConnectionParams.setConnectionTimeout(
+				params, 5000);
+		org.apache.http.params.HttpConnectionParams.setSoTimeout(params, 10000);
+
+		org.apache.http.conn.scheme.SchemeRegistry schemeRegistry = new org.apache.http.conn.scheme.SchemeRegistry();
+		schemeRegistry.register(new org.apache.http.conn.scheme.Scheme("http",
+				org.apache.http.conn.scheme.PlainSocketFactory
+						.getSocketFactory(), 80));
+		return new org.apache.http.impl.client.DefaultHttpClient(
+				new org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager(
+						params, schemeRegistry), params);
+	}
+
+	private void startHealthCheck(final Socket newImageListenerSocket) {
+		stopHealthCheck();
+		healthCheck = HealthCheck.start(newImageListenerSocket,
+				new InetSocketAddress(newImageListenerSocket.getInetAddress(),
+						cardPorts.httpPort), new HealthCheck.Callback() {
+					@Override
+					public void alive() {
+						debug("WatchDog ping.");
+					}
+
+					@Override
+					public void lost(IOException e) {
+						metrics.watchdogFailure();
+						notifyMessage("WatchDog: Connection to card lost.");
+						notifyException(e);
+					}
+				});
+	}
+
+	private void stopHealthCheck() {
+		HealthCheck check = healthCheck;
+		if (check != null)
+			check.cancel();
+	}
+
+	/**
+	 * Stops the watcher. It ends shortly after, join() it to wait for that.
+	 */
 	@Override
 	public void interrupt() {
-		if (watchDogThread != null && watchDogThread.isAlive())
-			watchDogThread.interrupt();
-		
-		if (downLoadQueue != null && downLoadQueue.isAlive())
-			downLoadQueue.interrupt();
+		stopHealthCheck();
+		stopImageDownLoaderQueue();
 
 		super.interrupt();
+		Thread running = runner;
+		if (running != null && running != this)
+			running.interrupt();
+		// a blocking read doesn't see the interrupt
+		Socket socket = notificationSocket;
+		if (socket != null) try { socket.close(); } catch (IOException logOrIgnore) {}
+	}
+
+	/**
+	 * @return true if the watcher was asked to stop
+	 */
+	private boolean isStopping() {
+		Thread running = runner;
+		return isInterrupted() || running != null && running.isInterrupted();
 	}
 
+	/**
+	 * Sends the discovery packet to the card's last known IP and the broadcast
+	 * addresses of all wireless interfaces at once and waits for the first
+	 * card to answer.
+	 * 
+	 * @return the IP of the card or null if no card answered
+	 */
 	private String connectAndGetCardIP() {
-		DatagramSocket clientSocket = null, serverSocket = null;
+		DatagramSocket socket = null;
 
 		try {
-			String broadcastIP = getBroadcastIP();
-			setState(broadcastIP == null ? State.NO_WIFI
-					: State.SEARCHING_CARD);
-			notifyMessage("BroadcastIP: " + broadcastIP);
-
-			// send out broadcast
-			clientSocket = new DatagramSocket(58255);
-			InetAddress IPAddress = InetAddress.getByName(broadcastIP);
+			metrics.discoveryAttempt();
+			List<InetAddress> targets = getDiscoveryTargets();
+			if (targets.isEmpty())
+				return null;
+
+			// the card answers to the reply port. Listen on it before the
+			// discovery packets go out, so a quick answer can't get lost.
+			socket = openDiscoverySocket(cardPorts.replyPort);
+
 			byte[] sendData = "".getBytes();
-			DatagramPacket sendPacket = new DatagramPacket(sendData,
-					sendData.length, IPAddress, 55777);
-			clientSocket.send(sendPacket);
-			clientSocket.close();
+			for (InetAddress target : targets) {
+				try {
+					socket.send(new DatagramPacket(sendData, sendData.length,
+							target, cardPorts.discoveryPort));
+				} catch (IOException e) {
+					notifyMessage("Sending discovery to " + target + " failed.");
+				}
+			}
 
-			serverSocket = new DatagramSocket(58255);
 			byte[] receiveData = new byte[256];
 			DatagramPacket receivePacket = new DatagramPacket(receiveData,
 					receiveData.length);
-			serverSocket.setSoTimeout(3000);
-			serverSocket.receive(receivePacket);
-			serverSocket.close();
+			long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT_MS;
+			long remaining;
+			while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+				socket.setSoTimeout((int) remaining);
+				receivePacket.setLength(receiveData.length);
+				socket.receive(receivePacket);
 
-			notifyMessage("Packet received: "+new String(receiveData));
-			if (new String(receivePacket.getData()).indexOf("Transcend WiFiSD") >= 0)
-				return receivePacket.getAddress().getHostAddress();
+				String reply = new String(receivePacket.getData(), 0,
+						receivePacket.getLength());
+				debug("Packet received: %s", reply);
+				if (reply.indexOf("Transcend WiFiSD") >= 0)
+					return receivePacket.getAddress().getHostAddress();
+			}
+		} catch (BindException ex) {
+			notifyMessage(replyPortTaken(cardPorts));
+			notifyException(ex);
 		} catch (Exception ex) {
 			notifyMessage("Card handshake unsuccessful. ");
 			notifyException(ex);
 		} finally {
-			if (clientSocket != null)
-				clientSocket.close();
-			if (serverSocket != null)
-				serverSocket.close();
+			if (socket != null)
+				socket.close();
 		}
 		return null;
 	}
 
-	private void setState(State state) {
+	/**
+	 * Opens the socket the card's discovery replies arrive on.
+	 * 
+	 * The card sends its reply to the fixed reply port of the sender. Only
+	 * one socket per machine can have it: with several bound to it, e.g.
+	 * with SO_REUSEADDR, one of them would get all replies and the others
+	 * none. So the port is bound exclusively, and a second watcher on the
+	 * same machine fails with a BindException instead of taking the first
+	 * one's replies. To watch several cards, use one CardFleet: its single
+	 * socket gets the replies of all cards and hands each card to its own
+	 * watcher.
+	 */
+	static DatagramSocket openDiscoverySocket(int replyPort)
+			throws IOException {
+		DatagramSocket socket = new DatagramSocket(null);
+		try {
+			socket.setBroadcast(true);
+			socket.bind(new InetSocketAddress(replyPort));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	static String replyPortTaken(CardPorts ports) {
+		return "Reply port " + ports.replyPort
+				+ " is taken, e.g. by another watcher on this machine."
+				+ " Watch several cards with one CardFleet.";
+	}
+
+	void setState(State state) {
 		this.state = state;
 		notifyState();
 	}
 
-	private String getBroadcastIP() {
-		String myIP = null;
+	/**
+	 * @return the addresses to send the discovery packet to: the card's last
+	 *         known IP and the broadcast addresses
+	 */
+	List<InetAddress> getDiscoveryTargets() throws IOException {
+		List<InetAddress> targets = getBroadcastAddresses();
+		setState(targets.isEmpty() ? State.NO_WIFI : State.SEARCHING_CARD);
+		debug("BroadcastIPs: %s", targets);
 
+		String cachedIP = lastCardIP;
+		if (cachedIP != null) {
+			targets = new ArrayList<InetAddress>(targets);
+			targets.add(0, InetAddress.getByName(cachedIP));
+		}
+		return targets;
+	}
+
+	void forgetBroadcastAddresses() {
+		broadcastAddresses = null;
+	}
+
+	/**
+	 * @return the broadcast addresses of all wireless interfaces that are up,
+	 *         as calculated from their real network prefix. The result is
+	 *         kept until a discovery attempt fails.
+	 */
+	private List<InetAddress> getBroadcastAddresses() {
+		if (broadcastAddresses != null)
+			return broadcastAddresses;
+
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
 		try {
-			Enumeration<NetworkInterface> interfaces = NetworkInterface
-					.getNetworkInterfaces();
-			while (interfaces.hasMoreElements() && myIP == null) {
-				NetworkInterface current = interfaces.nextElement();
-				notifyMessage(current.toString());
-				notifyMessage("Name: "+current.getName());
-				if (!current.isUp() || current.isLoopback()
-						|| current.isVirtual()
-						|| !current.getName().startsWith("wl"))
-					continue;
-				Enumeration<InetAddress> addresses = current.getInetAddresses();
-				while (addresses.hasMoreElements()) {
-					InetAddress current_addr = addresses.nextElement();
-					if (current_addr.isLoopbackAddress())
-						continue;
-					if (current_addr instanceof Inet4Address) {
-						myIP = current_addr.getHostAddress();
-						break;
-					}
-				}
-			}
+			if (broadcastAddress != null)
+				addresses.add(InetAddress.getByName(broadcastAddress));
+			else
+				addresses = getWirelessBroadcastAddresses();
 		} catch (Exception exc) {
 			notifyMessage("Error determining network interfaces:\n");
 		}
 
-		if (myIP != null) {
-			// broadcast for IPv4
-			StringTokenizer st = new StringTokenizer(myIP, ".");
-			StringBuffer broadcastIP = new StringBuffer();
-			// hate that archaic string puzzle
-			broadcastIP.append(st.nextElement());
-			broadcastIP.append(".");
-			broadcastIP.append(st.nextElement());
-			broadcastIP.append(".");
-			broadcastIP.append(st.nextElement());
-			broadcastIP.append(".");
-			broadcastIP.append("255");
-			return broadcastIP.toString();
-		}
+		if (!addresses.isEmpty())
+			broadcastAddresses = addresses;
+		return addresses;
+	}
 
-		return null;
+	/**
+	 * @return the broadcast addresses of the IPv4 networks of all wireless
+	 *         interfaces that are up
+	 */
+	static List<InetAddress> getWirelessBroadcastAddresses()
+			throws SocketException {
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
+		Enumeration<NetworkInterface> interfaces = NetworkInterface
+				.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements()) {
+			NetworkInterface current = interfaces.nextElement();
+			if (!current.isUp() || current.isLoopback()
+					|| current.isVirtual()
+					|| !current.getName().startsWith("wl"))
+				continue;
+			for (InterfaceAddress address : current.getInterfaceAddresses()) {
+				if (address.getAddress() instanceof Inet4Address
+						&& address.getBroadcast() != null)
+					addresses.add(address.getBroadcast());
+			}
+		}
+		return addresses;
 	}
 
 	// ----------------- Listener stuff
 
+	/**
+	 * Adds a listener. Listeners are called on an event thread of the
+	 * watcher, one event after the other.
+	 */
 	public void addListener(Listener l) {
-		listeners.add(l);
+		events.addListener(l);
 	}
 
 	public void removeListener(Listener l) {
-		listeners.remove(l);
+		events.removeListener(l);
 	}
 
 	public interface Listener {
@@ -342,25 +1240,65 @@ public class TransWatcher extends Thread {
 		public void exception(Exception ex);
 		public void state(State state);
 		public void downloaded(String filePath);
+		/**
+		 * Hands over the thumbnail embedded in an image while the image is
+		 * still downloading. downloaded() follows once it is complete.
+		 * 
+		 * @param jpeg
+		 *            the thumbnail as JPEG, typically 160x120
+		 */
+		public void thumbnail(String filePath, byte[] jpeg);
+	}
+
+	void notifyMessage(String msg) {
+		events.message(MessageLevel.INFO, msg);
 	}
 
-	private void notifyMessage(String msg) {
-		for (Listener listener : listeners)
-			listener.ping(msg + "\n");
+	/**
+	 * Posts a DEBUG message. The text is only built with String.format if a
+	 * listener wants it.
+	 */
+	void debug(String format, Object... args) {
+		events.message(MessageLevel.DEBUG, format, args);
 	}
 
-	private void notifyException(Exception ex) {
-		for (Listener listener : listeners)
-			listener.exception(ex);
+	void notifyException(Exception ex) {
+		events.exception(ex);
 	}
 	
 	private void notifyState() {
-		for (Listener listener : listeners)
-			listener.state(this.state);		
+		events.state(this.state);
+	}
+
+	/**
+	 * @return a tee that finds the thumbnail in the file while it is
+	 *         downloaded and hands it to the listeners, or null if nobody
+	 *         listens
+	 */
+	DownloadFile.Tee thumbnailTee(final File destination) {
+		if (!events.hasListeners())
+			return null;
+		final ExifThumbnailScanner scanner = new ExifThumbnailScanner();
+		return new DownloadFile.Tee() {
+			@Override
+			public boolean write(byte[] data, int offset, int length) {
+				try {
+					if (scanner.write(data, offset, length))
+						return true;
+				} catch (RuntimeException e) {
+					// a broken file must not stop the download
+					debug("No thumbnail in %s: %s", destination.getName(), e);
+					return false;
+				}
+				byte[] thumbnail = scanner.getThumbnail();
+				if (thumbnail != null)
+					events.thumbnail(destination.getPath(), thumbnail);
+				return false;
+			}
+		};
 	}
 
-	private void notifyDownload(String canonicalPath) {
-		for (Listener listener : listeners)
-			listener.downloaded(canonicalPath);			
+	void notifyDownload(String canonicalPath) {
+		events.downloaded(canonicalPath);
 	}
 }
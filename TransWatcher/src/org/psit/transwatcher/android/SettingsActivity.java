@@ -39,6 +39,7 @@ public class SettingsActivity extends PreferenceActivity implements
 		addPreferencesFromResource(R.xml.preferences);
 		
 		updateKeySummary("destinationFolder");
+		updateKeySummary("downloadConcurrency");
 
 		getPreferenceScreen().getSharedPreferences()
 		.registerOnSharedPreferenceChangeListener(this);
@@ -24,65 +24,58 @@ import org.psit.transwatcher.android.R;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.MotionEvent;
 import android.view.Window;
 import android.view.WindowManager;
 
 
+/**
+ * Shown for _splashTime or until touched. The watcher is already looking
+ * for the card meanwhile, see TransWatcherApplication.
+ */
 public class SplashScreen extends Activity {
 	
-	protected boolean _active = true;
 	protected int _splashTime = 2000;
-	protected boolean _cancelled = false;
+	private final Handler handler = new Handler();
+	private boolean shown;
+	
+	private final Runnable showMain = new Runnable() {
+		@Override
+		public void run() {
+			if (shown)
+				return;
+			shown = true;
+			finish();
+			startActivity(new Intent(SplashScreen.this, TransWatcherActivity.class));
+		}
+	};
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 	    super.onCreate(savedInstanceState);
 	    
-	    _cancelled = false;
-	    
 	    requestWindowFeature(Window.FEATURE_NO_TITLE);
         getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, 
                                 WindowManager.LayoutParams.FLAG_FULLSCREEN);
 
 	    setContentView(R.layout.splash);
-	 
-	    // thread for displaying the SplashScreen
-	    Thread splashTread = new Thread() {
-	        @Override
-	        public void run() {
-	            try {
-	                int waited = 0;
-	                while(_active && (waited < _splashTime)) {
-	                    sleep(100);
-	                    if(_active) {
-	                        waited += 100;
-	                    }
-	                }
-	            } catch(InterruptedException e) {
-	                // do nothing
-	            } finally {
-	                finish();
-	                if(!_cancelled)
-	                	startActivity(new Intent(SplashScreen.this, TransWatcherActivity.class));
-	            }
-	        }
-	    };
-	    splashTread.start();
+	    handler.postDelayed(showMain, _splashTime);
 	}
 	
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 	    if (event.getAction() == MotionEvent.ACTION_DOWN) {
-	        _active = false;
+	    	handler.removeCallbacks(showMain);
+	    	showMain.run();
 	    }
 	    return true;
 	}
 	
 	@Override
 	protected void onStop() {
-		_cancelled = true;
-		_active = false;
+		// cancelled, e.g. by the back button
+		handler.removeCallbacks(showMain);
 		super.onStop();
 	}
 }
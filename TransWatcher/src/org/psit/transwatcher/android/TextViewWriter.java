@@ -21,18 +21,54 @@ package org.psit.transwatcher.android;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.psit.transwatcher.LogRing;
 
-import android.app.Activity;
 import android.widget.TextView;
 
+/**
+ * Shows the last lines written in a TextView. Each write is a line; the
+ * writing threads put it into a LogRing without blocking, and the UI thread
+ * takes all waiting lines at most once per frame and shows the newest
+ * maxLines of them. Lines written faster than the UI takes them are dropped
+ * and counted.
+ */
 public class TextViewWriter extends Writer {
-	private TextView textView;
-	
+	static final int DEFAULT_MAX_LINES = 200;
+	static final int RING_CAPACITY = 1024;
+	static final long FRAME_MS = 16;
+
+	private final TextView textView;
+	private final int maxLines;
+	private final LogRing ring = new LogRing(RING_CAPACITY);
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+	// only used on the UI thread
+	private final List<String> batch = new ArrayList<String>();
+	private final ArrayDeque<String> shown = new ArrayDeque<String>();
+	private final StringBuilder text = new StringBuilder();
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			// lines written from now on need the next flush
+			flushPending.set(false);
+			show();
+		}
+	};
+
 	public TextViewWriter(TextView textView) {
+		this(textView, DEFAULT_MAX_LINES);
+	}
+
+	public TextViewWriter(TextView textView, int maxLines) {
 		this.textView = textView;
+		this.maxLines = maxLines;
 	}
-	
+
 	@Override
 	public void close() throws IOException {}
 
@@ -40,17 +76,54 @@ public class TextViewWriter extends Writer {
 	public void flush() throws IOException {}
 
 	@Override
-	public void write(final char cbuf[], final int off, final int len) throws IOException {
-		if(textView != null) {
-			Activity activity = (Activity) textView.getContext();
-			activity.runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					textView.append(new String(Arrays.copyOfRange(cbuf, off, off+len)));
-				} } );
-		}
+	public void write(char cbuf[], int off, int len) throws IOException {
+		log(new String(cbuf, off, len));
 	}
-	
-	
 
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		log(str.substring(off, off + len));
+	}
+
+	/**
+	 * Adds a line. May be called on any thread.
+	 */
+	public void log(String line) {
+		// e.g. the line separator a PrintWriter writes on its own
+		if (textView == null || line.trim().length() == 0)
+			return;
+		ring.offer(line);
+		if (flushPending.compareAndSet(false, true))
+			textView.postDelayed(flush, FRAME_MS);
+	}
+
+	private void show() {
+		ring.drainTo(batch);
+		long dropped = ring.takeDropped();
+		if (dropped > 0)
+			batch.add(dropped + " lines dropped");
+		for (String entry : batch)
+			addLines(entry);
+		batch.clear();
+
+		text.setLength(0);
+		for (String line : shown)
+			text.append(line).append('\n');
+		textView.setText(text);
+	}
+
+	private void addLines(String entry) {
+		int start = 0;
+		while (start < entry.length()) {
+			int end = entry.indexOf('\n', start);
+			if (end < 0)
+				end = entry.length();
+			if (end > start) {
+				shown.addLast(entry.substring(start, end));
+				if (shown.size() > maxLines)
+					shown.removeFirst();
+			}
+			start = end + 1;
+		}
+	}
 }
@@ -24,7 +24,8 @@ import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.Locale;
 
-import org.psit.transwatcher.TransWatcher;
+import org.psit.transwatcher.PreviewScheduler;
+import org.psit.transwatcher.PreviewScheduler.Request;
 import org.psit.transwatcher.TransWatcher.Listener;
 import org.psit.transwatcher.TransWatcher.State;
 
@@ -32,11 +33,9 @@ import org.psit.transwatcher.android.R;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.Window;
@@ -47,8 +46,8 @@ import android.widget.TextView;
 public class TransWatcherActivity extends Activity implements Listener {
 	private static final int OPTION_PREFERENCES = 1;
 
-	private TransWatcher watcher;
 	private PrintWriter logWriter;
+	private PreviewScheduler<Bitmap> previews;
 
 	/** Called when the activity is first created. */
 	@Override
@@ -58,6 +57,13 @@ public class TransWatcherActivity extends Activity implements Listener {
 		requestWindowFeature(Window.FEATURE_NO_TITLE);
 		setContentView(R.layout.main);
 		initLogWriter();
+		initPreviews();
+	}
+
+	@Override
+	protected void onDestroy() {
+		previews.shutdown();
+		super.onDestroy();
 	}
 
 	private void initLogWriter() {
@@ -65,6 +71,46 @@ public class TransWatcherActivity extends Activity implements Listener {
 		logWriter = new PrintWriter(new TextViewWriter(logOutputTF));
 	}
 
+	/**
+	 * Decodes the previews of downloaded images in the background, newest
+	 * image first. Up to an eighth of the heap keeps recent previews.
+	 */
+	private void initPreviews() {
+		final ImageView imageView = (ImageView) findViewById(R.id.imagePreview);
+		previews = new PreviewScheduler<Bitmap>(
+				new PreviewScheduler.Decoder<Bitmap>() {
+					@Override
+					public Bitmap decode(String filePath, Request request) {
+						BitmapFactory.Options opts = new BitmapFactory.Options();
+						opts.inJustDecodeBounds = true;
+						BitmapFactory.decodeFile(filePath, opts);
+						if (request.isCancelled())
+							return null;
+
+						opts.inSampleSize = calculateInSampleSize(opts,
+								Math.min(800, imageView.getWidth()),
+								Math.min(600, imageView.getHeight()));
+						opts.inJustDecodeBounds = false;
+						return BitmapFactory.decodeFile(filePath, opts);
+					}
+
+					@Override
+					public long sizeOf(Bitmap preview) {
+						return (long) preview.getRowBytes() * preview.getHeight();
+					}
+				}, new PreviewScheduler.Display<Bitmap>() {
+					@Override
+					public void show(String filePath, final Bitmap preview) {
+						imageView.post(new Runnable() {
+							@Override
+							public void run() {
+								imageView.setImageBitmap(preview);
+							}
+						});
+					}
+				}, Runtime.getRuntime().maxMemory() / 8);
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuItem mi0 = menu.add(Menu.NONE, OPTION_PREFERENCES,
@@ -84,43 +130,30 @@ public class TransWatcherActivity extends Activity implements Listener {
 		return false;
 	}
 
+	/**
+	 * Attaches to the watcher of the application, which usually found the
+	 * card already.
+	 */
 	@Override
 	protected void onStart() {
-		startWatcher();
+		((TransWatcherApplication) getApplication()).attach(this);
 		super.onStart();
 	}
 
-	private void startWatcher() {
-		SharedPreferences sharedPrefs = PreferenceManager
-				.getDefaultSharedPreferences(this);
-		String destinationFolder = sharedPrefs.getString("destinationFolder",
-				getString(R.string.destinationFolderDefault));
-		if(!destinationFolder.endsWith("/")) {
-			destinationFolder = destinationFolder + "/";
-		}
-		watcher = new TransWatcher(destinationFolder);
-		watcher.addListener(this);
-		watcher.start();
-	}
-
 	@Override
 	protected void onStop() {
-		stopWatcher();
+		((TransWatcherApplication) getApplication()).detach(this);
 		super.onStop();
 	}
 
-	private void stopWatcher() {
-		this.watcher.interrupt();
-	}
-
 	@Override
 	public void ping(final String msg) {
-		// logWriter.append(msg);
+		logWriter.append(msg);
 	}
 
 	@Override
 	public void exception(Exception ex) {
-		// ex.printStackTrace(logWriter);
+		ex.printStackTrace(logWriter);
 	}
 
 	/**
@@ -129,7 +162,7 @@ public class TransWatcherActivity extends Activity implements Listener {
 	 */
 	@Override
 	public void state(final State state) {
-		// logWriter.append("State changed to: "+state+"\n");
+		logWriter.append("State changed to: "+state+"\n");
 		final TextView statusText = (TextView) findViewById(R.id.statusText);
 		final ImageView imageView = (ImageView) findViewById(R.id.statusIcon);
 		imageView.post(new Runnable() {
@@ -154,57 +187,35 @@ public class TransWatcherActivity extends Activity implements Listener {
 		});
 	}
 
+	/**
+	 * Shows the thumbnail of an image that is still downloading, in place of
+	 * the previews of older images still decoding.
+	 */
+	@Override
+	public void thumbnail(String filePath, byte[] jpeg) {
+		Bitmap thumbnail = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+		if (thumbnail != null)
+			previews.show(filePath, thumbnail);
+	}
+
 	@Override
 	public void downloaded(String filePath) {
 		File f = new File(filePath);
 		if (f.exists()) {
 			logWriter.append("Downloaded: " + f.getName() + "\n");
-			BitmapFactory.Options opts = new BitmapFactory.Options();
-			opts.inJustDecodeBounds = true;
-			Bitmap bm = BitmapFactory.decodeFile(filePath, opts);
-			
-			final ImageView imageView = (ImageView) findViewById(R.id.imagePreview);			
-			
-			opts.inSampleSize = calculateInSampleSize(opts, Math.min(800, imageView.getWidth()),
-					Math.min(600, imageView.getHeight()));
-			opts.inJustDecodeBounds = false;
-			final Bitmap scaledBitmap = BitmapFactory
-					.decodeFile(filePath, opts);
-
-			imageView.post(new Runnable() {
-				@Override
-				public void run() {
-					imageView.setImageBitmap(scaledBitmap);
-				}
-			});
+			previews.request(filePath);
 		}
-
 	}
 
 	/**
 	 * Calculates the sample size (power of two) that is sufficient for the
 	 * requested dimensions of the imagen
+	 * 
+	 * @see PreviewScheduler#inSampleSize(int, int, int, int)
 	 */
 	public static int calculateInSampleSize(BitmapFactory.Options options,
 			int reqWidth, int reqHeight) {
-		// Raw height and width of image
-		final int height = options.outHeight;
-		final int width = options.outWidth;
-		int inSampleSize = 1;
-
-		if (height > reqHeight || width > reqWidth) {
-
-			final int halfHeight = height / 2;
-			final int halfWidth = width / 2;
-
-			// Calculate the largest inSampleSize value that is a power of 2 and
-			// keeps both
-			// height and width larger than the requested height and width.
-			while ((halfHeight / inSampleSize) > reqHeight
-					&& (halfWidth / inSampleSize) > reqWidth) {
-				inSampleSize *= 2;
-			}
-		}
-		return inSampleSize;
+		return PreviewScheduler.inSampleSize(options.outWidth,
+				options.outHeight, reqWidth, reqHeight);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+package org.psit.transwatcher.android;
+
+import org.psit.transwatcher.TransWatcher;
+import org.psit.transwatcher.TransWatcher.Engine;
+import org.psit.transwatcher.TransWatcher.Listener;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+/**
+ * Keeps the watcher running for the life of the process instead of the life
+ * of an activity. Discovery starts when the process starts, so the card is
+ * usually found while the splash screen is still up, and the activity only
+ * attaches to the running watcher. A rotation or a short trip to another
+ * app doesn't reconnect: the watcher is stopped only if no activity attached
+ * again within DETACHED_STOP_MS, and it is restarted if the settings changed
+ * meanwhile. A restarted watcher waits for the stopped one to end, as both
+ * would use the download journal of the folder.
+ * 
+ * All methods are called on the main thread.
+ */
+public class TransWatcherApplication extends Application {
+	static final long DETACHED_STOP_MS = 60000;
+
+	private TransWatcher watcher;
+	// the last watcher stopped, it may still be ending
+	private TransWatcher stopped;
+	// the settings the running watcher was made with
+	private String watcherSettings;
+	private Listener attached;
+	private Handler handler;
+
+	private final Runnable stopDetached = new Runnable() {
+		@Override
+		public void run() {
+			if (attached == null)
+				stopWatcher();
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		handler = new Handler(Looper.getMainLooper());
+		startWatcher();
+		// stops it unless the splash screen hands over to the activity
+		handler.postDelayed(stopDetached, DETACHED_STOP_MS);
+	}
+
+	/**
+	 * Connects the listener to the watcher, started anew if it was stopped
+	 * or the settings changed, and tells it the current state.
+	 */
+	void attach(Listener listener) {
+		handler.removeCallbacks(stopDetached);
+		if (attached != null && watcher != null)
+			watcher.removeListener(attached);
+		attached = listener;
+		if (watcher != null && !settings().equals(watcherSettings))
+			stopWatcher();
+		if (watcher == null)
+			startWatcher();
+		watcher.addListener(listener);
+		listener.state(watcher.getWatcherState());
+	}
+
+	/**
+	 * Disconnects the listener. The watcher goes on for DETACHED_STOP_MS.
+	 */
+	void detach(Listener listener) {
+		if (attached != listener)
+			return;
+		if (watcher != null)
+			watcher.removeListener(listener);
+		attached = null;
+		handler.postDelayed(stopDetached, DETACHED_STOP_MS);
+	}
+
+	private void startWatcher() {
+		SharedPreferences sharedPrefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		String destinationFolder = sharedPrefs.getString("destinationFolder",
+				getString(R.string.destinationFolderDefault));
+		if (!destinationFolder.endsWith("/")) {
+			destinationFolder = destinationFolder + "/";
+		}
+		int downloadConcurrency = Integer.parseInt(sharedPrefs.getString(
+				"downloadConcurrency",
+				getString(R.string.downloadConcurrencyDefault)));
+		watcherSettings = settings();
+		watcher = new TransWatcher(destinationFolder);
+		watcher.setDownloadConcurrency(downloadConcurrency);
+		watcher.setCatchUpSync(sharedPrefs.getBoolean("catchUpSync", false));
+		watcher.setEngine(sharedPrefs.getBoolean("useNioEngine", false) ? Engine.NIO
+				: Engine.BLOCKING);
+		watcher.setLastCardIP(sharedPrefs.getString("lastCardIP", null));
+		if (stopped == null || !stopped.isAlive()) {
+			watcher.start();
+			return;
+		}
+
+		final TransWatcher previous = stopped;
+		final TransWatcher next = watcher;
+		Thread starter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					previous.join();
+				} catch (InterruptedException e) {
+					return;
+				}
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						// unless it was stopped meanwhile
+						if (watcher == next)
+							next.start();
+					}
+				});
+			}
+		}, "TransWatcherRestart");
+		starter.setDaemon(true);
+		starter.start();
+	}
+
+	private void stopWatcher() {
+		if (watcher == null)
+			return;
+		watcher.interrupt();
+		// one still waiting to start leaves the one it waited for to wait for
+		if (watcher.getState() != Thread.State.NEW)
+			stopped = watcher;
+
+		// remember the card's IP to probe it directly next time
+		String lastCardIP = watcher.getLastCardIP();
+		if (lastCardIP != null) {
+			PreferenceManager.getDefaultSharedPreferences(this).edit()
+					.putString("lastCardIP", lastCardIP).commit();
+		}
+		watcher = null;
+	}
+
+	/**
+	 * @return the settings the watcher is made with, to tell if they changed
+	 */
+	private String settings() {
+		SharedPreferences sharedPrefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		return sharedPrefs.getString("destinationFolder", "") + "|"
+				+ sharedPrefs.getString("downloadConcurrency", "") + "|"
+				+ sharedPrefs.getBoolean("catchUpSync", false) + "|"
+				+ sharedPrefs.getBoolean("useNioEngine", false);
+	}
+}
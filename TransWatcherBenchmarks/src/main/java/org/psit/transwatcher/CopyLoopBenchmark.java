@@ -0,0 +1,136 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stores a downloaded image the way the engines do: open the part file,
+ * copy the data through it, commit it under its final name. STREAM is the
+ * blocking engine's copyFrom() with the given buffer, HEAP and DIRECT are the
+ * NIO engine's write() of heap or direct buffers of that size. With dedup the
+ * content hash is computed on the way for the ContentIndex. Scores are ms per
+ * image of SIZE bytes, including the file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyLoopBenchmark {
+	static final int SIZE = 4 * 1024 * 1024;
+
+	public enum Strategy { STREAM, HEAP, DIRECT };
+
+	@Param({ "8192", "65536", "262144" })
+	int bufferSize;
+
+	@Param({ "STREAM", "HEAP", "DIRECT" })
+	Strategy strategy;
+
+	@Param({ "false", "true" })
+	boolean dedup;
+
+	private File folder;
+	private ContentIndex index;
+	private byte[] content;
+	private byte[] buffer;
+	private ByteBuffer directBuffer;
+	private long counter;
+
+	@Setup
+	public void setUp() throws IOException {
+		folder = File.createTempFile("transwatcher-bench", "");
+		folder.delete();
+		folder.mkdirs();
+		if (dedup)
+			index = ContentIndex.open(new File(folder, ".transwatcher-index"));
+		content = new byte[SIZE];
+		new Random(1).nextBytes(content);
+		buffer = new byte[bufferSize];
+		directBuffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (index != null)
+			index.close();
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		folder.delete();
+	}
+
+	@Benchmark
+	public long copy() throws IOException {
+		// new content each time, so the index never finds a duplicate
+		long n = ++counter;
+		for (int i = 0; i < 8; i++)
+			content[i] = (byte) (n >>> (8 * i));
+
+		DownloadFile target = new DownloadFile(new File(folder, "IMG_0001.JPG"),
+				index);
+		target.open(0, SIZE);
+		switch (strategy) {
+		case STREAM:
+			target.copyFrom(new ByteArrayInputStream(content), buffer);
+			break;
+		case HEAP:
+			for (int position = 0; position < SIZE; position += bufferSize)
+				target.write(ByteBuffer.wrap(content, position, Math.min(
+						bufferSize, SIZE - position)), position);
+			break;
+		case DIRECT:
+			for (int position = 0; position < SIZE; position += bufferSize) {
+				directBuffer.clear();
+				directBuffer.put(content, position, Math.min(bufferSize, SIZE
+						- position));
+				directBuffer.flip();
+				target.write(directBuffer, position);
+			}
+			break;
+		}
+		target.commit();
+		long written = target.getWritten();
+		target.getCommitted().delete();
+		return written;
+	}
+}
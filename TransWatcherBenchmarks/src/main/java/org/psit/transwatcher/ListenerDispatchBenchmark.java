@@ -0,0 +1,112 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.MessageLevel;
+
+/**
+ * Posting events to the EventBus from the network and download threads.
+ * post measures what a posting thread pays, with messages dropped once the
+ * queue is full. postAndDeliver posts downloads, which are never dropped,
+ * and waits until every listener got them, so the dispatcher thread is
+ * part of the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+	static final int BATCH = 100;
+
+	@Param({ "1", "4", "10" })
+	int listeners;
+
+	private EventBus events;
+	private final AtomicLong posted = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+
+	@Setup
+	public void setUp() {
+		events = new EventBus("Benchmark");
+		events.setMessageLevel(MessageLevel.INFO);
+		for (int i = 0; i < listeners; i++)
+			events.addListener(new CountingListener());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void post() {
+		events.message(MessageLevel.INFO, "%s", "x");
+	}
+
+	@Benchmark
+	@Threads(4)
+	@OperationsPerInvocation(BATCH)
+	public void postAndDeliver() {
+		for (int i = 0; i < BATCH; i++)
+			events.downloaded("/mnt/sd/DCIM/100IMAGE/IMG_0001.JPG");
+		long target = posted.addAndGet(BATCH) * listeners;
+		while (delivered.get() < target)
+			Thread.yield();
+	}
+
+	private class CountingListener implements Listener {
+		@Override
+		public void ping(String msg) {
+		}
+
+		@Override
+		public void exception(Exception ex) {
+		}
+
+		@Override
+		public void state(TransWatcher.State state) {
+		}
+
+		@Override
+		public void downloaded(String filePath) {
+			delivered.incrementAndGet();
+		}
+
+		@Override
+		public void thumbnail(String filePath, byte[] jpeg) {
+		}
+	}
+}
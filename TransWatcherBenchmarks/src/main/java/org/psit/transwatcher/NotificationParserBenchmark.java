@@ -0,0 +1,134 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The parser of the file names the card announces on port 5566 as
+ * &gt;path\0, fed by the blocking engine from a stream and by the NIO engine
+ * from a buffer. The card's bytes arrive in reads of readSize bytes, from
+ * single bytes to whole bursts. Scores are file names per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationParserBenchmark {
+	static final int FRAMES = 1000;
+
+	@Param({ "1", "64", "4096" })
+	int readSize;
+
+	@Param({ "36", "200" })
+	int nameLength;
+
+	private byte[] stream;
+	private final NotificationParser parser = new NotificationParser();
+
+	@Setup
+	public void setUp() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < FRAMES; i++) {
+			StringBuilder name = new StringBuilder(String.format(Locale.ENGLISH,
+					"/mnt/sd/DCIM/100IMAGE/IMG_%04d", i));
+			while (name.length() < nameLength - 4)
+				name.append('_');
+			sb.append('>').append(name).append(".JPG").append('\0');
+			// the card sends a keep-alive newline now and then
+			if (i % 10 == 0)
+				sb.append('\n');
+		}
+		stream = sb.toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void fromStream(Blackhole blackhole) throws IOException {
+		parser.reset(new ChunkedInputStream(stream, readSize));
+		String name;
+		while ((name = parser.next()) != null)
+			blackhole.consume(name);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void fromBuffer(Blackhole blackhole) {
+		parser.reset(null);
+		ByteBuffer buffer = ByteBuffer.wrap(stream);
+		buffer.limit(0);
+		while (buffer.limit() < stream.length) {
+			buffer.limit(Math.min(stream.length, buffer.limit() + readSize));
+			String name;
+			while ((name = parser.next(buffer)) != null)
+				blackhole.consume(name);
+		}
+	}
+
+	/**
+	 * Returns at most chunk bytes per read, like a socket.
+	 */
+	static class ChunkedInputStream extends InputStream {
+		private final byte[] data;
+		private final int chunk;
+		private int position;
+
+		ChunkedInputStream(byte[] data, int chunk) {
+			this.data = data;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= data.length)
+				return -1;
+			int length = Math.min(Math.min(len, chunk), data.length - position);
+			System.arraycopy(data, position, b, off, length);
+			position += length;
+			return length;
+		}
+	}
+}
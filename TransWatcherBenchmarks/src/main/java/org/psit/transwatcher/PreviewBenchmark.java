@@ -0,0 +1,118 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The preview path of the activity without Android: the sample size
+ * calculation for the image sizes of common cameras, and a burst of
+ * downloads each requesting its preview while the decoder is busy. The
+ * burst is done when the preview of its last image is shown; requests
+ * overtaken by newer ones are skipped, not decoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreviewBenchmark {
+	static final int BURST = 20;
+	/** roughly the CPU time of decoding a subsampled JPEG */
+	static final long DECODE_TOKENS = 100000;
+
+	private static final int[][] SIZES = { { 4608, 3456 }, { 6000, 4000 },
+			{ 5184, 3456 }, { 4000, 3000 }, { 3648, 2736 }, { 7952, 5304 },
+			{ 1920, 1080 }, { 640, 480 } };
+
+	private PreviewScheduler<int[]> scheduler;
+	private volatile String shown;
+	private long bursts;
+
+	@Setup
+	public void setUp() {
+		scheduler = new PreviewScheduler<int[]>(
+				new PreviewScheduler.Decoder<int[]>() {
+					@Override
+					public int[] decode(String filePath,
+							PreviewScheduler.Request request) {
+						int[] size = SIZES[filePath.length() % SIZES.length];
+						int sample = PreviewScheduler.inSampleSize(size[0],
+								size[1], 800, 600);
+						Blackhole.consumeCPU(DECODE_TOKENS);
+						return new int[] { size[0] / sample, size[1] / sample };
+					}
+
+					@Override
+					public long sizeOf(int[] preview) {
+						return 1;
+					}
+				}, new PreviewScheduler.Display<int[]>() {
+					@Override
+					public void show(String filePath, int[] preview) {
+						shown = filePath;
+					}
+				}, 64);
+	}
+
+	@TearDown
+	public void tearDown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@OperationsPerInvocation(8)
+	public int inSampleSize() {
+		int sum = 0;
+		for (int[] size : SIZES)
+			sum += PreviewScheduler.inSampleSize(size[0], size[1], 800, 600);
+		return sum;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void burst() {
+		// new names each time, so nothing comes from the cache
+		String prefix = "/mnt/sd/DCIM/" + (bursts++) + "/IMG_";
+		String last = null;
+		for (int i = 0; i < BURST; i++) {
+			last = prefix + i + ".JPG";
+			scheduler.request(last);
+		}
+		while (!last.equals(shown))
+			Thread.yield();
+	}
+}
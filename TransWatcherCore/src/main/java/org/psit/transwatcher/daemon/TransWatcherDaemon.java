@@ -0,0 +1,283 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.daemon;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ThreadFactory;
+
+import org.psit.transwatcher.CardPorts;
+import org.psit.transwatcher.DownloadRule;
+import org.psit.transwatcher.ProcessingPipeline;
+import org.psit.transwatcher.RelayUploader;
+import org.psit.transwatcher.SortStage;
+import org.psit.transwatcher.TransWatcher;
+import org.psit.transwatcher.TransWatcher.Engine;
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.MessageLevel;
+import org.psit.transwatcher.TransWatcher.State;
+
+/**
+ * Runs a TransWatcher without Android, e.g. on a tethering station, and logs
+ * to stdout until the process is stopped:
+ * 
+ * <pre>
+ * java -jar transwatcher-core-jar-with-dependencies.jar transwatcher.properties
+ * </pre>
+ * 
+ * On a JDK with virtual threads (21 and later) discovery, the notification
+ * connection, the download workers and the catch-up sync run on virtual
+ * threads, otherwise on platform threads. They are looked up by reflection,
+ * so the same jar runs on older JVMs.
+ * 
+ * The settings file is a properties file, see transwatcher.properties next to
+ * the pom for all keys. Only dest is required.
+ */
+public class TransWatcherDaemon implements Listener {
+	private final SimpleDateFormat time = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH);
+	private final boolean stackTraces;
+
+	TransWatcherDaemon(boolean stackTraces) {
+		this.stackTraces = stackTraces;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		File configFile = new File(args.length > 0 ? args[0]
+				: "transwatcher.properties");
+		final TransWatcher watcher;
+		boolean virtual;
+		boolean debug;
+		try {
+			Properties config = load(configFile);
+			watcher = configure(config);
+			virtual = !"false".equals(config.getProperty("virtualThreads"));
+			debug = "debug".equalsIgnoreCase(config.getProperty(
+					"messageLevel", "").trim());
+		} catch (IOException e) {
+			System.err.println("Can't read " + configFile + ": "
+					+ e.getMessage());
+			System.exit(2);
+			return;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Bad setting in " + configFile + ": "
+					+ e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		TransWatcherDaemon daemon = new TransWatcherDaemon(debug);
+		watcher.addListener(daemon);
+
+		ThreadFactory threads = virtual ? virtualThreadFactory("TransWatcher-")
+				: null;
+		final Thread runner;
+		if (threads != null) {
+			watcher.setThreadFactory(threads);
+			// the watcher is a Runnable as well, run its loop virtually too
+			runner = threads.newThread(watcher);
+			daemon.log("Running on virtual threads.");
+		} else {
+			runner = watcher;
+			daemon.log("Running on platform threads.");
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread("TransWatcherShutdown") {
+			@Override
+			public void run() {
+				watcher.interrupt();
+				try {
+					runner.join(5000);
+				} catch (InterruptedException logOrIgnore) {}
+			}
+		});
+		runner.start();
+		// virtual threads don't keep the JVM alive
+		runner.join();
+	}
+
+	/**
+	 * Creates a watcher with the settings.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a setting is missing or malformed
+	 */
+	static TransWatcher configure(Properties config) {
+		String dest = config.getProperty("dest");
+		if (dest == null)
+			throw new IllegalArgumentException("dest is missing");
+		File folder = new File(dest);
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IllegalArgumentException("can't create " + dest);
+
+		TransWatcher watcher = new TransWatcher(folder.getPath()
+				+ File.separator);
+		watcher.setName("TransWatcher");
+		watcher.setEngine("nio".equalsIgnoreCase(config.getProperty("engine"))
+				? Engine.NIO : Engine.BLOCKING);
+		watcher.setDownloadConcurrency(intSetting(config, "concurrency",
+				TransWatcher.DEFAULT_DOWNLOAD_CONCURRENCY));
+		watcher.setConcurrencyBounds(intSetting(config, "minConcurrency", 0),
+				intSetting(config, "maxConcurrency", 0));
+		watcher.setPipelineDepth(intSetting(config, "pipeline", 1));
+		watcher.setBurstWindow(intSetting(config, "burstWindow", 150));
+		watcher.setCatchUpSync(Boolean.parseBoolean(config.getProperty(
+				"catchUp", "true")));
+		watcher.setMetricsDumpInterval(intSetting(config, "metricsInterval", 0));
+
+		String level = config.getProperty("messageLevel");
+		if (level != null)
+			watcher.setMessageLevel(MessageLevel.valueOf(level.trim()
+					.toUpperCase(Locale.ENGLISH)));
+		String rules = config.getProperty("rules");
+		if (rules != null) {
+			List<DownloadRule> parsed = new ArrayList<DownloadRule>();
+			for (String rule : rules.split(","))
+				if (rule.trim().length() > 0)
+					parsed.add(DownloadRule.parse(rule));
+			watcher.setDownloadRules(parsed);
+		}
+		String ports = config.getProperty("ports");
+		if (ports != null) {
+			String[] port = ports.split(",");
+			if (port.length != 4)
+				throw new IllegalArgumentException(
+						"ports needs discovery,reply,notification,http");
+			watcher.setCardPorts(new CardPorts(parsePort(port[0]),
+					parsePort(port[1]), parsePort(port[2]), parsePort(port[3])));
+		}
+		if (config.getProperty("broadcast") != null)
+			watcher.setBroadcastAddress(config.getProperty("broadcast").trim());
+		if (config.getProperty("cardIP") != null)
+			watcher.setLastCardIP(config.getProperty("cardIP").trim());
+
+		String sort = config.getProperty("sort");
+		if (sort != null && !"none".equalsIgnoreCase(sort.trim())) {
+			if (!"date".equalsIgnoreCase(sort.trim())
+					&& !"camera".equalsIgnoreCase(sort.trim()))
+				throw new IllegalArgumentException(
+						"sort needs none, date or camera");
+			ProcessingPipeline pipeline = new ProcessingPipeline();
+			pipeline.addStage("sort", new SortStage(folder,
+					"camera".equalsIgnoreCase(sort.trim())), 1);
+			watcher.setProcessingPipeline(pipeline);
+		}
+
+		String relay = config.getProperty("relay");
+		if (relay != null && relay.trim().length() > 0) {
+			RelayUploader uploader = new RelayUploader(relay.trim());
+			uploader.setStreams(intSetting(config, "relayStreams",
+					RelayUploader.DEFAULT_STREAMS));
+			uploader.setBufferSize(intSetting(config, "relayBuffer",
+					RelayUploader.DEFAULT_BUFFER_SIZE));
+			watcher.setRelayUploader(uploader);
+		}
+		return watcher;
+	}
+
+	/**
+	 * @return a factory of virtual threads or null if the JVM has none
+	 */
+	static ThreadFactory virtualThreadFactory(String namePrefix) {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			ofVirtual = builder.getMethod("name", String.class, long.class)
+					.invoke(ofVirtual, namePrefix, 0L);
+			return (ThreadFactory) builder.getMethod("factory").invoke(
+					ofVirtual);
+		} catch (Exception e) {
+			// older JVM, or preview features not enabled
+			return null;
+		}
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties config = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			config.load(in);
+		} finally {
+			in.close();
+		}
+		return config;
+	}
+
+	private static int intSetting(Properties config, String key,
+			int defaultValue) {
+		String value = config.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not a number: "
+					+ value);
+		}
+	}
+
+	private static int parsePort(String port) {
+		try {
+			return Integer.parseInt(port.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a port: " + port);
+		}
+	}
+
+	private synchronized void log(String msg) {
+		System.out.println(time.format(new Date()) + " " + msg);
+	}
+
+	// ----------------- Listener
+
+	@Override
+	public void ping(String msg) {
+		log(msg.trim());
+	}
+
+	@Override
+	public void exception(Exception ex) {
+		log("Error: " + ex);
+		if (stackTraces)
+			ex.printStackTrace();
+	}
+
+	@Override
+	public void state(State state) {
+		log("State: " + state);
+	}
+
+	@Override
+	public void thumbnail(String filePath, byte[] jpeg) {}
+
+	@Override
+	public void downloaded(String filePath) {
+		log("Stored " + filePath);
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.psit.transwatcher.simulator.CardSimulator;
+import org.psit.transwatcher.simulator.LoadHarness;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class CardFleetTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<CardSimulator> cards = new ArrayList<CardSimulator>();
+	private CardFleet fleet;
+
+	@After
+	public void stop() throws InterruptedException {
+		if (fleet != null) {
+			fleet.interrupt();
+			fleet.join(SimulatedCard.TIMEOUT_MS);
+		}
+		for (CardSimulator card : cards)
+			card.stop();
+	}
+
+	@Test
+	public void oneReplySocketFindsAllCards() throws Exception {
+		String[] addresses = { "127.0.0.2", "127.0.0.3" };
+		CardPorts ports = startCards(addresses);
+		fleet = new CardFleet(folder.getRoot().getPath());
+		fleet.setCardPorts(ports);
+		fleet.setBroadcastAddress("127.255.255.255");
+		for (String address : addresses)
+			fleet.addCardAddress(address);
+		SimulatedCard.Recorder recorder = new SimulatedCard.Recorder();
+		fleet.addListener(recorder);
+		fleet.start();
+
+		for (CardSimulator card : cards)
+			awaitListening(card);
+		List<String> paths = new ArrayList<String>();
+		for (CardSimulator card : cards)
+			paths.add(card.shoot(100000));
+		// the fleet keeps the images of each card in a folder named by its IP
+		Map<String, String> downloaded = awaitDownloads(recorder, cards.size());
+		for (int i = 0; i < cards.size(); i++) {
+			String local = downloaded.get("127.0.0." + (i + 2));
+			assertNotNull("nothing downloaded from card " + i, local);
+			assertEquals(new File(paths.get(i)).getName(),
+					new File(local).getName());
+			assertArrayEquals(cards.get(i).getContent(paths.get(i)),
+					LoadHarness.readFile(local));
+		}
+	}
+
+	@Test
+	public void replyPortIsBoundOnlyOnce() throws Exception {
+		DatagramSocket first = TransWatcher.openDiscoverySocket(0);
+		int replyPort = first.getLocalPort();
+		try {
+			TransWatcher.openDiscoverySocket(replyPort).close();
+			fail("a second socket would take the replies of the first");
+		} catch (BindException expected) {
+			// the second watcher is told, the first keeps its replies
+		} finally {
+			first.close();
+		}
+	}
+
+	/**
+	 * Starts a card on each address, all on the ports the first one got. The
+	 * cards answer to the port the discovery came from, the one reply port
+	 * of the fleet, like real cards answer to the same one.
+	 * 
+	 * @return the ports of the cards
+	 */
+	private CardPorts startCards(String... addresses) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			CardPorts ports = new CardPorts(0, 0, 0, 0);
+			try {
+				for (String address : addresses) {
+					CardSimulator card = new CardSimulator(ports);
+					card.setAddress(address);
+					cards.add(card);
+					card.start();
+					ports = card.getPorts();
+				}
+				return ports;
+			} catch (BindException e) {
+				// the ports are taken on another address, try new ones
+				for (CardSimulator card : cards)
+					card.stop();
+				cards.clear();
+				if (attempt == 3)
+					throw e;
+			}
+		}
+	}
+
+	private static void awaitListening(CardSimulator card)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SimulatedCard.TIMEOUT_MS;
+		while (card.getNotificationClientCount() == 0) {
+			if (System.currentTimeMillis() > deadline)
+				fail("the fleet did not connect to every card");
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * @return the local paths of the downloaded images by card IP
+	 */
+	private static Map<String, String> awaitDownloads(
+			SimulatedCard.Recorder recorder, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SimulatedCard.TIMEOUT_MS;
+		Map<String, String> downloaded = new HashMap<String, String>();
+		while (downloaded.size() < count) {
+			String path = recorder.nextDownloaded(deadline
+					- System.currentTimeMillis());
+			if (path == null)
+				fail("only " + downloaded.keySet() + " downloaded");
+			downloaded.put(new File(path).getParentFile().getName(), path);
+		}
+		return downloaded;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class CardListingTest {
+	@Test
+	public void parsesFilesAndFolders() {
+		List<CardListing.Entry> entries = CardListing.parse(
+				"FileName0=.&FileType0=Directory&FileSize0=0\n"
+				+ "FileName1=IMG_0001.JPG&FileType1=File&FileSize1=4621824\n"
+				+ "FileName2=101IMAGE&FileType2=Directory&FileSize2=0\n");
+		assertEquals(2, entries.size());
+		assertEquals("IMG_0001.JPG", entries.get(0).name);
+		assertFalse(entries.get(0).directory);
+		assertEquals(4621824, entries.get(0).size);
+		assertEquals("101IMAGE", entries.get(1).name);
+		assertTrue(entries.get(1).directory);
+	}
+
+	@Test
+	public void skipsMalformedParametersAndKeepsTheRest() {
+		List<CardListing.Entry> entries = CardListing.parse(
+				"FileName99999999999=IMG_9999.JPG&FileType99999999999=File\n"
+				+ "FileName0=IMG_0001.JPG&FileType0=File&FileSize0=12x\n"
+				+ "FileName=IMG_0002.JPG&=File&garbage\n"
+				+ "FileName1=IMG_0003.JPG&FileType1=File&FileSize1=100\n");
+		assertEquals(2, entries.size());
+		assertEquals("IMG_0001.JPG", entries.get(0).name);
+		assertEquals(-1, entries.get(0).size);
+		assertEquals("IMG_0003.JPG", entries.get(1).name);
+		assertEquals(100, entries.get(1).size);
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.simulator.CardSimulator;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+/**
+ * Runs the controller against a simulated card whose bandwidth is shared and
+ * shrinks beyond a few parallel requests. The windows run on a clock twice
+ * as fast as the real one, to get through more of them.
+ */
+public class ConcurrencyControllerTest {
+	static final int MIN = 1;
+	static final int MAX = 6;
+	// real ms per SAMPLE_INTERVAL_MS
+	static final long TICK_MS = ConcurrencyController.SAMPLE_INTERVAL_MS / 2;
+	static final int SIZE = 100000;
+
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	private final Metrics metrics;
+	private final DownloadQueue queue = new DownloadQueue();
+	private final ConcurrencyController controller;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final HttpClient client = TransWatcher.createHttpClient(MAX);
+	private long now = ConcurrencyController.SAMPLE_INTERVAL_MS;
+
+	public ConcurrencyControllerTest() {
+		metrics = new Metrics(queue);
+		controller = new ConcurrencyController(metrics, queue, MIN, MAX, MIN);
+	}
+
+	@After
+	@SuppressWarnings("deprecation")
+	public void stopWorkers() throws InterruptedException {
+		for (Thread worker : workers)
+			worker.interrupt();
+		// ends the transfers still running
+		client.getConnectionManager().shutdown();
+		for (Thread worker : workers)
+			worker.join(SimulatedCard.TIMEOUT_MS);
+	}
+
+	@Test
+	public void findsTheSaturationPointAndBacksOffWhenThroughputDrops()
+			throws Exception {
+		// each request waits 100 ms, and with up to 3 at once they share
+		// 2 MB/s. Beyond, the card gets slower: 3 is the best, 2 and 4
+		// bring 15 to 20 % less.
+		CardSimulator simulator = card.getCard();
+		simulator.setLatency(100);
+		simulator.setBandwidth(2000000);
+		simulator.setOverloadThreshold(3);
+		startWorkers(simulator);
+
+		List<Integer> warmUp = run(16);
+		List<Integer> saturated = run(32);
+		assertTrue("limits " + warmUp, warmUp.contains(3));
+		// it keeps trying a step either way, and a window now and then
+		// misjudges one
+		assertTrue("limits " + saturated, share(saturated, 2, 4) >= 0.75);
+
+		// the card answers right away, but slows down with every parallel
+		// request: 1 is the best, 3 brings a third of the throughput before
+		simulator.setLatency(0);
+		simulator.setOverloadThreshold(1);
+		// after a step the wrong way it holds a while before stepping down
+		List<Integer> overloaded = run(48);
+		List<Integer> settled = overloaded.subList(overloaded.size() - 16,
+				overloaded.size());
+		assertTrue("limits " + overloaded, share(settled, 1, 2) >= 0.75);
+
+		List<Integer> all = new ArrayList<Integer>(warmUp);
+		all.addAll(saturated);
+		all.addAll(overloaded);
+		assertTrue("limits " + all, Collections.min(all) >= MIN
+				&& Collections.max(all) <= MAX);
+	}
+
+	@Test
+	public void staysWithinItsBounds() {
+		DownloadQueue waiting = new DownloadQueue();
+		waiting.add("/DCIM/100__TSB/IMG_0001.JPG");
+		Metrics fed = new Metrics(waiting);
+		ConcurrencyController bounded = new ConcurrencyController(fed,
+				waiting, 2, 4, 3);
+		DownloadQueue.Entry file = new DownloadQueue.Entry(
+				"/DCIM/100__TSB/IMG_0002.JPG", false, 0,
+				DownloadRule.DEFAULT_PRIORITY, -1);
+		long time = ConcurrencyController.SAMPLE_INTERVAL_MS;
+		bounded.sample(time);
+
+		List<Integer> limits = new ArrayList<Integer>();
+		for (int window = 0; window < 120; window++) {
+			int limit = bounded.getLimit();
+			// more parallel downloads pay off at first, later they cost
+			long bytes = (window < 60 ? limit : 10 - limit) * 100000L;
+			for (int i = 0; i < 4; i++)
+				fed.downloaded(file, bytes / 4, 1000000);
+			// and now and then most fail
+			if (window % 10 == 9)
+				for (int i = 0; i < 4; i++)
+					fed.downloadFailed();
+			time += 2 * ConcurrencyController.SAMPLE_INTERVAL_MS;
+			bounded.sample(time);
+			limits.add(bounded.getLimit());
+		}
+		assertTrue("limits " + limits, Collections.min(limits) == 2
+				&& Collections.max(limits) == 4);
+	}
+
+	/**
+	 * Keeps the queue full with the images of the card and downloads them
+	 * with as many workers as the controller allows.
+	 */
+	private void startWorkers(CardSimulator simulator) {
+		final String url = "http://127.0.0.1:" + card.getPorts().httpPort;
+		for (int i = 0; i < 2 * MAX; i++)
+			queue.add(simulator.store(SIZE));
+		for (int i = 0; i < MAX; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						while (!Thread.currentThread().isInterrupted()) {
+							controller.acquire();
+							try {
+								download(url, queue.take(), buffer);
+							} finally {
+								controller.release();
+							}
+						}
+					} catch (InterruptedException e) {
+						// stopped
+					}
+				}
+			}, "ControlledWorker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	private void download(String url, DownloadQueue.Entry file, byte[] buffer) {
+		long started = System.nanoTime();
+		HttpGet get = new HttpGet(url
+				+ TransWatcher.downloadRequest(file.path));
+		try {
+			HttpEntity entity = client.execute(get).getEntity();
+			InputStream in = entity.getContent();
+			long received = 0;
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				received += read;
+			in.close();
+			if (received < SIZE)
+				throw new IOException("cut at " + received);
+			metrics.downloaded(file, received, System.nanoTime() - started);
+		} catch (IOException e) {
+			get.abort();
+			metrics.downloadFailed();
+		}
+		// downloaded again and again, so the queue never runs dry
+		queue.requeue(file);
+	}
+
+	/**
+	 * Samples the controller for the given number of intervals.
+	 * 
+	 * @return the limit after each
+	 */
+	private List<Integer> run(int intervals) throws InterruptedException {
+		List<Integer> limits = new ArrayList<Integer>();
+		for (int i = 0; i < intervals; i++) {
+			Thread.sleep(TICK_MS);
+			now += ConcurrencyController.SAMPLE_INTERVAL_MS;
+			controller.sample(now);
+			limits.add(controller.getLimit());
+		}
+		return limits;
+	}
+
+	/**
+	 * @return the share of the limits from low to high
+	 */
+	private static double share(List<Integer> limits, int low, int high) {
+		int in = 0;
+		for (int limit : limits)
+			if (limit >= low && limit <= high)
+				in++;
+		return in / (double) limits.size();
+	}
+}
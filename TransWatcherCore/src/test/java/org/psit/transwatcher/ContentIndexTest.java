@@ -0,0 +1,154 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContentIndexTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void findsMovedFilesAfterReopening() throws IOException {
+		File indexFile = new File(folder.getRoot(), ".transwatcher-index");
+		ContentIndex index = ContentIndex.open(indexFile);
+		File stored = store(index, "IMG_0001.JPG", "first");
+		// sorted like the SortStage does
+		File sorted = new File(folder.newFolder("2014", "2014-05-02"),
+				stored.getName());
+		assertTrue(stored.renameTo(sorted));
+		index.moved(stored, sorted);
+		index.close();
+
+		index = ContentIndex.open(indexFile);
+		assertEquals(sorted.getAbsoluteFile(), index.find(hash("first"))
+				.getAbsoluteFile());
+		assertTrue(index.contains("IMG_0001.JPG", 5));
+		assertFalse(index.contains("IMG_0001.JPG", 6));
+		// the same content arriving again is a duplicate
+		assertNull(store(index, "IMG_0001.JPG", "first"));
+		assertFalse(stored.exists());
+		index.close();
+	}
+
+	@Test
+	public void forgetsDeletedFiles() throws IOException {
+		ContentIndex index = ContentIndex.open(new File(folder.getRoot(),
+				".transwatcher-index"));
+		File stored = store(index, "IMG_0002.JPG", "second");
+		assertTrue(stored.delete());
+		assertNull(index.find(hash("second")));
+		assertFalse(index.contains("IMG_0002.JPG", -1));
+		index.close();
+	}
+
+	@Test
+	public void keepsFilesOutsideTheFolder() throws IOException {
+		File destination = folder.newFolder("destination");
+		ContentIndex index = ContentIndex.open(new File(destination,
+				".transwatcher-index"));
+		File part = write(new File(destination, "IMG_0003.JPG.part"), "third");
+		File stored = index.store(part, new File(destination, "IMG_0003.JPG"),
+				hash("third"));
+		File elsewhere = new File(folder.newFolder("sorted"), "IMG_0003.JPG");
+		assertTrue(stored.renameTo(elsewhere));
+		index.moved(stored, elsewhere);
+		index.close();
+
+		index = ContentIndex.open(new File(destination, ".transwatcher-index"));
+		assertEquals(elsewhere.getAbsoluteFile(), index.find(hash("third")));
+		index.close();
+	}
+
+	@Test
+	public void compactsOutdatedLines() throws IOException {
+		File indexFile = new File(folder.getRoot(), ".transwatcher-index");
+		ContentIndex index = ContentIndex.open(indexFile);
+		File stored = store(index, "IMG_0004.JPG", "fourth");
+		assertTrue(store(index, "IMG_0005.JPG", "fifth").delete());
+		File sorted = new File(folder.newFolder("sorted"), stored.getName());
+		// sorted and put back by hand, over and over
+		for (int i = 0; i < 300; i++) {
+			assertTrue(stored.renameTo(sorted));
+			index.moved(stored, sorted);
+			assertTrue(sorted.renameTo(stored));
+			index.moved(sorted, stored);
+		}
+		assertTrue(lines(indexFile) < 300);
+		index.close();
+
+		index = ContentIndex.open(indexFile);
+		assertEquals(stored.getAbsoluteFile(), index.find(hash("fourth"))
+				.getAbsoluteFile());
+		assertFalse(index.contains("IMG_0005.JPG", -1));
+		index.close();
+	}
+
+	private static int lines(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			int lines = 0;
+			while (reader.readLine() != null)
+				lines++;
+			return lines;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return the stored file or null for a duplicate
+	 */
+	private File store(ContentIndex index, String name, String content)
+			throws IOException {
+		File part = write(new File(folder.getRoot(), name + ".part"), content);
+		return index.store(part, new File(folder.getRoot(), name),
+				hash(content));
+	}
+
+	private static File write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String hash(String content) throws IOException {
+		return ContentIndex.toHex(ContentIndex.newDigest().digest(
+				content.getBytes("UTF-8")));
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadFileTest {
+	private static final int SIZE = 200 * 1024;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final byte[] image = new byte[SIZE];
+	private final byte[] buffer = new byte[16 * 1024];
+	private File destination;
+
+	@Before
+	public void setUp() {
+		new Random(42).nextBytes(image);
+		destination = new File(folder.getRoot(), "IMG_0001.JPG");
+	}
+
+	@Test
+	public void shortBodyIsKeptAndResumed() throws IOException {
+		int cut = 70000;
+		DownloadFile target = new DownloadFile(destination);
+		target.open(0, SIZE);
+		// the connection ended cleanly, but before Content-Length was reached
+		target.copyFrom(body(0, cut), buffer);
+		try {
+			target.commit();
+			fail("committed " + cut + " of " + SIZE + " bytes");
+		} catch (EOFException expected) {
+		}
+		assertTrue(target.isOpen());
+		long kept = target.suspend();
+		assertEquals(cut, kept);
+		assertFalse(destination.exists());
+
+		// the retry asks for the rest
+		DownloadFile retry = new DownloadFile(destination);
+		long offset = retry.resumableLength(kept);
+		assertEquals(kept, offset);
+		retry.open(offset, SIZE - offset);
+		retry.copyFrom(body((int) offset, SIZE), buffer);
+		retry.commit();
+		assertEquals(destination, retry.getCommitted());
+		assertArrayEquals(image, read(destination));
+	}
+
+	@Test
+	public void resumedDownloadHashesLikeAFullOne() throws IOException {
+		ContentIndex index = ContentIndex.open(new File(folder.getRoot(),
+				".transwatcher-index"));
+		DownloadFile full = new DownloadFile(destination, index);
+		full.open(0, SIZE);
+		full.copyFrom(body(0, SIZE), buffer);
+		full.commit();
+		assertFalse(full.isDuplicate());
+
+		// the same image under a new name, broken off and resumed
+		File again = new File(folder.getRoot(), "IMG_0002.JPG");
+		DownloadFile first = new DownloadFile(again, index);
+		first.open(0, SIZE);
+		first.copyFrom(body(0, 90000), buffer);
+		long kept = first.suspend();
+
+		DownloadFile resumed = new DownloadFile(again, index);
+		resumed.open(resumed.resumableLength(kept), SIZE - kept);
+		// the kept part was hashed when opened, so the part file isn't read
+		// back on commit and this change goes unnoticed
+		scribble(new File(again.getPath() + DownloadFile.PART_SUFFIX));
+		resumed.copyFrom(body((int) kept, SIZE), buffer);
+		resumed.commit();
+		assertTrue(resumed.isDuplicate());
+		assertEquals(destination.getAbsoluteFile(), resumed.getCommitted()
+				.getAbsoluteFile());
+		assertFalse(again.exists());
+		index.close();
+	}
+
+	private ByteArrayInputStream body(int from, int to) {
+		return new ByteArrayInputStream(Arrays.copyOfRange(image, from, to));
+	}
+
+	private static void scribble(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write(new byte[100]);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] content = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			int length;
+			while (read < content.length
+					&& (length = in.read(content, read, content.length - read)) > 0)
+				read += length;
+		} finally {
+			in.close();
+		}
+		return content;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadJournalTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void syncsTheLastLinesOfABurstWithoutFurtherLines()
+			throws IOException, InterruptedException {
+		DownloadJournal journal = DownloadJournal.open(folder
+				.newFile("journal"));
+		try {
+			journal.announced("/DCIM/IMG_0001.JPG");
+			journal.announced("/DCIM/IMG_0002.JPG");
+			journal.started("/DCIM/IMG_0001.JPG");
+			assertTrue(journal.getUnsyncedRecords() > 0);
+
+			long deadline = System.currentTimeMillis() + 3000;
+			while (journal.getUnsyncedRecords() > 0
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			assertEquals(0, journal.getUnsyncedRecords());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void closeSyncs() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(folder
+				.newFile("journal"));
+		journal.announced("/DCIM/IMG_0001.JPG");
+		journal.close();
+		assertEquals(0, journal.getUnsyncedRecords());
+	}
+
+	@Test
+	public void pendingImagesSurviveAReopen() throws IOException {
+		File file = folder.newFile("journal");
+		DownloadJournal journal = DownloadJournal.open(file);
+		journal.announced("/DCIM/IMG_0001.JPG");
+		journal.announced("/DCIM/IMG_0002.JPG");
+		journal.announced("/DCIM/IMG_0003.JPG");
+		journal.started("/DCIM/IMG_0002.JPG");
+		journal.completed("/DCIM/IMG_0001.JPG");
+		journal.dropped("/DCIM/IMG_0003.JPG");
+		journal.close();
+
+		journal = DownloadJournal.open(file);
+		try {
+			assertEquals(Arrays.asList("/DCIM/IMG_0002.JPG"),
+					journal.pending());
+			assertTrue(journal.isCompleted("/DCIM/IMG_0001.JPG"));
+			assertFalse(journal.announced("/DCIM/IMG_0002.JPG"));
+		} finally {
+			journal.close();
+		}
+	}
+}
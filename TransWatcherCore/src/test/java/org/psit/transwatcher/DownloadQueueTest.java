@@ -0,0 +1,107 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DownloadQueueTest {
+	static final String FOLDER = "/mnt/sd/DCIM/100IMAGE/";
+
+	private final DownloadQueue queue = new DownloadQueue();
+
+	@Test
+	public void nextFollowsTheRules() {
+		queue.addCatchUp(FOLDER + "IMG_0001.JPG", 3000000);
+		queue.addCatchUp(FOLDER + "IMG_0000.JPG", 2000000);
+		queue.add(FOLDER + "IMG_0002.CR2");
+		queue.add(FOLDER + "IMG_0002.MOV");
+		queue.add(FOLDER + "IMG_0002.JPG");
+		queue.add(FOLDER + "IMG_0003.CR2");
+
+		// live shots first, by the default rules JPEG, others, RAW, then
+		// the catch-up, smaller first
+		assertTaken("IMG_0002.JPG", "IMG_0002.MOV", "IMG_0002.CR2",
+				"IMG_0003.CR2", "IMG_0000.JPG", "IMG_0001.JPG");
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void bypassedFileGoesNextAfterMaxBypassed() {
+		queue.add(FOLDER + "IMG_0000.CR2");
+		// a steady stream of JPEGs, each preferred to the RAW
+		for (int i = 1; i <= DownloadQueue.MAX_BYPASSED; i++) {
+			queue.add(FOLDER + "IMG_" + (1000 + i) + ".JPG");
+			assertTaken("IMG_" + (1000 + i) + ".JPG");
+		}
+		queue.add(FOLDER + "IMG_2000.JPG");
+		assertTaken("IMG_0000.CR2", "IMG_2000.JPG");
+	}
+
+	@Test
+	public void deferredFilesWaitUntilNothingElseDoes() {
+		queue.setRules(Arrays.asList(DownloadRule.defer("*.MOV"),
+				DownloadRule.queue("*.JPG", 0)));
+		queue.add(FOLDER + "MVI_0001.MOV");
+		queue.add(FOLDER + "IMG_0002.CR2");
+		queue.add(FOLDER + "IMG_0003.JPG");
+		assertEquals(3, queue.size());
+
+		assertTaken("IMG_0003.JPG", "IMG_0002.CR2");
+		queue.add(FOLDER + "IMG_0004.CR2");
+		assertTaken("IMG_0004.CR2", "MVI_0001.MOV");
+	}
+
+	@Test
+	public void skipRulesTellWhatNotToQueue() {
+		queue.setRules(Arrays.asList(DownloadRule.skip("*.THM"),
+				DownloadRule.queue("*", 0)));
+		assertTrue(queue.isSkipped(FOLDER + "MVI_0001.THM"));
+		assertTrue(queue.isSkipped(FOLDER + "mvi_0001.thm"));
+		assertFalse(queue.isSkipped(FOLDER + "MVI_0001.MOV"));
+	}
+
+	@Test
+	public void rulesApplyToFilesQueuedFromNowOn() {
+		queue.add(FOLDER + "IMG_0001.CR2");
+		queue.add(FOLDER + "IMG_0001.JPG");
+		queue.setRules(Arrays.asList(DownloadRule.queue("*.CR2", 0),
+				DownloadRule.queue("*.JPG", 2)));
+		queue.add(FOLDER + "IMG_0002.JPG");
+		queue.add(FOLDER + "IMG_0002.CR2");
+		// the files queued before keep their priorities
+		assertTaken("IMG_0001.JPG", "IMG_0002.CR2", "IMG_0001.CR2",
+				"IMG_0002.JPG");
+	}
+
+	private void assertTaken(String... names) {
+		for (String name : names) {
+			DownloadQueue.Entry next = queue.poll();
+			assertEquals(FOLDER + name, next != null ? next.path : null);
+		}
+	}
+}
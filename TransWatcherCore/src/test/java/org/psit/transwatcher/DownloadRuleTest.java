@@ -0,0 +1,85 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.psit.transwatcher.DownloadRule.Action;
+
+public class DownloadRuleTest {
+	@Test
+	public void parsesAllActions() {
+		DownloadRule first = DownloadRule.parse("*.JPG=0");
+		assertEquals(Action.QUEUE, first.getAction());
+		assertEquals(0, first.getPriority());
+		assertEquals(Action.DEFER, DownloadRule.parse(" *.MOV = Defer ")
+				.getAction());
+		assertEquals(Action.SKIP, DownloadRule.parse("*.THM=skip")
+				.getAction());
+		assertEquals(-3, DownloadRule.parse("IMG_????.CR2=-3").getPriority());
+		assertEquals("*.MOV=defer", DownloadRule.parse("*.MOV=DEFER")
+				.toString());
+	}
+
+	@Test
+	public void rejectsMalformedRules() {
+		for (String rule : new String[] { "", "*.JPG", "=1", " = 1",
+				"*.JPG=", "*.JPG=first", "*.JPG=1.5" }) {
+			try {
+				DownloadRule.parse(rule);
+				fail("parsed \"" + rule + "\"");
+			} catch (IllegalArgumentException expected) {
+				// the message names the rule
+			}
+		}
+	}
+
+	@Test
+	public void firstMatchingRuleApplies() {
+		DownloadRule raw = DownloadRule.parse("IMG_????.CR2=2");
+		DownloadRule any = DownloadRule.parse("*=5");
+		List<DownloadRule> rules = Arrays.asList(raw, any);
+		// the name without folder, ignoring case
+		assertSame(raw, DownloadRule.match(rules,
+				"/mnt/sd/DCIM/100IMAGE/img_0001.cr2"));
+		assertSame(any, DownloadRule.match(rules,
+				"/mnt/sd/DCIM/100IMAGE/IMG_00001.CR2"));
+		assertNull(DownloadRule.match(Arrays.asList(raw),
+				"/mnt/sd/DCIM/IMG_0001.CR2/IMG_0001.JPG"));
+	}
+
+	@Test
+	public void defaultsPutJpegFirstAndRawLast() {
+		List<DownloadRule> defaults = DownloadRule.defaults();
+		assertEquals(0, DownloadRule.match(defaults, "IMG_0001.jpeg")
+				.getPriority());
+		assertEquals(2, DownloadRule.match(defaults, "IMG_0001.NEF")
+				.getPriority());
+		assertNull(DownloadRule.match(defaults, "MVI_0001.MOV"));
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.simulator.CardSimulator;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class DownloadWorkersTest {
+	static final int BURST = 12;
+
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	@Test
+	public void parallelWorkersDrainABurstFaster() throws Exception {
+		// a card that takes its time to answer, but answers several at once
+		card.getCard().setLatency(150);
+		card.getCard().setMaxParallelRequests(4);
+
+		long sequential = drainBurst(1, "sequential");
+		long parallel = drainBurst(4, "parallel");
+		assertTrue("4 workers took " + parallel + " ms, 1 worker "
+				+ sequential + " ms", parallel * 2 < sequential);
+	}
+
+	@Test
+	public void workersShareKeepAliveConnections() throws Exception {
+		CardSimulator simulator = card.getCard();
+		TransWatcher watcher = card.newWatcher();
+		watcher.setDownloadConcurrency(2);
+		watcher.start();
+		card.awaitListening(watcher);
+
+		int accepted = simulator.getConnectionsAccepted();
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < BURST; i++)
+			paths.add(simulator.shoot(50000));
+		for (String path : paths)
+			card.assertDownloaded(path);
+
+		// one connection per worker, and maybe a liveness check
+		int connections = simulator.getConnectionsAccepted() - accepted;
+		assertTrue(connections + " connections for " + BURST + " files",
+				connections <= 3);
+		assertEquals(BURST, simulator.getRequestsServed());
+	}
+
+	/**
+	 * @return the ms from the first shot of a burst until all its images are
+	 *         downloaded
+	 */
+	private long drainBurst(int concurrency, String folder) throws Exception {
+		TransWatcher watcher = card.newWatcher(new File(card.getFolder(),
+				folder));
+		watcher.setDownloadConcurrency(concurrency);
+		watcher.start();
+		card.awaitListening(watcher);
+
+		long start = System.currentTimeMillis();
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < BURST; i++)
+			paths.add(card.getCard().shoot(50000));
+		for (String path : paths)
+			card.assertDownloaded(path);
+		long drain = System.currentTimeMillis() - start;
+		SimulatedCard.stop(watcher);
+		return drain;
+	}
+}
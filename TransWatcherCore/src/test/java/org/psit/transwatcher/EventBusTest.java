@@ -0,0 +1,82 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.psit.transwatcher.TransWatcher.State;
+
+public class EventBusTest {
+	private static class ThreadRecorder implements TransWatcher.Listener {
+		final Set<Thread> threads = Collections
+				.synchronizedSet(Collections
+						.newSetFromMap(new IdentityHashMap<Thread, Boolean>()));
+		final CountDownLatch downloads;
+
+		ThreadRecorder(int expected) {
+			downloads = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void ping(String msg) {
+		}
+
+		@Override
+		public void exception(Exception ex) {
+		}
+
+		@Override
+		public void state(State state) {
+		}
+
+		@Override
+		public void downloaded(String filePath) {
+			threads.add(Thread.currentThread());
+			downloads.countDown();
+		}
+
+		@Override
+		public void thumbnail(String filePath, byte[] jpeg) {
+		}
+	}
+
+	@Test
+	public void spacedEventsShareOneDispatcher() throws InterruptedException {
+		EventBus events = new EventBus("Test");
+		ThreadRecorder recorder = new ThreadRecorder(10);
+		events.addListener(recorder);
+		for (int i = 0; i < 10; i++) {
+			events.downloaded("/DCIM/100__TSB/IMG_" + i + ".JPG");
+			// long enough for the dispatcher to drain the queue
+			Thread.sleep(50);
+		}
+		assertTrue(recorder.downloads.await(5, TimeUnit.SECONDS));
+		assertEquals(1, recorder.threads.size());
+	}
+}
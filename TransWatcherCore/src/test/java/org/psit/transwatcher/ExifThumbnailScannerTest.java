@@ -0,0 +1,179 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExifThumbnailScannerTest {
+	private static final byte[] THUMBNAIL = { (byte) 0xFF, (byte) 0xD8,
+			(byte) 0xFF, (byte) 0xDB, 0, 4, 1, 2, (byte) 0xFF, (byte) 0xD9 };
+
+	@Test
+	public void findsTheThumbnailInBothByteOrders() {
+		for (boolean littleEndian : new boolean[] { true, false }) {
+			ExifThumbnailScanner scanner = new ExifThumbnailScanner();
+			byte[] jpeg = jpeg(THUMBNAIL, littleEndian);
+			assertFalse(scanner.write(jpeg, 0, jpeg.length));
+			assertArrayEquals(THUMBNAIL, scanner.getThumbnail());
+		}
+	}
+
+	@Test
+	public void findsTheThumbnailInSmallChunks() {
+		byte[] jpeg = jpeg(THUMBNAIL, true);
+		for (int chunk = 1; chunk <= 7; chunk++) {
+			ExifThumbnailScanner scanner = new ExifThumbnailScanner();
+			for (int i = 0; i < jpeg.length && !scanner.isDone(); i += chunk)
+				scanner.write(jpeg, i, Math.min(chunk, jpeg.length - i));
+			assertArrayEquals(THUMBNAIL, scanner.getThumbnail());
+		}
+	}
+
+	@Test
+	public void ignoresTooShortThumbnails() {
+		for (int size = 1; size < 4; size++)
+			assertNull(scan(jpeg(Arrays.copyOf(THUMBNAIL, size), true)));
+	}
+
+	@Test
+	public void ignoresThumbnailsWithoutStartOfImage() {
+		byte[] thumbnail = THUMBNAIL.clone();
+		thumbnail[1] = 0;
+		assertNull(scan(jpeg(thumbnail, false)));
+	}
+
+	@Test
+	public void stopsAtTheImageDataWithoutExif() {
+		ExifThumbnailScanner scanner = new ExifThumbnailScanner();
+		byte[] jpeg = jpeg(null, true);
+		assertFalse(scanner.write(jpeg, 0, jpeg.length));
+		assertNull(scanner.getThumbnail());
+	}
+
+	@Test
+	public void stopsAtOnceForOtherFiles() {
+		ExifThumbnailScanner scanner = new ExifThumbnailScanner();
+		byte[] raw = { 'I', 'I', 42, 0, 8, 0, 0, 0 };
+		assertFalse(scanner.write(raw, 0, raw.length));
+		assertTrue(scanner.isDone());
+		assertNull(scanner.getThumbnail());
+	}
+
+	private static byte[] scan(byte[] jpeg) {
+		ExifThumbnailScanner scanner = new ExifThumbnailScanner();
+		scanner.write(jpeg, 0, jpeg.length);
+		return scanner.getThumbnail();
+	}
+
+	/**
+	 * Builds a JPEG with an EXIF segment holding the thumbnail in IFD1, or
+	 * without EXIF segment if the thumbnail is null, followed by random
+	 * image data.
+	 */
+	static byte[] jpeg(byte[] thumbnail, boolean littleEndian) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0xFF);
+		out.write(0xD8);
+		if (thumbnail != null) {
+			byte[] exif = exif(thumbnail, littleEndian);
+			out.write(0xFF);
+			out.write(0xE1);
+			out.write((exif.length + 2) >> 8);
+			out.write((exif.length + 2) & 0xFF);
+			out.write(exif, 0, exif.length);
+		}
+		// a quantization table and the start of the image data
+		byte[] segments = { (byte) 0xFF, (byte) 0xDB, 0, 4, 0, 0,
+				(byte) 0xFF, (byte) 0xDA, 0, 2 };
+		out.write(segments, 0, segments.length);
+		byte[] data = new byte[4096];
+		new Random(1).nextBytes(data);
+		out.write(data, 0, data.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] exif(byte[] thumbnail, boolean littleEndian) {
+		Tiff tiff = new Tiff(littleEndian);
+		tiff.out.write('E');
+		tiff.out.write('x');
+		tiff.out.write('i');
+		tiff.out.write('f');
+		tiff.out.write(0);
+		tiff.out.write(0);
+		tiff.out.write(littleEndian ? 'I' : 'M');
+		tiff.out.write(littleEndian ? 'I' : 'M');
+		tiff.uint16(42);
+		// IFD0 right after the header, without entries
+		tiff.uint32(8);
+		tiff.uint16(0);
+		// IFD1 follows with the thumbnail offset and length
+		tiff.uint32(14);
+		tiff.uint16(2);
+		tiff.entry(0x0201, 44);
+		tiff.entry(0x0202, thumbnail.length);
+		tiff.uint32(0);
+		tiff.out.write(thumbnail, 0, thumbnail.length);
+		return tiff.out.toByteArray();
+	}
+
+	private static class Tiff {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final boolean littleEndian;
+
+		Tiff(boolean littleEndian) {
+			this.littleEndian = littleEndian;
+		}
+
+		void uint16(int value) {
+			write(value, 2);
+		}
+
+		void uint32(long value) {
+			write(value, 4);
+		}
+
+		/**
+		 * Writes an IFD entry with a LONG value.
+		 */
+		void entry(int tag, long value) {
+			uint16(tag);
+			uint16(4);
+			uint32(1);
+			uint32(value);
+		}
+
+		private void write(long value, int bytes) {
+			for (int i = 0; i < bytes; i++) {
+				int shift = 8 * (littleEndian ? i : bytes - 1 - i);
+				out.write((int) (value >> shift) & 0xFF);
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.TransWatcher.State;
+import org.psit.transwatcher.simulator.CardSimulator;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class HealthCheckTest {
+	static final int RECONNECTS = 6;
+
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	@Test
+	public void threadCountStaysTheSameAcrossReconnects() throws Exception {
+		CardSimulator simulator = card.getCard();
+		TransWatcher watcher = card.newWatcher();
+		watcher.start();
+		card.awaitListening(watcher);
+		card.assertDownloaded(simulator.shoot(10000));
+		int threads = settledThreadCount();
+
+		for (int i = 0; i < RECONNECTS; i++) {
+			simulator.setOnline(false);
+			awaitState(watcher, State.SEARCHING_CARD);
+			simulator.setOnline(true);
+			card.awaitListening(watcher);
+			card.assertDownloaded(simulator.shoot(10000));
+		}
+		int after = settledThreadCount();
+		assertTrue(threads + " threads before " + RECONNECTS
+				+ " reconnects, " + after + " after", after <= threads);
+	}
+
+	@Test
+	public void aStuckProbeDoesNotDelayOtherChecks() throws Exception {
+		ServerSocket cardServer = new ServerSocket(0);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+				cardServer.getLocalPort());
+		final CountDownLatch stuck = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch otherAlive = new CountDownLatch(1);
+		HealthCheck slow = HealthCheck.start(new Socket(), address,
+				new Callback() {
+					@Override
+					public void alive() {
+						// hangs on the probe thread like an unreachable card
+						stuck.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {}
+					}
+				});
+		HealthCheck other = HealthCheck.start(new Socket(), address,
+				new Callback() {
+					@Override
+					public void alive() {
+						otherAlive.countDown();
+					}
+				});
+		try {
+			slow.probeNow();
+			assertTrue(stuck.await(5, TimeUnit.SECONDS));
+			other.probeNow();
+			assertTrue("the other card's probe waited for the stuck one",
+					otherAlive.await(2, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			slow.cancel();
+			other.cancel();
+			cardServer.close();
+		}
+	}
+
+	private static class Callback implements HealthCheck.Callback {
+		@Override
+		public void alive() {}
+
+		@Override
+		public void lost(IOException e) {}
+	}
+
+	private static void awaitState(TransWatcher watcher, State state)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SimulatedCard.TIMEOUT_MS;
+		while (watcher.getWatcherState() != state) {
+			assertTrue("watcher did not get " + state,
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * @return the number of threads, not counting the simulated card's,
+	 *         once the ones of the last connection ended
+	 */
+	private static int settledThreadCount() throws InterruptedException {
+		Thread.sleep(500);
+		List<String> names = new ArrayList<String>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && !thread.getName().startsWith("Simulator"))
+				names.add(thread.getName());
+		}
+		return names.size();
+	}
+}
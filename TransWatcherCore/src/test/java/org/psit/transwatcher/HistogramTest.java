@@ -0,0 +1,128 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	private static final int THREADS = 8;
+	private static final int VALUES = 100000;
+
+	@Test
+	public void bucketsAreContiguousAndNarrow() {
+		int last = Histogram.bucket(Long.MAX_VALUE);
+		for (int b = 0; b <= last; b++)
+			assertEquals(b, Histogram.bucket(Histogram.lowerBound(b)));
+		for (long v = 0; v < 16; v++)
+			assertEquals(v, Histogram.lowerBound(Histogram.bucket(v)));
+
+		long[] values = { 16, 17, 18, 19, 20, 31, 32, 33, 35, 36, 1000, 1023,
+				1024, 1151, 1152, 123456789, 1L << 40, (1L << 40) - 1,
+				Long.MAX_VALUE };
+		for (long v : values) {
+			int b = Histogram.bucket(v);
+			long lower = Histogram.lowerBound(b);
+			assertTrue(v + " below " + lower, lower <= v);
+			if (b < last)
+				assertTrue(v + " in bucket " + b,
+						v < Histogram.lowerBound(b + 1));
+			// less than 12.5% apart
+			assertTrue(v + " from " + lower, v - lower <= lower / 8);
+		}
+	}
+
+	@Test
+	public void percentilesAreAccurateToTheBucketWidth() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.snapshot().getPercentile(50));
+		for (int v = 1000; v >= 1; v--)
+			histogram.record(v);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(1000, snapshot.getMax());
+		assertEquals(500.5, snapshot.getMean(), 0.001);
+		assertEquals(1, snapshot.getPercentile(0));
+		assertEquals(10, snapshot.getPercentile(1));
+		assertWithinBucket(500, snapshot.getPercentile(50));
+		assertWithinBucket(950, snapshot.getPercentile(95));
+		assertWithinBucket(990, snapshot.getPercentile(99));
+		// never above the largest value recorded
+		assertEquals(1000, snapshot.getPercentile(100));
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(3);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(2, snapshot.getCount());
+		assertEquals(0, snapshot.getPercentile(50));
+		assertEquals(3, snapshot.getPercentile(100));
+		assertEquals(1.5, snapshot.getMean(), 0.001);
+	}
+
+	@Test
+	public void concurrentRecordsAreAllCounted() throws InterruptedException {
+		final Histogram histogram = new Histogram();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t;
+			Thread recorder = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < VALUES; i++)
+							histogram.record((i + offset) % 100);
+					} catch (InterruptedException e) {
+						// shows as missing values below
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "Recorder-" + t);
+			recorder.setDaemon(true);
+			recorder.start();
+		}
+		start.countDown();
+		done.await();
+
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals((long) THREADS * VALUES, snapshot.getCount());
+		assertEquals(99, snapshot.getMax());
+		assertEquals(49.5, snapshot.getMean(), 0.001);
+		// below 16 every value has its own bucket
+		assertEquals(9, snapshot.getPercentile(10));
+		assertWithinBucket(49, snapshot.getPercentile(50));
+	}
+
+	private static void assertWithinBucket(long expected, long actual) {
+		assertTrue(actual + " for " + expected, actual >= expected
+				&& actual <= expected + expected / 8);
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class LogRingTest {
+	private static final int PRODUCERS = 8;
+	private static final int LINES = 20000;
+
+	@Test
+	public void keepsEachWritersOrderAndCountsWhatItDrops()
+			throws InterruptedException {
+		// small enough for the writers to overrun the reader
+		final LogRing ring = new LogRing(64);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(PRODUCERS);
+		final AtomicLong refused = new AtomicLong();
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < LINES; i++)
+							if (!ring.offer(producer + ":" + i))
+								refused.incrementAndGet();
+					} catch (InterruptedException e) {
+						// shows as missing lines below
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "Writer-" + p);
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		int[] last = new int[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++)
+			last[p] = -1;
+		long received = 0;
+		long dropped = 0;
+		List<String> lines = new ArrayList<String>();
+		start.countDown();
+		boolean writing = true;
+		while (writing) {
+			// read once more after the last writer ended
+			writing = done.getCount() > 0;
+			lines.clear();
+			ring.drainTo(lines);
+			for (String line : lines) {
+				int colon = line.indexOf(':');
+				int producer = Integer.parseInt(line.substring(0, colon));
+				int index = Integer.parseInt(line.substring(colon + 1));
+				assertTrue(line + " after " + producer + ":" + last[producer],
+						index > last[producer]);
+				last[producer] = index;
+			}
+			received += lines.size();
+			dropped += ring.takeDropped();
+		}
+
+		assertEquals(refused.get(), dropped);
+		assertEquals((long) PRODUCERS * LINES, received + dropped);
+	}
+}
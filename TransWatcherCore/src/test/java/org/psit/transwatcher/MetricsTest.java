@@ -0,0 +1,134 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MetricsTest {
+	private static final int THREADS = 8;
+	private static final int FILES = 2000;
+
+	private final DownloadQueue queue = new DownloadQueue();
+	private final Metrics metrics = new Metrics(queue);
+
+	@Test
+	public void countsWhatTheWatcherReports() {
+		metrics.discoveryAttempt();
+		metrics.discoveryAttempt();
+		metrics.connected(120);
+		metrics.connected(80);
+		metrics.watchdogFailure();
+		queue.add("/DCIM/IMG_0001.JPG");
+		metrics.downloaded(queue.poll(), 3000000, 1500000000L);
+		// the catch-up sync doesn't know when the shot was taken
+		queue.addCatchUp("/DCIM/IMG_0000.JPG", 1000);
+		metrics.downloaded(queue.poll(), 1000, 0);
+		metrics.downloadFailed();
+
+		Metrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(2, snapshot.discoveryAttempts);
+		assertEquals(2, snapshot.connects);
+		assertEquals(1, snapshot.reconnects);
+		assertEquals(1, snapshot.watchdogFailures);
+		assertEquals(120, snapshot.connectLatencyMs.getMax());
+		assertEquals(2, snapshot.downloads);
+		assertEquals(1, snapshot.failedDownloads);
+		assertEquals(3001000, snapshot.bytes);
+		assertEquals(1, snapshot.announceToDiskMs.getCount());
+		assertEquals(1, snapshot.downloadBytesPerSecond.getCount());
+		assertEquals(2000000, snapshot.downloadBytesPerSecond.getMax());
+	}
+
+	@Test
+	public void concurrentUpdatesAreAllCounted() throws InterruptedException {
+		run(new Task() {
+			@Override
+			public void run(int thread, int i) {
+				queue.add("/DCIM/" + thread + "/IMG_" + i + ".JPG");
+			}
+		});
+		Metrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(THREADS * FILES, snapshot.queueDepth);
+		assertEquals(THREADS * FILES, snapshot.maxQueueDepth);
+
+		run(new Task() {
+			@Override
+			public void run(int thread, int i) {
+				metrics.downloaded(queue.poll(), 1000, 1000000);
+				if (i % 2 == 0)
+					metrics.downloadFailed();
+				metrics.discoveryAttempt();
+				metrics.connected(i % 100);
+			}
+		});
+		snapshot = metrics.snapshot();
+		long files = (long) THREADS * FILES;
+		assertEquals(0, snapshot.queueDepth);
+		// the gauge keeps its peak
+		assertEquals(files, snapshot.maxQueueDepth);
+		assertEquals(files, snapshot.downloads);
+		assertEquals(files / 2, snapshot.failedDownloads);
+		assertEquals(files * 1000, snapshot.bytes);
+		assertEquals(files, snapshot.discoveryAttempts);
+		assertEquals(files, snapshot.connects);
+		assertEquals(files, snapshot.announceToDiskMs.getCount());
+		assertEquals(files, snapshot.downloadBytesPerSecond.getCount());
+		assertEquals(1000000, snapshot.downloadBytesPerSecond.getMax());
+		assertEquals(99, snapshot.connectLatencyMs.getMax());
+	}
+
+	private interface Task {
+		void run(int thread, int i);
+	}
+
+	/**
+	 * Runs the task FILES times on each of THREADS threads at once.
+	 */
+	private static void run(final Task task) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			Thread updater = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < FILES; i++)
+							task.run(thread, i);
+					} catch (InterruptedException e) {
+						// shows as missing updates
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "Updater-" + t);
+			updater.setDaemon(true);
+			updater.start();
+		}
+		start.countDown();
+		done.await();
+	}
+}
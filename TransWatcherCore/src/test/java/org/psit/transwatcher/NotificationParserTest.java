@@ -0,0 +1,188 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NotificationParserTest {
+	private final NotificationParser parser = new NotificationParser();
+
+	@Test
+	public void readsFramesDeliveredByteByByte() throws IOException {
+		List<String> names = names(20, 40);
+		parser.reset(new FragmentedInputStream(frames(names), new int[] { 1 }));
+		assertEquals(names, readAll());
+	}
+
+	@Test
+	public void readsFramesSplitAtRandomPoints() throws IOException {
+		Random random = new Random(5566);
+		List<String> names = names(200, 60);
+		int[] chunks = new int[50];
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = 1 + random.nextInt(300);
+		parser.reset(new FragmentedInputStream(frames(names), chunks));
+		assertEquals(names, readAll());
+	}
+
+	@Test
+	public void readsPathsLongerThanTheReadBuffer() throws IOException {
+		// longer than the 255 bytes of the old parser and the 4096 of a read
+		List<String> names = Arrays.asList(path(300), path(5000), path(20000),
+				"/mnt/sd/DCIM/100IMAGE/IMG_0001.JPG");
+		parser.reset(new FragmentedInputStream(frames(names), new int[] { 7,
+				4096, 1 }));
+		assertEquals(names, readAll());
+	}
+
+	@Test
+	public void skipsNoiseBetweenFrames() throws IOException {
+		parser.reset(new ByteArrayInputStream(bytes("\n\r>/a.JPG\0 \n>/b.JPG\0\n")));
+		assertEquals(Arrays.asList("/a.JPG", "/b.JPG"), readAll());
+	}
+
+	@Test
+	public void dropsOverlongFramesAndGoesOn() throws IOException {
+		parser.reset(new ByteArrayInputStream(bytes(">" + path(100000)
+				+ "\0>/next.JPG\0")));
+		assertEquals(Arrays.asList("/next.JPG"), readAll());
+	}
+
+	@Test
+	public void endOfStreamInsideAFrameEndsTheStream() throws IOException {
+		parser.reset(new ByteArrayInputStream(bytes(">/a.JPG\0>/mnt/sd/DC")));
+		assertEquals("/a.JPG", parser.next());
+		assertNull(parser.next());
+	}
+
+	@Test
+	public void resetDiscardsAPartialFrame() throws IOException {
+		parser.reset(new ByteArrayInputStream(bytes(">/a.JPG\0>/broken")));
+		assertEquals("/a.JPG", parser.next());
+		assertNull(parser.next());
+
+		parser.reset(new ByteArrayInputStream(bytes("_rest.JPG\0>/b.JPG\0")));
+		assertEquals(Arrays.asList("/b.JPG"), readAll());
+	}
+
+	@Test
+	public void keepsAFrameSplitAcrossBuffers() {
+		parser.reset(null);
+		byte[] stream = frames(names(50, 30));
+		List<String> names = new ArrayList<String>();
+		ByteBuffer buffer = ByteBuffer.wrap(stream);
+		Random random = new Random(1);
+		int end = 0;
+		while (end < stream.length) {
+			end = Math.min(stream.length, end + 1 + random.nextInt(70));
+			buffer.limit(end);
+			String name;
+			while ((name = parser.next(buffer)) != null)
+				names.add(name);
+		}
+		assertEquals(names(50, 30), names);
+	}
+
+	private List<String> readAll() throws IOException {
+		List<String> names = new ArrayList<String>();
+		String name;
+		while ((name = parser.next()) != null)
+			names.add(name);
+		return names;
+	}
+
+	private static List<String> names(int count, int length) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String name = String.format("/mnt/sd/DCIM/100IMAGE/IMG_%04d", i);
+			while (name.length() < length - 4)
+				name += "_";
+			names.add(name + ".JPG");
+		}
+		return names;
+	}
+
+	private static String path(int length) {
+		StringBuilder path = new StringBuilder("/mnt/sd/DCIM/");
+		while (path.length() < length - 4)
+			path.append((char) ('a' + path.length() % 26));
+		return path.append(".JPG").toString();
+	}
+
+	private static byte[] frames(List<String> names) {
+		StringBuilder stream = new StringBuilder();
+		for (String name : names)
+			stream.append('>').append(name).append('\0');
+		return bytes(stream.toString());
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Hands out the data in reads of the given sizes, in turn, like a socket
+	 * receiving small packets.
+	 */
+	static class FragmentedInputStream extends InputStream {
+		private final byte[] data;
+		private final int[] chunks;
+		private int position;
+		private int reads;
+
+		FragmentedInputStream(byte[] data, int[] chunks) {
+			this.data = data;
+			this.chunks = chunks;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= data.length)
+				return -1;
+			int chunk = chunks[reads++ % chunks.length];
+			int length = Math.min(Math.min(len, chunk), data.length - position);
+			System.arraycopy(data, position, b, off, length);
+			position += length;
+			return length;
+		}
+	}
+}
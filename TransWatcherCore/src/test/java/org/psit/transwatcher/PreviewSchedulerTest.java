@@ -0,0 +1,161 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.psit.transwatcher.PreviewScheduler.Request;
+
+public class PreviewSchedulerTest {
+	/**
+	 * Decodes a file to "preview of" its path, each preview taking 4 units
+	 * of the cache. Can hold the decoder thread in the first decode.
+	 */
+	private static class Previews implements PreviewScheduler.Decoder<String>,
+			PreviewScheduler.Display<String> {
+		final List<String> decoded = new CopyOnWriteArrayList<String>();
+		final BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+		final CountDownLatch decoding = new CountDownLatch(1);
+		final CountDownLatch release;
+
+		Previews(boolean holdFirst) {
+			release = new CountDownLatch(holdFirst ? 1 : 0);
+		}
+
+		@Override
+		public String decode(String filePath, Request request)
+				throws InterruptedException {
+			decoded.add(filePath);
+			decoding.countDown();
+			release.await();
+			return "preview of " + filePath;
+		}
+
+		@Override
+		public long sizeOf(String preview) {
+			return 4;
+		}
+
+		@Override
+		public void show(String filePath, String preview) {
+			shown.add(preview);
+		}
+
+		String nextShown() throws InterruptedException {
+			return shown.poll(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private PreviewScheduler<String> scheduler;
+
+	@After
+	public void shutdown() {
+		if (scheduler != null)
+			scheduler.shutdown();
+	}
+
+	@Test
+	public void onlyTheLatestRequestIsShown() throws InterruptedException {
+		Previews previews = new Previews(true);
+		scheduler = new PreviewScheduler<String>(previews, previews, 100);
+		scheduler.request("a");
+		assertTrue(previews.decoding.await(5, TimeUnit.SECONDS));
+		// a burst while a decodes: b is replaced by c before it's taken
+		scheduler.request("b");
+		scheduler.request("c");
+		previews.release.countDown();
+
+		assertEquals("preview of c", previews.nextShown());
+		assertEquals(Arrays.asList("a", "c"), previews.decoded);
+		// a was overtaken, decoded but not shown
+		assertNull(previews.shown.poll(100, TimeUnit.MILLISECONDS));
+		assertNotNull(scheduler.getCached("a"));
+	}
+
+	@Test
+	public void givenPreviewOvertakesRunningDecode()
+			throws InterruptedException {
+		Previews previews = new Previews(true);
+		scheduler = new PreviewScheduler<String>(previews, previews, 100);
+		scheduler.request("a");
+		assertTrue(previews.decoding.await(5, TimeUnit.SECONDS));
+		scheduler.show("b", "thumbnail of b");
+		previews.release.countDown();
+
+		assertEquals("thumbnail of b", previews.nextShown());
+		assertNull(previews.shown.poll(100, TimeUnit.MILLISECONDS));
+		assertNull(scheduler.getCached("b"));
+	}
+
+	@Test
+	public void cacheDropsLeastRecentlyUsed() throws InterruptedException {
+		Previews previews = new Previews(false);
+		// two previews of 4 fit
+		scheduler = new PreviewScheduler<String>(previews, previews, 10);
+		scheduler.request("a");
+		assertEquals("preview of a", previews.nextShown());
+		scheduler.request("b");
+		assertEquals("preview of b", previews.nextShown());
+		// shown from the cache, now used more recently than b
+		scheduler.request("a");
+		assertEquals("preview of a", previews.nextShown());
+		assertEquals(2, previews.decoded.size());
+
+		scheduler.request("c");
+		assertEquals("preview of c", previews.nextShown());
+		assertNotNull(scheduler.getCached("a"));
+		assertNull(scheduler.getCached("b"));
+		assertNotNull(scheduler.getCached("c"));
+	}
+
+	@Test
+	public void previewLargerThanTheCacheIsNotKept()
+			throws InterruptedException {
+		Previews previews = new Previews(false);
+		scheduler = new PreviewScheduler<String>(previews, previews, 3);
+		scheduler.request("a");
+		assertEquals("preview of a", previews.nextShown());
+		assertNull(scheduler.getCached("a"));
+	}
+
+	@Test
+	public void inSampleSizeKeepsBothSidesLarger() {
+		assertEquals(1, PreviewScheduler.inSampleSize(800, 600, 800, 600));
+		assertEquals(1, PreviewScheduler.inSampleSize(1600, 1200, 800, 600));
+		assertEquals(2, PreviewScheduler.inSampleSize(1602, 1202, 800, 600));
+		assertEquals(4, PreviewScheduler.inSampleSize(4000, 3000, 800, 600));
+		// the narrow side decides
+		assertEquals(1, PreviewScheduler.inSampleSize(4000, 1000, 800, 600));
+	}
+}
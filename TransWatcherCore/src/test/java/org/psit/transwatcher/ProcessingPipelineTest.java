@@ -0,0 +1,137 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ProcessingPipelineTest {
+	private static final int FILES = 10;
+	private static final int CAPACITY = 2;
+	private static final long HOLD_MS = 300;
+	private static final long SLOW_MS = 20;
+
+	private final AtomicInteger entered = new AtomicInteger();
+	private final CountDownLatch holding = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CountDownLatch done = new CountDownLatch(FILES);
+	private final ProcessingPipeline pipeline = new ProcessingPipeline(
+			CAPACITY).addStage("fast", new ProcessingPipeline.Stage() {
+		@Override
+		public File process(File file) {
+			entered.incrementAndGet();
+			return file;
+		}
+	}, 1).addStage("slow", new ProcessingPipeline.Stage() {
+		@Override
+		public File process(File file) {
+			try {
+				if (holding.getCount() > 0) {
+					holding.countDown();
+					release.await();
+				}
+				Thread.sleep(SLOW_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return file;
+		}
+	}, 1);
+
+	@After
+	public void tearDown() {
+		pipeline.shutdown();
+	}
+
+	@Test
+	public void slowStageBlocksTheStageBeforeIt() throws Exception {
+		ProcessingPipeline.Callback callback = new ProcessingPipeline.Callback() {
+			@Override
+			public void processed(File downloaded, File result) {
+				done.countDown();
+			}
+
+			@Override
+			public void failed(File file, String stage, Exception e) {
+			}
+
+			@Override
+			public void moved(File from, File to) {
+			}
+		};
+		for (int i = 0; i < FILES; i++)
+			assertTrue(pipeline.submit(new File("IMG_000" + i + ".JPG"),
+					callback));
+		assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+		// one in the slow stage, the queue full and one waiting to be put
+		int inFlight = 1 + CAPACITY + 1;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (entered.get() < inFlight
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Thread.sleep(HOLD_MS);
+		assertEquals(inFlight, entered.get());
+		// the rest waits in the backlog
+		assertEquals(FILES, pipeline.getPending());
+		release.countDown();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(FILES, entered.get());
+		assertEquals(0, pipeline.getPending());
+
+		String[] lines = pipeline.toString().split("\n");
+		assertEquals(2, lines.length);
+		Matcher fast = stage(lines[0]);
+		assertEquals("fast", fast.group(1));
+		// every file went through the queue, one waited out the hold
+		assertEquals(FILES, Long.parseLong(fast.group(4)));
+		assertTrue(fast.group(5), Long.parseLong(fast.group(5)) >= HOLD_MS / 2);
+		Matcher slow = stage(lines[1]);
+		assertEquals("slow", slow.group(1));
+		assertEquals(FILES, Long.parseLong(slow.group(2)));
+		assertTrue(slow.group(3), Long.parseLong(slow.group(3)) >= HOLD_MS);
+		// the last stage hands its files to nobody
+		assertEquals(0, Long.parseLong(slow.group(4)));
+	}
+
+	/**
+	 * @return the name, the files and max ms of the stage, and the files and
+	 *         max ms it waited for the next one
+	 */
+	private static Matcher stage(String line) {
+		Matcher m = Pattern.compile(
+				"(\\w+): \\d+ done, 0 failed, 0 waiting, ms n=(\\d+) .* max=(\\d+),"
+						+ " blocked ms n=(\\d+) .* max=(\\d+)").matcher(line);
+		assertTrue(line, m.matches());
+		return m;
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.simulator.IngestServer;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class RelayUploaderTest {
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	private IngestServer ingest;
+
+	@After
+	public void stopIngest() {
+		if (ingest != null)
+			ingest.stop();
+	}
+
+	@Test
+	public void sortedFilesAreUploadedWithoutWaiting() throws Exception {
+		ingest = new IngestServer(0);
+		// the stream and two uploads from the file fail, a few s of retries
+		ingest.setFailures(3);
+		ingest.start();
+		RelayUploader relay = new RelayUploader("http://127.0.0.1:"
+				+ ingest.getPort() + "/upload");
+		ProcessingPipeline pipeline = new ProcessingPipeline().addStage(
+				"sort", new SortStage(new File(card.getFolder(), "sorted"),
+						false), 1);
+		TransWatcher watcher = card.newWatcher();
+		watcher.setRelayUploader(relay);
+		watcher.setProcessingPipeline(pipeline);
+		watcher.start();
+		card.awaitListening(watcher);
+
+		String path = card.getCard().shoot(100000);
+		String name = new File(path).getName();
+		card.assertDownloaded(path);
+		// processed and reported while the upload still retries
+		assertNull(ingest.getFile(name));
+
+		// uploaded from where the sort stage moved it
+		long deadline = System.currentTimeMillis() + SimulatedCard.TIMEOUT_MS;
+		while (ingest.getFile(name) == null
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertArrayEquals(card.getCard().getContent(path), ingest
+				.getFile(name));
+
+		SimulatedCard.stop(watcher);
+		assertNull(relay.begin(name, null));
+		assertFalse(pipeline.submit(new File(name), null));
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.TransWatcher.Engine;
+import org.psit.transwatcher.simulator.CardSimulator;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class ResumeDownloadTest {
+	static final int FILES = 10;
+	static final int SIZE = 600000;
+
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	@Test
+	public void resumesCutDownloadsWithRangeRequests() throws Exception {
+		for (Engine engine : Engine.values()) {
+			CardSimulator simulator = card.getCard();
+			int cut = simulator.getConnectionsCut();
+			int ranges = simulator.getRangeRequests();
+			downloadWithCuts(engine);
+			assertTrue(engine + ": no connection was cut",
+					simulator.getConnectionsCut() > cut);
+			assertTrue(engine + ": no download was resumed",
+					simulator.getRangeRequests() > ranges);
+		}
+	}
+
+	@Test
+	public void downloadsAgainIfTheCardIgnoresRanges() throws Exception {
+		card.getCard().setIgnoreRange(true);
+		for (Engine engine : Engine.values())
+			downloadWithCuts(engine);
+		assertTrue(card.getCard().getConnectionsCut() > 0);
+		assertEquals(0, card.getCard().getRangeRequests());
+	}
+
+	/**
+	 * Shoots images while the card cuts most transfers at a random point
+	 * and checks they all arrive intact.
+	 */
+	private void downloadWithCuts(Engine engine) throws Exception {
+		CardSimulator simulator = card.getCard();
+		simulator.setBandwidth(8000000);
+		simulator.setCutProbability(0);
+		TransWatcher watcher = card.newWatcher(new File(card.getFolder(),
+				engine.name()));
+		watcher.setEngine(engine);
+		watcher.start();
+		card.awaitListening(watcher);
+
+		simulator.setCutProbability(0.7);
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < FILES; i++)
+			paths.add(simulator.shoot(SIZE));
+		for (String path : paths)
+			card.assertDownloaded(path);
+		simulator.setCutProbability(0);
+		SimulatedCard.stop(watcher);
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class SortStageTest {
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	@Test
+	public void theIndexFollowsSortedFiles() throws Exception {
+		File sorted = new File(card.getFolder(), "sorted");
+		ProcessingPipeline pipeline = new ProcessingPipeline().addStage(
+				"sort", new SortStage(sorted, false), 1);
+		TransWatcher watcher = card.newWatcher();
+		watcher.setProcessingPipeline(pipeline);
+		watcher.start();
+		try {
+			card.awaitListening(watcher);
+			String path = card.getCard().shoot(50000);
+			File local = card.assertDownloaded(path);
+			assertFalse(new File(card.getFolder(), local.getName()).exists());
+			SimulatedCard.stop(watcher);
+
+			ContentIndex index = ContentIndex.open(new File(card.getFolder(),
+					".transwatcher-index"));
+			String hash = ContentIndex.toHex(ContentIndex.hashOf(local));
+			assertEquals(local.getAbsoluteFile(), index.find(hash)
+					.getAbsoluteFile());
+			index.close();
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+}
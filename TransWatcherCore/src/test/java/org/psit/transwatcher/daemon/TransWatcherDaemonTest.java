@@ -0,0 +1,108 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.psit.transwatcher.CardPorts;
+import org.psit.transwatcher.TransWatcher;
+import org.psit.transwatcher.simulator.SimulatedCard;
+
+public class TransWatcherDaemonTest {
+	@Rule
+	public final SimulatedCard card = new SimulatedCard();
+
+	private Properties settings(String dest) {
+		CardPorts ports = card.getPorts();
+		Properties config = new Properties();
+		config.setProperty("dest", dest);
+		config.setProperty("broadcast", "127.0.0.1");
+		config.setProperty("ports", ports.discoveryPort + "," + ports.replyPort
+				+ "," + ports.notificationPort + "," + ports.httpPort);
+		return config;
+	}
+
+	@Test
+	public void downloadsWithTheConfiguredPortsAndFolder() throws Exception {
+		File dest = new File(card.getFolder(), "images");
+		Properties config = settings(dest.getPath());
+		config.setProperty("engine", "nio");
+		config.setProperty("concurrency", "3");
+		TransWatcher watcher = TransWatcherDaemon.configure(config);
+		card.manage(watcher);
+		assertEquals(3, watcher.getDownloadConcurrency());
+
+		watcher.start();
+		card.awaitListening(watcher);
+		File local = card.assertDownloaded(card.getCard().shoot(300000));
+		assertEquals(dest.getAbsoluteFile(), local.getAbsoluteFile()
+				.getParentFile());
+	}
+
+	@Test
+	public void shippedSettingsAreValid() throws IOException {
+		Properties config = new Properties();
+		InputStream in = new FileInputStream("transwatcher.properties");
+		try {
+			config.load(in);
+		} finally {
+			in.close();
+		}
+		config.setProperty("dest", card.getFolder().getPath());
+		assertTrue(TransWatcherDaemon.configure(config) != null);
+	}
+
+	@Test
+	public void rejectsBadSettings() {
+		String dest = card.getFolder().getPath();
+		assertRejected(new Properties(), "dest is missing");
+		assertRejected(with(settings(dest), "ports", "1,2,3"), "ports");
+		assertRejected(with(settings(dest), "ports", "1,2,x,4"), "not a port");
+		assertRejected(with(settings(dest), "concurrency", "many"),
+				"concurrency");
+		assertRejected(with(settings(dest), "sort", "size"), "sort");
+		assertRejected(with(settings(dest), "messageLevel", "loud"), "LOUD");
+	}
+
+	private static Properties with(Properties config, String key, String value) {
+		config.setProperty(key, value);
+		return config;
+	}
+
+	private static void assertRejected(Properties config, String message) {
+		try {
+			TransWatcherDaemon.configure(config);
+			fail("accepted " + config);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+}
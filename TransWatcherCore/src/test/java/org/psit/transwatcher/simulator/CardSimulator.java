@@ -0,0 +1,726 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.psit.transwatcher.CardPorts;
+
+/**
+ * A pure Java stand-in for the Transcend Wifi SD card, speaking everything
+ * TransWatcher uses:
+ * <ul>
+ * <li>the UDP discovery reply carrying the "Transcend WiFiSD" banner</li>
+ * <li>the TCP notification stream announcing new images as >path\0</li>
+ * <li>the web server, used as liveness check, for /cgi-bin/wifi_download and
+ * the folder listing /cgi-bin/tslist</li>
+ * </ul>
+ * 
+ * Bandwidth, response latency, the round trip time of the link and the number
+ * of requests the card serves in parallel can be limited, and failures can be
+ * injected to exercise the reconnect and resume paths.
+ */
+public class CardSimulator {
+	public static final String BANNER = "Transcend WiFiSD";
+	public static final String DCIM_FOLDER = "/mnt/sd/DCIM/100IMAGE";
+
+	private volatile CardPorts ports;
+	private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+	private final Map<String, Long> shotTimes = new ConcurrentHashMap<String, Long>();
+	private final Set<Socket> notificationClients = new CopyOnWriteArraySet<Socket>();
+	private final Set<Socket> httpClients = new CopyOnWriteArraySet<Socket>();
+	private final AtomicInteger shotCounter = new AtomicInteger();
+	private final AtomicLong bytesServed = new AtomicLong();
+	private final AtomicInteger requestsServed = new AtomicInteger();
+	private final AtomicInteger connectionsCut = new AtomicInteger();
+	private final AtomicInteger connectionsAccepted = new AtomicInteger();
+	private final AtomicInteger rangeRequests = new AtomicInteger();
+	private final Random random = new Random();
+
+	private volatile long bandwidth;
+	private volatile long latency;
+	private volatile long roundTripTime;
+	private volatile boolean keepAlive = true;
+	private volatile int overloadThreshold;
+	private final AtomicInteger responding = new AtomicInteger();
+	private volatile double cutProbability;
+	private volatile double discoveryLossProbability;
+	private volatile boolean ignoreRange;
+	private volatile boolean online = true;
+	private InetAddress address;
+	private Semaphore requestSlots = new Semaphore(Integer.MAX_VALUE);
+	private final Throttle throttle = new Throttle();
+
+	private DatagramSocket discoverySocket;
+	private ServerSocket notificationServer;
+	private ServerSocket httpServer;
+	private volatile boolean running;
+
+	/**
+	 * @param ports
+	 *            a port of 0 is bound to a free one by start(), see
+	 *            getPorts(). With a reply port of 0 the card answers to the
+	 *            port a discovery came from, the one a watcher with reply
+	 *            port 0 listens on.
+	 */
+	public CardSimulator(CardPorts ports) {
+		this.ports = ports;
+	}
+
+	/**
+	 * Limits the bytes per second the card sends, shared by all downloads like
+	 * the card's radio link. 0 means unlimited.
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the time in ms the card's web server takes before answering a
+	 * request.
+	 */
+	public void setLatency(long latencyMs) {
+		this.latency = latencyMs;
+	}
+
+	/**
+	 * Sets the time in ms a request takes to the card and its answer back.
+	 * Requests that were pipelined, i.e. sent before the previous response
+	 * arrived, already wait at the card and don't pay it.
+	 */
+	public void setRoundTripTime(long roundTripTimeMs) {
+		this.roundTripTime = roundTripTimeMs;
+	}
+
+	/**
+	 * Turns keep-alive off, so the card closes the connection after each
+	 * response like an HTTP/1.0 server. Requests pipelined behind it are lost.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Makes the card slower the more requests it answers at once beyond the
+	 * threshold, like a card CPU that spends its time switching: with n
+	 * responses running, the bandwidth shrinks to threshold / n of the set
+	 * one. 0 turns it off, the default. Needs a bandwidth.
+	 */
+	public void setOverloadThreshold(int overloadThreshold) {
+		this.overloadThreshold = overloadThreshold;
+	}
+
+	/**
+	 * Sets the number of requests the card's web server processes at the same
+	 * time. Further requests wait.
+	 */
+	public void setMaxParallelRequests(int maxParallelRequests) {
+		this.requestSlots = new Semaphore(maxParallelRequests, true);
+	}
+
+	/**
+	 * Sets the probability that a download connection is cut at a random
+	 * point of the transfer, after at least one byte.
+	 */
+	public void setCutProbability(double cutProbability) {
+		this.cutProbability = cutProbability;
+	}
+
+	/**
+	 * Sets the probability that a discovery packet stays unanswered.
+	 */
+	public void setDiscoveryLossProbability(double discoveryLossProbability) {
+		this.discoveryLossProbability = discoveryLossProbability;
+	}
+
+	/**
+	 * Lets the web server ignore Range headers and always send the full file,
+	 * like some firmware versions do.
+	 */
+	public void setIgnoreRange(boolean ignoreRange) {
+		this.ignoreRange = ignoreRange;
+	}
+
+	/**
+	 * Simulates the card going out of range (false) and coming back (true).
+	 * Going offline drops all open connections; while offline discovery is
+	 * not answered and connections are refused.
+	 */
+	public void setOnline(boolean online) {
+		this.online = online;
+		if (!online) {
+			closeAll(notificationClients);
+			closeAll(httpClients);
+		}
+	}
+
+	/**
+	 * Binds the simulated card to one local address instead of all, so
+	 * several cards can run on the same ports, e.g. on 127.0.0.2 and
+	 * 127.0.0.3. Must be set before start().
+	 */
+	public void setAddress(String address) throws IOException {
+		this.address = InetAddress.getByName(address);
+	}
+
+	public void start() throws IOException {
+		running = true;
+		discoverySocket = new DatagramSocket(new InetSocketAddress(address,
+				ports.discoveryPort));
+		notificationServer = new ServerSocket(ports.notificationPort, 50,
+				address);
+		httpServer = new ServerSocket(ports.httpPort, 50, address);
+		ports = new CardPorts(discoverySocket.getLocalPort(), ports.replyPort,
+				notificationServer.getLocalPort(), httpServer.getLocalPort());
+
+		startDaemon(new Runnable() {
+			@Override
+			public void run() {
+				answerDiscovery();
+			}
+		}, "SimulatorDiscovery");
+		startDaemon(new Runnable() {
+			@Override
+			public void run() {
+				acceptNotificationClients();
+			}
+		}, "SimulatorNotification");
+		startDaemon(new Runnable() {
+			@Override
+			public void run() {
+				acceptHttpClients();
+			}
+		}, "SimulatorHttp");
+	}
+
+	public void stop() {
+		running = false;
+		// also after a start() that failed to bind
+		if (discoverySocket != null)
+			discoverySocket.close();
+		closeQuietly(notificationServer);
+		closeQuietly(httpServer);
+		closeAll(notificationClients);
+		closeAll(httpClients);
+	}
+
+	// ----------------- shooting
+
+	/**
+	 * Stores an image of the given size with random content on the card and
+	 * announces it to all notification clients.
+	 * 
+	 * @return the path of the image on the card
+	 */
+	public String shoot(int size) {
+		byte[] content = new byte[size];
+		random.nextBytes(content);
+		String path = String.format(Locale.ENGLISH, "%s/IMG_%04d.JPG",
+				DCIM_FOLDER, shotCounter.incrementAndGet());
+		shoot(path, content);
+		return path;
+	}
+
+	/**
+	 * Stores the content on the card and announces it to all notification
+	 * clients.
+	 */
+	public void shoot(String path, byte[] content) {
+		files.put(path, content);
+		shotTimes.put(path, System.nanoTime());
+		byte[] frame;
+		try {
+			frame = (">" + path + "\0").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Socket client : notificationClients) {
+			try {
+				OutputStream out = client.getOutputStream();
+				synchronized (client) {
+					out.write(frame);
+					out.flush();
+				}
+			} catch (IOException e) {
+				notificationClients.remove(client);
+				closeQuietly(client);
+			}
+		}
+	}
+
+	/**
+	 * Stores an image of the given size with random content on the card
+	 * without announcing it, as if it was shot while nobody was listening.
+	 * 
+	 * @return the path of the image on the card
+	 */
+	public String store(int size) {
+		byte[] content = new byte[size];
+		random.nextBytes(content);
+		String path = String.format(Locale.ENGLISH, "%s/IMG_%04d.JPG",
+				DCIM_FOLDER, shotCounter.incrementAndGet());
+		store(path, content);
+		return path;
+	}
+
+	/**
+	 * Stores an image on the card without announcing it, as if it was shot
+	 * while nobody was listening.
+	 */
+	public void store(String path, byte[] content) {
+		files.put(path, content);
+	}
+
+	public byte[] getContent(String path) {
+		return files.get(path);
+	}
+
+	/**
+	 * @return the paths of all images on the card
+	 */
+	public Set<String> getPaths() {
+		return new TreeSet<String>(files.keySet());
+	}
+
+	/**
+	 * @return System.nanoTime() of the moment the image was announced
+	 */
+	public Long getShotTime(String path) {
+		return shotTimes.get(path);
+	}
+
+	/**
+	 * @return the ports the card listens on, once started
+	 */
+	public CardPorts getPorts() {
+		return ports;
+	}
+
+	public int getNotificationClientCount() {
+		return notificationClients.size();
+	}
+
+	public long getBytesServed() {
+		return bytesServed.get();
+	}
+
+	public int getRequestsServed() {
+		return requestsServed.get();
+	}
+
+	public int getConnectionsCut() {
+		return connectionsCut.get();
+	}
+
+	/**
+	 * @return the number of connections the web server accepted, including
+	 *         the ones of liveness checks
+	 */
+	public int getConnectionsAccepted() {
+		return connectionsAccepted.get();
+	}
+
+	/**
+	 * @return the number of downloads answered with 206 from a Range header
+	 */
+	public int getRangeRequests() {
+		return rangeRequests.get();
+	}
+	// ----------------- discovery
+
+	private void answerDiscovery() {
+		byte[] receiveData = new byte[256];
+		while (running) {
+			try {
+				DatagramPacket packet = new DatagramPacket(receiveData,
+						receiveData.length);
+				discoverySocket.receive(packet);
+				if (!online || random.nextDouble() < discoveryLossProbability)
+					continue;
+				byte[] reply = (BANNER + " simulator").getBytes("UTF-8");
+				int replyPort = ports.replyPort != 0 ? ports.replyPort
+						: packet.getPort();
+				discoverySocket.send(new DatagramPacket(reply, reply.length,
+						packet.getAddress(), replyPort));
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	// ----------------- notification
+
+	private void acceptNotificationClients() {
+		while (running) {
+			try {
+				Socket client = notificationServer.accept();
+				if (online)
+					notificationClients.add(client);
+				else
+					closeQuietly(client);
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	// ----------------- web server
+
+	private void acceptHttpClients() {
+		while (running) {
+			try {
+				final Socket client = httpServer.accept();
+				if (!online) {
+					closeQuietly(client);
+					continue;
+				}
+				httpClients.add(client);
+				connectionsAccepted.incrementAndGet();
+				startDaemon(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} catch (IOException e) {
+							// client went away
+						} finally {
+							httpClients.remove(client);
+							closeQuietly(client);
+						}
+					}
+				}, "SimulatorHttpConnection");
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Serves HTTP/1.1 requests on one keep-alive connection until the client
+	 * closes it or asks to close it.
+	 */
+	private void serve(Socket client) throws IOException {
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		OutputStream out = client.getOutputStream();
+		while (true) {
+			// the client only sends the next request after the last response
+			// came through
+			if (in.available() == 0)
+				sleep(roundTripTime);
+			Request request = Request.read(in);
+			if (request == null)
+				return;
+			boolean close = "close".equalsIgnoreCase(request.headers
+					.get("connection"));
+			boolean keepOpen;
+			try {
+				requestSlots.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			responding.incrementAndGet();
+			try {
+				sleep(latency);
+				keepOpen = respond(request, out);
+			} finally {
+				responding.decrementAndGet();
+				requestSlots.release();
+			}
+			requestsServed.incrementAndGet();
+			if (close || !keepOpen || !keepAlive)
+				return;
+		}
+	}
+
+	/**
+	 * @return false if the connection has to be closed after the response
+	 */
+	private boolean respond(Request request, OutputStream out)
+			throws IOException {
+		if ("/cgi-bin/tslist".equals(request.path)) {
+			byte[] listing = list(request.param("PATH")).getBytes("UTF-8");
+			writeHead(out, "200 OK", listing.length, null);
+			out.write(listing);
+			out.flush();
+			return true;
+		}
+		if (!"/cgi-bin/wifi_download".equals(request.path)) {
+			writeHead(out, "404 Not Found", 0, null);
+			return true;
+		}
+
+		byte[] content = files.get(request.param("fd") + request.param("fn"));
+		if (content == null) {
+			writeHead(out, "404 Not Found", 0, null);
+			return true;
+		}
+
+		int start = 0;
+		String range = request.headers.get("range");
+		if (range != null && !ignoreRange && range.startsWith("bytes=")) {
+			int dash = range.indexOf('-');
+			try {
+				start = Integer.parseInt(range.substring(6, dash).trim());
+			} catch (NumberFormatException e) {
+				start = 0;
+			}
+		}
+		int length = content.length - start;
+		if (start > 0) {
+			rangeRequests.incrementAndGet();
+			writeHead(out, "206 Partial Content", length, "Content-Range: bytes "
+					+ start + "-" + (content.length - 1) + "/" + content.length
+					+ "\r\n");
+		} else {
+			writeHead(out, "200 OK", length, null);
+		}
+
+		// cut after at least one byte, a cut without progress is only
+		// retried after the next connect
+		int cutAt = length > 1 && random.nextDouble() < cutProbability ? 1
+				+ random.nextInt(length - 1) : -1;
+		int position = start;
+		while (position < content.length) {
+			int chunk = Math.min(8192, content.length - position);
+			if (cutAt >= 0 && position - start + chunk > cutAt) {
+				out.write(content, position, cutAt - (position - start));
+				out.flush();
+				connectionsCut.incrementAndGet();
+				return false;
+			}
+			throttle.acquire(chunk, effectiveBandwidth());
+			out.write(content, position, chunk);
+			bytesServed.addAndGet(chunk);
+			position += chunk;
+		}
+		out.flush();
+		return true;
+	}
+
+	private long effectiveBandwidth() {
+		int threshold = overloadThreshold;
+		int running = responding.get();
+		if (threshold <= 0 || running <= threshold)
+			return bandwidth;
+		return bandwidth * threshold / running;
+	}
+
+	/**
+	 * Lists the files and folders directly inside the folder in the format of
+	 * the card's tslist CGI.
+	 */
+	private String list(String folder) {
+		String prefix = folder.endsWith("/") ? folder : folder + "/";
+		Map<String, Long> children = new TreeMap<String, Long>();
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			if (!file.getKey().startsWith(prefix))
+				continue;
+			String rest = file.getKey().substring(prefix.length());
+			int slash = rest.indexOf('/');
+			if (slash < 0)
+				children.put(rest, (long) file.getValue().length);
+			else
+				children.put(rest.substring(0, slash), -1L);
+		}
+		StringBuilder listing = new StringBuilder();
+		int index = 0;
+		for (Map.Entry<String, Long> child : children.entrySet()) {
+			boolean directory = child.getValue() < 0;
+			listing.append("FileName").append(index).append('=')
+					.append(child.getKey());
+			listing.append("&FileType").append(index).append('=')
+					.append(directory ? "Directory" : "File");
+			listing.append("&FileSize").append(index).append('=')
+					.append(directory ? 0 : child.getValue()).append("\n");
+			index++;
+		}
+		return listing.toString();
+	}
+
+	private void writeHead(OutputStream out, String status, int contentLength,
+			String extraHeaders) throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append("\r\n");
+		head.append("Content-Type: image/jpeg\r\n");
+		head.append("Content-Length: ").append(contentLength).append("\r\n");
+		if (!keepAlive)
+			head.append("Connection: close\r\n");
+		if (!ignoreRange)
+			head.append("Accept-Ranges: bytes\r\n");
+		if (extraHeaders != null)
+			head.append(extraHeaders);
+		head.append("\r\n");
+		out.write(head.toString().getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * A parsed HTTP request head.
+	 */
+	static class Request {
+		String method;
+		String path;
+		Map<String, String> params = new HashMap<String, String>();
+		Map<String, String> headers = new HashMap<String, String>();
+
+		String param(String name) {
+			String value = params.get(name);
+			return value != null ? value : "";
+		}
+
+		/**
+		 * @return the request or null if the connection was closed
+		 */
+		static Request read(InputStream in) throws IOException {
+			String line = readLine(in);
+			while (line != null && line.length() == 0)
+				line = readLine(in);
+			if (line == null)
+				return null;
+
+			Request request = new Request();
+			String[] parts = line.split(" ");
+			if (parts.length < 2)
+				throw new IOException("Malformed request line: " + line);
+			request.method = parts[0];
+			String target = parts[1];
+			int query = target.indexOf('?');
+			request.path = query < 0 ? target : target.substring(0, query);
+			if (query >= 0) {
+				for (String param : target.substring(query + 1).split("&")) {
+					int eq = param.indexOf('=');
+					if (eq > 0)
+						request.params.put(param.substring(0, eq), URLDecoder
+								.decode(param.substring(eq + 1), "UTF-8"));
+				}
+			}
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon > 0)
+					request.headers.put(line.substring(0, colon).trim()
+							.toLowerCase(Locale.ENGLISH), line.substring(
+							colon + 1).trim());
+			}
+			return request;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0)
+					return line.size() == 0 ? null : line.toString("ISO-8859-1");
+				if (c != '\r')
+					line.write(c);
+			}
+			return line.toString("ISO-8859-1");
+		}
+	}
+
+	/**
+	 * A token bucket shared by all connections, limiting the overall rate.
+	 */
+	static class Throttle {
+		private long available;
+		private long lastRefill = System.nanoTime();
+
+		void acquire(int bytes, long bytesPerSecond) {
+			if (bytesPerSecond <= 0)
+				return;
+			long waitNanos;
+			synchronized (this) {
+				long now = System.nanoTime();
+				available = Math.min(bytesPerSecond / 10, available
+						+ (now - lastRefill) * bytesPerSecond / 1000000000L);
+				lastRefill = now;
+				available -= bytes;
+				waitNanos = available < 0 ? -available * 1000000000L
+						/ bytesPerSecond : 0;
+			}
+			if (waitNanos > 0)
+				sleep(waitNanos / 1000000L);
+		}
+	}
+
+	// ----------------- helpers
+
+	private static void startDaemon(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void closeAll(Set<Socket> sockets) {
+		for (Socket socket : sockets) {
+			sockets.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException logOrIgnore) {}
+	}
+
+	private static void closeQuietly(ServerSocket socket) {
+		try {
+			if (socket != null)
+				socket.close();
+		} catch (IOException logOrIgnore) {}
+	}
+}
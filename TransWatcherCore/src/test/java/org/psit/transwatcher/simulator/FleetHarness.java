@@ -0,0 +1,217 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.psit.transwatcher.CardFleet;
+import org.psit.transwatcher.CardFleet.Throughput;
+import org.psit.transwatcher.CardPorts;
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.State;
+
+/**
+ * Drives a CardFleet against several CardSimulators on 127.0.0.2,
+ * 127.0.0.3, ... The first card shoots a burst while the others shoot a few
+ * images at the same time, and the shot-to-disk latency of each card shows
+ * whether the burst holds the others up, e.g.
+ * 
+ * <pre>
+ * java org.psit.transwatcher.simulator.FleetHarness --cards=3 --burst=30 --shots=5 --workers=2
+ * </pre>
+ * 
+ * Options (defaults in brackets): cards [3], burst of the first card [30],
+ * shots of the other cards [5], size of an image in bytes [2000000],
+ * interval between shots of the other cards in ms [200], bandwidth of each
+ * card in bytes/s, 0 = unlimited [5000000], workers of the fleet [2],
+ * concurrency per card [1], httpPort of the simulated cards [8080], dest
+ * folder [temp folder], timeout in s [120].
+ * 
+ * The exit code is 0 if all images arrived intact.
+ */
+public class FleetHarness implements Listener {
+	private final Map<String, Long> downloadTimes = new ConcurrentHashMap<String, Long>();
+	private final CountDownLatch listening;
+	private volatile CountDownLatch downloaded;
+
+	private FleetHarness(int cards) {
+		listening = new CountDownLatch(cards);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = LoadHarness.parseOptions(args);
+		int cardCount = LoadHarness.intOption(options, "cards", 3);
+		int burst = LoadHarness.intOption(options, "burst", 30);
+		int shots = LoadHarness.intOption(options, "shots", 5);
+		int size = LoadHarness.intOption(options, "size", 2000000);
+		int interval = LoadHarness.intOption(options, "interval", 200);
+		int timeout = LoadHarness.intOption(options, "timeout", 120);
+		int httpPort = LoadHarness.intOption(options, "httpPort", 8080);
+
+		CardPorts ports = new CardPorts(CardPorts.TRANSCEND.discoveryPort,
+				CardPorts.TRANSCEND.replyPort,
+				CardPorts.TRANSCEND.notificationPort, httpPort);
+		File dest = new File(LoadHarness.option(options, "dest", new File(
+				System.getProperty("java.io.tmpdir"), "transwatcher-fleet-"
+						+ System.currentTimeMillis()).getPath()));
+		dest.mkdirs();
+
+		FleetHarness harness = new FleetHarness(cardCount);
+		CardFleet fleet = new CardFleet(dest.getPath());
+		fleet.setCardPorts(ports);
+		fleet.setBroadcastAddress("127.255.255.255");
+		fleet.setDownloadWorkers(LoadHarness.intOption(options, "workers", 2));
+		fleet.setDownloadConcurrency(LoadHarness.intOption(options,
+				"concurrency", 1));
+
+		List<CardSimulator> cards = new ArrayList<CardSimulator>();
+		boolean ok = false;
+		try {
+			for (int i = 0; i < cardCount; i++) {
+				CardSimulator card = new CardSimulator(ports);
+				String address = "127.0.0." + (i + 2);
+				card.setAddress(address);
+				card.setBandwidth(LoadHarness.intOption(options, "bandwidth",
+						5000000));
+				card.setLatency(20);
+				card.start();
+				cards.add(card);
+				fleet.addCardAddress(address);
+			}
+			fleet.addListener(harness);
+			fleet.start();
+
+			if (!harness.listening.await(30, TimeUnit.SECONDS)) {
+				System.out.println("Fleet did not connect to all simulators.");
+				return;
+			}
+			ok = harness.run(fleet, cards, burst, shots, size, interval,
+					timeout, dest);
+		} finally {
+			fleet.interrupt();
+			for (CardSimulator card : cards)
+				card.stop();
+			System.exit(ok ? 0 : 1);
+		}
+	}
+
+	private boolean run(CardFleet fleet, final List<CardSimulator> cards,
+			int burst, final int shots, final int size, final int interval,
+			int timeout, File dest) throws InterruptedException, IOException {
+		downloaded = new CountDownLatch(burst + shots * (cards.size() - 1));
+		final List<List<String>> paths = new ArrayList<List<String>>();
+		for (int i = 0; i < cards.size(); i++)
+			paths.add(Collections.synchronizedList(new ArrayList<String>()));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < burst; i++)
+			paths.get(0).add(cards.get(0).shoot(size));
+		List<Thread> shooters = new ArrayList<Thread>();
+		for (int i = 1; i < cards.size(); i++) {
+			final int card = i;
+			Thread shooter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < shots; j++) {
+							paths.get(card).add(cards.get(card).shoot(size));
+							Thread.sleep(interval);
+						}
+					} catch (InterruptedException e) {
+						// stopped
+					}
+				}
+			});
+			shooter.start();
+			shooters.add(shooter);
+		}
+		for (Thread shooter : shooters)
+			shooter.join();
+		boolean complete = downloaded.await(timeout, TimeUnit.SECONDS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int corrupt = 0;
+		for (int i = 0; i < cards.size(); i++) {
+			CardSimulator card = cards.get(i);
+			File folder = new File(dest, "127.0.0." + (i + 2));
+			List<Long> latencies = new ArrayList<Long>();
+			for (String path : paths.get(i)) {
+				File file = new File(folder, new File(path).getName());
+				Long downloadTime = downloadTimes.get(file.getPath());
+				if (downloadTime == null)
+					continue;
+				latencies.add(downloadTime - card.getShotTime(path));
+				if (!Arrays.equals(card.getContent(path),
+						LoadHarness.readFile(file.getPath())))
+					corrupt++;
+			}
+			Collections.sort(latencies);
+			System.out.println(String.format(Locale.ENGLISH,
+					"card %d:      %d of %d downloaded, latency ms p50 %.0f, max %.0f",
+					i + 1, latencies.size(), paths.get(i).size(), latencies
+							.isEmpty() ? 0 : LoadHarness.percentile(latencies,
+							50) / 1e6, latencies.isEmpty() ? 0 : latencies
+							.get(latencies.size() - 1) / 1e6));
+		}
+		System.out.println(String.format(Locale.ENGLISH,
+				"corrupt:     %d%s", corrupt, complete ? "" : " (timeout)"));
+		System.out.println(String.format(Locale.ENGLISH,
+				"run time:    %.2f s", seconds));
+		for (Throughput throughput : fleet.getThroughput())
+			System.out.println("throughput:  " + throughput);
+		System.out.println("throughput:  " + fleet.getAggregateThroughput());
+		return complete && corrupt == 0;
+	}
+
+	// ----------------- Listener
+
+	@Override
+	public void ping(String msg) {}
+
+	@Override
+	public void exception(Exception ex) {}
+
+	@Override
+	public void state(State state) {
+		if (state == State.LISTENING)
+			listening.countDown();
+	}
+
+	@Override
+	public void thumbnail(String filePath, byte[] jpeg) {}
+
+	@Override
+	public void downloaded(String filePath) {
+		if (downloadTimes.put(filePath, System.nanoTime()) == null
+				&& downloaded != null)
+			downloaded.countDown();
+	}
+}
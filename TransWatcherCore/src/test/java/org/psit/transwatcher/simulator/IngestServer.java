@@ -0,0 +1,314 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.psit.transwatcher.simulator.CardSimulator.Request;
+import org.psit.transwatcher.simulator.CardSimulator.Throttle;
+
+/**
+ * A local stand-in for the ingest server a RelayUploader sends to. It takes
+ * multipart POSTs, chunked or with a Content-Length, and keeps the file of
+ * the part "file" by its file name. A request that breaks off before its
+ * end is counted as incomplete and not kept.
+ * 
+ * The bandwidth it reads with can be limited, and the first requests can
+ * be failed to exercise the retries.
+ */
+public class IngestServer {
+	private int port;
+	private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+	private final Set<Socket> clients = new CopyOnWriteArraySet<Socket>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger chunked = new AtomicInteger();
+	private final AtomicInteger incomplete = new AtomicInteger();
+	private final AtomicInteger failuresLeft = new AtomicInteger();
+	private final Throttle throttle = new Throttle();
+	private volatile long bandwidth;
+	private ServerSocket server;
+	private volatile boolean running;
+
+	/**
+	 * @param port
+	 *            0 binds a free one when started, see getPort()
+	 */
+	public IngestServer(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Limits the bytes per second the server reads, shared by all uploads.
+	 * 0 means unlimited.
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Answers the next requests with 500 after reading them.
+	 */
+	public void setFailures(int failures) {
+		failuresLeft.set(failures);
+	}
+
+	public void start() throws IOException {
+		running = true;
+		server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		port = server.getLocalPort();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptClients();
+			}
+		}, "IngestServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException logOrIgnore) {}
+		for (Socket client : clients)
+			closeQuietly(client);
+	}
+
+	/**
+	 * @return the content received for the file name or null
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public byte[] getFile(String name) {
+		return files.get(name);
+	}
+
+	public int getFileCount() {
+		return files.size();
+	}
+
+	public int getRequests() {
+		return requests.get();
+	}
+
+	public int getChunkedRequests() {
+		return chunked.get();
+	}
+
+	public int getIncompleteRequests() {
+		return incomplete.get();
+	}
+
+	private void acceptClients() {
+		while (running) {
+			try {
+				final Socket client = server.accept();
+				clients.add(client);
+				Thread connection = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} catch (IOException e) {
+							// client went away
+						} finally {
+							clients.remove(client);
+							closeQuietly(client);
+						}
+					}
+				}, "IngestConnection");
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		OutputStream out = client.getOutputStream();
+		while (true) {
+			Request request = Request.read(in);
+			if (request == null)
+				return;
+			requests.incrementAndGet();
+			byte[] body;
+			try {
+				if ("chunked".equalsIgnoreCase(request.headers
+						.get("transfer-encoding"))) {
+					chunked.incrementAndGet();
+					body = readChunked(in);
+				} else {
+					String length = request.headers.get("content-length");
+					body = readFully(in, length != null ? Integer
+							.parseInt(length) : 0);
+				}
+			} catch (IOException e) {
+				incomplete.incrementAndGet();
+				throw e;
+			}
+
+			String status = "200 OK";
+			if (!"POST".equals(request.method)) {
+				status = "405 Method Not Allowed";
+			} else if (failuresLeft.getAndDecrement() > 0) {
+				status = "500 Internal Server Error";
+			} else if (!store(request.headers.get("content-type"), body)) {
+				status = "400 Bad Request";
+			}
+			out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n")
+					.getBytes("ISO-8859-1"));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Keeps the part "file" of a multipart body.
+	 * 
+	 * @return false if there is none
+	 */
+	private boolean store(String contentType, byte[] body)
+			throws IOException {
+		int b = contentType != null ? contentType.indexOf("boundary=") : -1;
+		if (b < 0)
+			return false;
+		String boundary = contentType.substring(b + 9).split(";")[0].trim();
+		if (boundary.startsWith("\""))
+			boundary = boundary.substring(1, boundary.length() - 1);
+		byte[] delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+
+		// the first delimiter comes without the CRLF before it
+		byte[] data = new byte[body.length + 2];
+		data[0] = '\r';
+		data[1] = '\n';
+		System.arraycopy(body, 0, data, 2, body.length);
+		int part = indexOf(data, delimiter, 0);
+		while (part >= 0) {
+			int headersStart = part + delimiter.length;
+			int headersEnd = indexOf(data, "\r\n\r\n".getBytes("ISO-8859-1"),
+					headersStart);
+			if (headersEnd < 0)
+				return false;
+			String headers = new String(data, headersStart, headersEnd
+					- headersStart, "ISO-8859-1");
+			int contentStart = headersEnd + 4;
+			int next = indexOf(data, delimiter, contentStart);
+			if (next < 0)
+				return false;
+			int f = headers.indexOf("filename=\"");
+			if (headers.contains("name=\"file\"") && f >= 0) {
+				String name = headers.substring(f + 10, headers.indexOf('"',
+						f + 10));
+				byte[] content = new byte[next - contentStart];
+				System.arraycopy(data, contentStart, content, 0,
+						content.length);
+				files.put(name, content);
+				return true;
+			}
+			part = next;
+		}
+		return false;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		outer: for (int i = from; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++)
+				if (data[i + j] != pattern[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	private byte[] readChunked(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		while (true) {
+			String line = readLine(in);
+			int semicolon = line.indexOf(';');
+			int size;
+			try {
+				size = Integer.parseInt((semicolon >= 0 ? line.substring(0,
+						semicolon) : line).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed chunk size: " + line);
+			}
+			if (size == 0)
+				break;
+			body.write(readFully(in, size));
+			readLine(in);
+		}
+		// trailers
+		while (readLine(in).length() > 0)
+			;
+		return body.toByteArray();
+	}
+
+	private byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int chunk = Math.min(length - read, 8192);
+			throttle.acquire(chunk, bandwidth);
+			int n = in.read(data, read, chunk);
+			if (n < 0)
+				throw new EOFException("Request ended after " + read + " of "
+						+ length + " bytes");
+			read += n;
+		}
+		return data;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				throw new EOFException("Request ended in a chunk header");
+			if (c != '\r')
+				line.write(c);
+		}
+		return line.toString("ISO-8859-1");
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException logOrIgnore) {}
+	}
+}
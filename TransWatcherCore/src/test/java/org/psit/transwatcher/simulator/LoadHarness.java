@@ -0,0 +1,422 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.simulator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.psit.transwatcher.CardPorts;
+import org.psit.transwatcher.DownloadRule;
+import org.psit.transwatcher.ProcessingPipeline;
+import org.psit.transwatcher.RelayUploader;
+import org.psit.transwatcher.TransWatcher;
+import org.psit.transwatcher.TransWatcher.Engine;
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.State;
+
+/**
+ * Drives a TransWatcher against a CardSimulator on the local machine and
+ * reports shot-to-disk latency and throughput of the download engine. Run it
+ * on the same machine for comparable numbers, e.g.
+ * 
+ * <pre>
+ * java org.psit.transwatcher.simulator.LoadHarness --shots=30 --size=4000000 --bandwidth=2500000 --concurrency=2
+ * </pre>
+ * 
+ * The drain time of a burst fetched with pipelined requests compares to the
+ * sequential path like this:
+ * 
+ * <pre>
+ * java org.psit.transwatcher.simulator.LoadHarness --shots=30 --interval=0 --size=300000 --rtt=30 --engine=nio
+ * java org.psit.transwatcher.simulator.LoadHarness --shots=30 --interval=0 --size=300000 --rtt=30 --engine=nio --pipeline=8
+ * </pre>
+ * 
+ * The wait of the JPEG of RAW+JPEG shots behind the RAW files shows with
+ * e.g. --raw=20000000, compared to --rules=*.JPG=1,*.CR2=1 for the plain
+ * order.
+ * 
+ * With --process=500 each image passes a processing stage taking 500 ms
+ * before it counts as downloaded; the shot-to-disk latency in the watcher
+ * metrics stays that of the downloads alone.
+ * 
+ * With --relay=8090 the watcher uploads each image to an IngestServer on
+ * that port while downloading it, and the images it received are compared
+ * with the card's.
+ * 
+ * Options (defaults in brackets): shots [20], size of an image in bytes
+ * [2000000], raw size to shoot a RAW before each image, 0 = none [0], rules
+ * of the watcher, comma separated [defaults], interval between shots in ms
+ * [100], bandwidth of the card in
+ * bytes/s, 0 = unlimited [0], latency of the card's web server in ms [20],
+ * rtt of the link in ms [0], parallelRequests the card serves [4], overload
+ * threshold of the card [0], keepAlive of the card [true], cut probability of
+ * a download connection [0], ignoreRange [false], missed images stored on the
+ * card before the watcher connects, fetched by the catch-up sync [0],
+ * concurrency of the watcher [2], minConcurrency and maxConcurrency to tune
+ * it between [off], engine of the watcher, blocking or nio [blocking],
+ * pipeline depth of the watcher [1], burstWindow of the watcher in ms [150],
+ * process time of a processing stage in ms, 0 = none [0], processThreads of
+ * that stage [1], relay port of an ingest server, 0 = none [0],
+ * relayBandwidth of the ingest server in bytes/s, 0 = unlimited [0],
+ * relayFailures the ingest server answers with 500 first [0], httpPort of the simulated card [8080], dest folder [temp folder], timeout in
+ * s [120].
+ * 
+ * The exit code is 0 if all images arrived intact.
+ */
+public class LoadHarness implements Listener {
+	// the uploads may still run, retries included, after the downloads
+	private static final long RELAY_TIMEOUT_MS = 60000;
+
+	private final Map<String, Long> downloadTimes = new ConcurrentHashMap<String, Long>();
+	private final Map<String, String> downloadPaths = new ConcurrentHashMap<String, String>();
+	private volatile CountDownLatch listening = new CountDownLatch(1);
+	private volatile CountDownLatch downloaded;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args);
+		int shots = intOption(options, "shots", 20);
+		int size = intOption(options, "size", 2000000);
+		int interval = intOption(options, "interval", 100);
+		int timeout = intOption(options, "timeout", 120);
+		int missed = intOption(options, "missed", 0);
+		int raw = intOption(options, "raw", 0);
+		int httpPort = intOption(options, "httpPort", 8080);
+
+		CardPorts ports = new CardPorts(CardPorts.TRANSCEND.discoveryPort,
+				CardPorts.TRANSCEND.replyPort,
+				CardPorts.TRANSCEND.notificationPort, httpPort);
+		CardSimulator card = new CardSimulator(ports);
+		card.setBandwidth(intOption(options, "bandwidth", 0));
+		card.setLatency(intOption(options, "latency", 20));
+		card.setRoundTripTime(intOption(options, "rtt", 0));
+		card.setOverloadThreshold(intOption(options, "overload", 0));
+		card.setKeepAlive(Boolean.parseBoolean(option(options, "keepAlive",
+				"true")));
+		card.setMaxParallelRequests(intOption(options, "parallelRequests", 4));
+		card.setCutProbability(Double.parseDouble(option(options, "cut", "0")));
+		card.setIgnoreRange(Boolean.parseBoolean(option(options,
+				"ignoreRange", "false")));
+		card.start();
+		List<String> missedPaths = new ArrayList<String>();
+		for (int i = 0; i < missed; i++)
+			missedPaths.add(card.store(size));
+
+		File dest = new File(option(options, "dest", new File(
+				System.getProperty("java.io.tmpdir"), "transwatcher-load-"
+						+ System.currentTimeMillis()).getPath()));
+		dest.mkdirs();
+
+		LoadHarness harness = new LoadHarness();
+		TransWatcher watcher = new TransWatcher(dest.getPath() + "/");
+		watcher.setCardPorts(ports);
+		watcher.setBroadcastAddress("127.0.0.1");
+		watcher.setDownloadConcurrency(intOption(options, "concurrency", 2));
+		watcher.setConcurrencyBounds(intOption(options, "minConcurrency", 0),
+				intOption(options, "maxConcurrency", 0));
+		watcher.setPipelineDepth(intOption(options, "pipeline", 1));
+		watcher.setBurstWindow(intOption(options, "burstWindow", 150));
+		watcher.setCatchUpSync(missed > 0);
+		if (options.containsKey("rules")) {
+			List<DownloadRule> rules = new ArrayList<DownloadRule>();
+			for (String rule : options.get("rules").split(","))
+				rules.add(DownloadRule.parse(rule));
+			watcher.setDownloadRules(rules);
+		}
+		watcher.setEngine("nio".equals(options.get("engine")) ? Engine.NIO
+				: Engine.BLOCKING);
+		ProcessingPipeline pipeline = null;
+		final int processTime = intOption(options, "process", 0);
+		if (processTime > 0) {
+			pipeline = new ProcessingPipeline();
+			pipeline.addStage("process", new ProcessingPipeline.Stage() {
+				@Override
+				public File process(File file) throws IOException {
+					try {
+						Thread.sleep(processTime);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					return file;
+				}
+			}, intOption(options, "processThreads", 1));
+			watcher.setProcessingPipeline(pipeline);
+		}
+		IngestServer ingest = null;
+		RelayUploader relay = null;
+		int relayPort = intOption(options, "relay", 0);
+		if (relayPort > 0) {
+			ingest = new IngestServer(relayPort);
+			ingest.setBandwidth(intOption(options, "relayBandwidth", 0));
+			ingest.setFailures(intOption(options, "relayFailures", 0));
+			ingest.start();
+			relay = new RelayUploader("http://127.0.0.1:" + relayPort
+					+ "/upload");
+			watcher.setRelayUploader(relay);
+		}
+		watcher.addListener(harness);
+		watcher.start();
+
+		boolean ok = false;
+		try {
+			if (!harness.awaitListening(card, 30)) {
+				System.out.println("Watcher did not connect to the simulator.");
+				return;
+			}
+			ok = harness.run(card, missedPaths, shots, size, raw, interval,
+					timeout);
+			System.out.println("concurrency: " + watcher.getCurrentDownloadConcurrency());
+			System.out.println("watcher metrics:\n" + watcher.getMetrics().snapshot());
+			if (pipeline != null)
+				System.out.println("processing:\n" + pipeline);
+			if (ingest != null)
+				ok &= harness.checkRelayed(card, ingest, relay);
+		} finally {
+			watcher.interrupt();
+			card.stop();
+			if (ingest != null)
+				ingest.stop();
+			System.exit(ok ? 0 : 1);
+		}
+	}
+
+	private boolean awaitListening(CardSimulator card, int seconds)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + seconds * 1000L;
+		while (System.currentTimeMillis() < deadline) {
+			if (listening.await(100, TimeUnit.MILLISECONDS)
+					&& card.getNotificationClientCount() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	private boolean run(CardSimulator card, List<String> missedPaths,
+			int shots, int size, int raw, int interval, int timeout)
+			throws InterruptedException, IOException {
+		downloaded = new CountDownLatch(shots + missedPaths.size());
+		for (String path : missedPaths) {
+			if (downloadTimes.containsKey(new File(path).getName()))
+				downloaded.countDown();
+		}
+		List<String> paths = new ArrayList<String>();
+		long start = System.nanoTime();
+		Random random = new Random();
+		for (int i = 0; i < shots; i++) {
+			if (raw > 0) {
+				// RAW+JPEG, the RAW announced first
+				String name = String.format(Locale.ENGLISH, "%s/DSC_%04d",
+						CardSimulator.DCIM_FOLDER, i + 1);
+				byte[] content = new byte[raw];
+				random.nextBytes(content);
+				card.shoot(name + ".CR2", content);
+				content = new byte[size];
+				random.nextBytes(content);
+				card.shoot(name + ".JPG", content);
+				paths.add(name + ".JPG");
+			} else {
+				paths.add(card.shoot(size));
+			}
+			if (interval > 0)
+				Thread.sleep(interval);
+		}
+		boolean complete = downloaded.await(timeout, TimeUnit.SECONDS);
+		long end = System.nanoTime();
+
+		List<Long> latencies = new ArrayList<Long>();
+		long lastDownload = start;
+		int corrupt = 0;
+		for (String path : paths) {
+			String name = new File(path).getName();
+			Long downloadTime = downloadTimes.get(name);
+			if (downloadTime == null)
+				continue;
+			latencies.add(downloadTime - card.getShotTime(path));
+			lastDownload = Math.max(lastDownload, downloadTime);
+			if (!Arrays.equals(card.getContent(path),
+					readFile(downloadPaths.get(name))))
+				corrupt++;
+		}
+		Collections.sort(latencies);
+
+		int missedDownloaded = 0;
+		for (String path : missedPaths) {
+			String name = new File(path).getName();
+			if (downloadTimes.containsKey(name)) {
+				missedDownloaded++;
+				if (!Arrays.equals(card.getContent(path),
+						readFile(downloadPaths.get(name))))
+					corrupt++;
+			}
+		}
+
+		double seconds = (lastDownload - start) / 1e9;
+		System.out.println(String.format(Locale.ENGLISH,
+				"images:      %d of %d downloaded, %d corrupt%s", latencies
+						.size(), shots, corrupt, complete ? "" : " (timeout)"));
+		if (!missedPaths.isEmpty())
+			System.out.println(String.format(Locale.ENGLISH,
+					"caught up:   %d of %d missed images", missedDownloaded,
+					missedPaths.size()));
+		System.out.println(String.format(Locale.ENGLISH,
+				"drain time:  %.2f s (run %.2f s)", seconds, (end - start) / 1e9));
+		System.out.println(String.format(Locale.ENGLISH,
+				"throughput:  %.2f MB/s", latencies.size() * (double) size
+						/ seconds / 1e6));
+		if (!latencies.isEmpty()) {
+			System.out.println(String.format(Locale.ENGLISH,
+					"shot-to-disk latency ms: min %.0f, p50 %.0f, p95 %.0f, max %.0f",
+					latencies.get(0) / 1e6, percentile(latencies, 50) / 1e6,
+					percentile(latencies, 95) / 1e6,
+					latencies.get(latencies.size() - 1) / 1e6));
+		}
+		System.out.println(String.format(Locale.ENGLISH,
+				"card:        %d requests, %d connections cut, %d bytes sent",
+				card.getRequestsServed(), card.getConnectionsCut(),
+				card.getBytesServed()));
+		return complete && corrupt == 0;
+	}
+
+	/**
+	 * Waits for the uploads, which may still run when the downloads were
+	 * reported.
+	 * 
+	 * @return true if the ingest server received all downloaded images
+	 *         intact
+	 */
+	private boolean checkRelayed(CardSimulator card, IngestServer ingest,
+			RelayUploader relay) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + RELAY_TIMEOUT_MS;
+		int intact;
+		while (true) {
+			intact = 0;
+			for (String path : card.getPaths()) {
+				String name = new File(path).getName();
+				if (downloadTimes.containsKey(name)
+						&& Arrays.equals(card.getContent(path), ingest
+								.getFile(name)))
+					intact++;
+			}
+			if (intact == downloadTimes.size()
+					|| System.currentTimeMillis() > deadline)
+				break;
+			Thread.sleep(100);
+		}
+		System.out.println(String.format(Locale.ENGLISH,
+				"relay:       %d of %d intact, %d requests (%d chunked, %d incomplete), %s",
+				intact, downloadTimes.size(), ingest.getRequests(), ingest
+						.getChunkedRequests(), ingest.getIncompleteRequests(),
+				relay));
+		return intact == downloadTimes.size();
+	}
+
+	static long percentile(List<Long> sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+
+	public static byte[] readFile(String path) throws IOException {
+		File file = new File(path);
+		byte[] content = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < content.length) {
+				int length = in.read(content, read, content.length - read);
+				if (length < 0)
+					break;
+				read += length;
+			}
+		} finally {
+			in.close();
+		}
+		return content;
+	}
+
+	// ----------------- options
+
+	static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--"))
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				options.put(arg.substring(2), "true");
+			else
+				options.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		return options;
+	}
+
+	static String option(Map<String, String> options, String name,
+			String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	static int intOption(Map<String, String> options, String name,
+			int defaultValue) {
+		return Integer.parseInt(option(options, name,
+				String.valueOf(defaultValue)));
+	}
+
+	// ----------------- Listener
+
+	@Override
+	public void ping(String msg) {}
+
+	@Override
+	public void exception(Exception ex) {}
+
+	@Override
+	public void state(State state) {
+		if (state == State.LISTENING)
+			listening.countDown();
+	}
+
+	@Override
+	public void thumbnail(String filePath, byte[] jpeg) {}
+
+	@Override
+	public void downloaded(String filePath) {
+		String name = new File(filePath).getName();
+		if (downloadTimes.put(name, System.nanoTime()) == null) {
+			downloadPaths.put(name, filePath);
+			// only the images are waited for, not the RAW files
+			if (downloaded != null && !name.endsWith(".CR2"))
+				downloaded.countDown();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * This file is part of TransWatcher.
+ *
+ * TransWatcher is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransWatcher is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransWatcher.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Peter Steiger <peter.steiger74@gmail.com>
+ * @since May 2nd, 2014
+ */
+
+package org.psit.transwatcher.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.rules.ExternalResource;
+import org.psit.transwatcher.CardPorts;
+import org.psit.transwatcher.TransWatcher;
+import org.psit.transwatcher.TransWatcher.Listener;
+import org.psit.transwatcher.TransWatcher.State;
+
+/**
+ * A CardSimulator on free local ports for a test, and the watchers talking to
+ * it. The card, the watchers and their destination folders are cleaned up
+ * after the test:
+ * 
+ * <pre>
+ * &#064;Rule
+ * public final SimulatedCard card = new SimulatedCard();
+ * 
+ * TransWatcher watcher = card.newWatcher();
+ * watcher.start();
+ * card.awaitListening(watcher);
+ * String path = card.getCard().shoot(100000);
+ * card.assertDownloaded(path);
+ * </pre>
+ */
+public class SimulatedCard extends ExternalResource {
+	public static final long TIMEOUT_MS = 20000;
+
+	private CardPorts ports;
+	private CardSimulator card;
+	private File folder;
+	private final List<TransWatcher> watchers = new ArrayList<TransWatcher>();
+	private final Recorder recorder = new Recorder();
+
+	/**
+	 * Remembers what the watchers told their listeners.
+	 */
+	public static class Recorder implements Listener {
+		private final BlockingQueue<String> downloaded = new LinkedBlockingQueue<String>();
+		private final Map<String, String> paths = new ConcurrentHashMap<String, String>();
+		private final Set<String> deliveringThreads = new CopyOnWriteArraySet<String>();
+		private final List<Exception> exceptions = new ArrayList<Exception>();
+
+		@Override
+		public void ping(String msg) {}
+
+		@Override
+		public synchronized void exception(Exception ex) {
+			exceptions.add(ex);
+		}
+
+		@Override
+		public void state(State state) {}
+
+		@Override
+		public void thumbnail(String filePath, byte[] jpeg) {}
+
+		@Override
+		public void downloaded(String filePath) {
+			deliveringThreads.add(Thread.currentThread().getName());
+			paths.put(new File(filePath).getName(), filePath);
+			downloaded.add(filePath);
+		}
+
+		/**
+		 * @return the local path the image with the given name was stored
+		 *         in, or null
+		 */
+		public String getPath(String name) {
+			return paths.get(name);
+		}
+
+		/**
+		 * @return the next file reported as downloaded or null if none came
+		 *         in time
+		 */
+		public String nextDownloaded(long timeoutMs)
+				throws InterruptedException {
+			return downloaded.poll(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @return the names of the threads downloaded() was called on
+		 */
+		public Set<String> getDeliveringThreads() {
+			return deliveringThreads;
+		}
+
+		public synchronized List<Exception> getExceptions() {
+			return new ArrayList<Exception>(exceptions);
+		}
+	}
+
+	@Override
+	protected void before() throws IOException {
+		// bound to free ports by the card itself, which can't lose them to
+		// another process between looking them up and binding them
+		card = new CardSimulator(new CardPorts(0, 0, 0, 0));
+		card.start();
+		ports = card.getPorts();
+		folder = File.createTempFile("transwatcher-test", "");
+		folder.delete();
+		folder.mkdirs();
+	}
+
+	@Override
+	protected void after() {
+		for (TransWatcher watcher : watchers)
+			stop(watcher);
+		card.stop();
+		delete(folder);
+	}
+
+	public CardSimulator getCard() {
+		return card;
+	}
+
+	public CardPorts getPorts() {
+		return ports;
+	}
+
+	/**
+	 * @return the folder the watchers store the images in
+	 */
+	public File getFolder() {
+		return folder;
+	}
+
+	public Recorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * @return a watcher that finds the simulated card and stores into the
+	 *         folder, not started yet
+	 */
+	public TransWatcher newWatcher() {
+		return newWatcher(folder);
+	}
+
+	/**
+	 * @return a watcher that finds the simulated card and stores into the
+	 *         given folder, not started yet
+	 */
+	public TransWatcher newWatcher(File folder) {
+		folder.mkdirs();
+		TransWatcher watcher = new TransWatcher(folder.getPath()
+				+ File.separator);
+		watcher.setCardPorts(ports);
+		watcher.setBroadcastAddress("127.0.0.1");
+		manage(watcher);
+		return watcher;
+	}
+
+	/**
+	 * Records the events of a watcher made elsewhere and stops it after the
+	 * test.
+	 */
+	public void manage(TransWatcher watcher) {
+		watcher.addListener(recorder);
+		watchers.add(watcher);
+	}
+
+	/**
+	 * Waits until a watcher holds the notification connection to the card.
+	 */
+	public void awaitListening(TransWatcher watcher)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (watcher.getWatcherState() != State.LISTENING
+				|| card.getNotificationClientCount() == 0) {
+			if (System.currentTimeMillis() > deadline)
+				throw new AssertionError("Watcher did not connect to the card");
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * Waits until the image is reported as downloaded and compares the local
+	 * file with the one on the card.
+	 * 
+	 * @return the local file
+	 */
+	public File assertDownloaded(String path) throws InterruptedException,
+			IOException {
+		String name = new File(path).getName();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (recorder.getPath(name) == null) {
+			if (System.currentTimeMillis() > deadline)
+				throw new AssertionError(name + " was not downloaded");
+			Thread.sleep(20);
+		}
+		File local = new File(recorder.getPath(name));
+		if (!Arrays.equals(card.getContent(path), LoadHarness.readFile(local
+				.getPath())))
+			throw new AssertionError(local + " differs from " + path);
+		return local;
+	}
+
+	/**
+	 * Interrupts the watcher and waits for it to end.
+	 */
+	public static void stop(TransWatcher watcher) {
+		watcher.interrupt();
+		try {
+			watcher.join(TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}